@@ -6,7 +6,7 @@ android {
     compileSdk = 36
     defaultConfig {
         applicationId = "com.jdpublication.webrecorder"
-        minSdk = 26
+        minSdk = 29
         targetSdk = 36
         versionCode = 2
         versionName = "0.2"
@@ -23,13 +23,17 @@ android {
         sourceCompatibility = JavaVersion.VERSION_11
         targetCompatibility = JavaVersion.VERSION_11
     }
+    // Plain JVM tests; android.util.Log and friends return defaults instead of throwing
+    testOptions {
+        unitTests.isReturnDefaultValues = true
+    }
 }
 dependencies {
     implementation(libs.appcompat)
     implementation(libs.material)
     implementation(libs.constraintlayout)
     //Helper Libraries
-    implementation(libs.poi)
-    implementation(libs.poi.ooxml)
+    implementation(project(":playlist"))
     implementation(libs.localbroadcastmanager)
+    testImplementation(libs.junit)
 }
\ No newline at end of file
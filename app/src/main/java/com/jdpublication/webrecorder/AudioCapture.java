@@ -0,0 +1,317 @@
+package com.jdpublication.webrecorder;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioPlaybackCaptureConfiguration;
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.media.projection.MediaProjection;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Records PCM on its own thread and encodes it to AAC on the video encoder's thread. The capture
+// thread only reads the AudioRecord into a PcmRingBuffer and pokes the encoder thread; nothing is
+// locked or allocated per buffer, so a slow encoder costs dropped audio, never a stalled capture or
+// a blocked video encoder. Each chunk is stamped with its capture time on the System.nanoTime clock,
+// the same clock the video frames carry, which keeps the two tracks aligned without any resampling.
+public class AudioCapture {
+
+    private static final String TAG = "AudioCapture";
+    private static final String MIME = MediaFormat.MIMETYPE_AUDIO_AAC;
+    private static final int SAMPLE_RATE = 48000;
+    private static final int BIT_RATE = 128000;
+    private static final int CHUNK_MS = 10;
+    // Enough for the encoder thread to fall a second behind before audio is dropped
+    private static final int RING_MS = 1000;
+    private static final int MAX_INPUT_SIZE = 8192;
+
+    public interface Sink {
+        // Encoder thread
+        void onAudioFormat(MediaFormat format);
+
+        // Encoder thread; presentationTimeUs is on the System.nanoTime clock
+        void onAudioSample(ByteBuffer buffer, MediaCodec.BufferInfo info);
+
+        // Encoder thread; no more samples will come
+        void onAudioFailed();
+    }
+
+    private final AudioRecord record;
+    private final Sink sink;
+    private final PcmRingBuffer ring;
+    private final int frameBytes;
+    private final int chunkBytes;
+    // Free codec input buffers, oldest first; only touched on the encoder thread. Grows past the
+    // codec's buffer count if it has to, since an index that is dropped is never handed out again
+    private int[] freeInputs = new int[32];
+    private int freeHead = 0;
+    private int freeCount = 0;
+    private final AtomicBoolean drainPosted = new AtomicBoolean();
+    private final AudioTimestamp timestamp = new AudioTimestamp();
+    private final byte[] overflow;
+
+    private Handler handler;
+    private MediaCodec codec;
+    private Thread thread;
+    private volatile boolean running = false;
+    private long framesRead = 0;
+    private long dropped = 0;
+
+    private final Runnable drain = () -> {
+        drainPosted.set(false);
+        fillInputs();
+    };
+
+    private AudioCapture(AudioRecord record, Sink sink) {
+        this.record = record;
+        this.sink = sink;
+        frameBytes = 2 * record.getChannelCount();
+        chunkBytes = SAMPLE_RATE * CHUNK_MS / 1000 * frameBytes;
+        int ringBytes = SAMPLE_RATE * RING_MS / 1000 * frameBytes;
+        overflow = new byte[chunkBytes];
+        ring = new PcmRingBuffer(ringBytes, 2 * RING_MS / CHUNK_MS, frameBytes, SAMPLE_RATE);
+    }
+
+    // Page audio through the projection when the platform allows it, the microphone otherwise; null
+    // without the permission or when neither source can be opened
+    @Nullable
+    public static AudioCapture create(Context context, @Nullable MediaProjection projection, boolean preferPlayback, Sink sink) {
+        if (context.checkSelfPermission(Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
+            Log.w(TAG, "No RECORD_AUDIO permission, recording without sound");
+            return null;
+        }
+        AudioRecord record = null;
+        if (preferPlayback && projection != null) {
+            record = openPlaybackCapture(projection);
+        }
+        if (record == null) record = openMic();
+        return record != null ? new AudioCapture(record, sink) : null;
+    }
+
+    @Nullable
+    private static AudioRecord openPlaybackCapture(MediaProjection projection) {
+        try {
+            AudioPlaybackCaptureConfiguration config = new AudioPlaybackCaptureConfiguration.Builder(projection)
+                    .addMatchingUsage(AudioAttributes.USAGE_MEDIA)
+                    .addMatchingUsage(AudioAttributes.USAGE_GAME)
+                    .addMatchingUsage(AudioAttributes.USAGE_UNKNOWN)
+                    .build();
+            AudioRecord record = new AudioRecord.Builder()
+                    .setAudioPlaybackCaptureConfig(config)
+                    .setAudioFormat(pcmFormat(AudioFormat.CHANNEL_IN_STEREO))
+                    .setBufferSizeInBytes(bufferSize(AudioFormat.CHANNEL_IN_STEREO))
+                    .build();
+            Log.d(TAG, "Capturing playback audio");
+            return checked(record);
+        } catch (SecurityException | UnsupportedOperationException | IllegalArgumentException e) {
+            Log.w(TAG, "Playback capture unavailable, falling back to the microphone", e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private static AudioRecord openMic() {
+        try {
+            AudioRecord record = new AudioRecord.Builder()
+                    .setAudioSource(MediaRecorder.AudioSource.MIC)
+                    .setAudioFormat(pcmFormat(AudioFormat.CHANNEL_IN_MONO))
+                    .setBufferSizeInBytes(bufferSize(AudioFormat.CHANNEL_IN_MONO))
+                    .build();
+            Log.d(TAG, "Capturing microphone audio");
+            return checked(record);
+        } catch (SecurityException | UnsupportedOperationException | IllegalArgumentException e) {
+            Log.w(TAG, "Microphone unavailable", e);
+            return null;
+        }
+    }
+
+    private static AudioFormat pcmFormat(int channelMask) {
+        return new AudioFormat.Builder()
+                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                .setSampleRate(SAMPLE_RATE)
+                .setChannelMask(channelMask)
+                .build();
+    }
+
+    private static int bufferSize(int channelMask) {
+        int min = AudioRecord.getMinBufferSize(SAMPLE_RATE, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        return Math.max(min, SAMPLE_RATE / 10 * 4);
+    }
+
+    @Nullable
+    private static AudioRecord checked(AudioRecord record) {
+        if (record.getState() == AudioRecord.STATE_INITIALIZED) return record;
+        record.release();
+        return null;
+    }
+
+    // The codec runs on handler, which is the video encoder's thread
+    public void prepare(Handler handler) throws IOException {
+        this.handler = handler;
+        String name = CodecEngine.findEncoder(MIME, false);
+        if (name == null) throw new IOException("No encoder for " + MIME);
+        MediaFormat format = MediaFormat.createAudioFormat(MIME, SAMPLE_RATE, record.getChannelCount());
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, MAX_INPUT_SIZE);
+        codec = MediaCodec.createByCodecName(name);
+        try {
+            codec.setCallback(callback, handler);
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        } catch (RuntimeException e) {
+            codec.release();
+            codec = null;
+            throw e;
+        }
+    }
+
+    public void start() {
+        codec.start();
+        record.startRecording();
+        running = true;
+        thread = new Thread(this::captureLoop, TAG);
+        thread.start();
+    }
+
+    // Any thread; the codec itself is released on the encoder thread by release()
+    public void stopCapture() {
+        if (!running) return;
+        running = false;
+        try {
+            record.stop();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "record.stop", e);
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (dropped > 0) Log.w(TAG, "Dropped " + dropped + " bytes while the encoder was behind");
+    }
+
+    // Encoder thread, or any thread if start() was never called
+    public void release() {
+        stopCapture();
+        record.release();
+        if (handler != null) handler.removeCallbacks(drain);
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "codec.stop", e);
+            }
+            codec.release();
+            codec = null;
+        }
+    }
+
+    private void captureLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        while (running) {
+            long ptsUs = captureTimeUs();
+            int length = ring.writableBytes(chunkBytes);
+            int read;
+            if (length > 0) {
+                read = ring.writeFrom(record, length, ptsUs);
+            } else {
+                // Full: keep the AudioRecord drained; the next chunk's stamp marks the gap
+                read = record.read(overflow, 0, overflow.length);
+                if (read > 0) dropped += read;
+            }
+            if (read < 0) {
+                // Reads also fail once stopCapture() has stopped the record
+                if (running) {
+                    Log.e(TAG, "AudioRecord read failed: " + read);
+                    handler.post(sink::onAudioFailed);
+                }
+                break;
+            }
+            framesRead += read / frameBytes;
+            if (length > 0 && drainPosted.compareAndSet(false, true)) handler.post(drain);
+        }
+    }
+
+    // Capture thread: when the next frame to be read was recorded
+    private long captureTimeUs() {
+        if (record.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_MONOTONIC) == AudioRecord.SUCCESS) {
+            return (timestamp.nanoTime + (framesRead - timestamp.framePosition) * 1_000_000_000L / SAMPLE_RATE) / 1000;
+        }
+        // No timestamp yet: the frame is about to arrive
+        return System.nanoTime() / 1000;
+    }
+
+    // Encoder thread
+    private void fillInputs() {
+        while (freeCount > 0 && codec != null) {
+            int available = ring.readableBytes();
+            if (available < frameBytes) return;
+            int index = freeInputs[freeHead];
+            ByteBuffer input;
+            try {
+                input = codec.getInputBuffer(index);
+            } catch (IllegalStateException e) {
+                return;
+            }
+            if (input == null) return;
+            input.clear();
+            long ptsUs = ring.peekPtsUs();
+            int size = ring.readInto(input, MAX_INPUT_SIZE);
+            freeHead = (freeHead + 1) % freeInputs.length;
+            freeCount--;
+            codec.queueInputBuffer(index, 0, size, ptsUs, 0);
+        }
+    }
+
+    // Encoder thread
+    private void growFreeInputs() {
+        int[] grown = new int[freeInputs.length * 2];
+        for (int i = 0; i < freeCount; i++) grown[i] = freeInputs[(freeHead + i) % freeInputs.length];
+        freeInputs = grown;
+        freeHead = 0;
+    }
+
+    private final MediaCodec.Callback callback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec mc, int index) {
+            if (freeCount == freeInputs.length) growFreeInputs();
+            freeInputs[(freeHead + freeCount) % freeInputs.length] = index;
+            freeCount++;
+            fillInputs();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec mc, int index, @NonNull MediaCodec.BufferInfo info) {
+            ByteBuffer buffer = mc.getOutputBuffer(index);
+            boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+            if (buffer != null && !config && info.size > 0) sink.onAudioSample(buffer, info);
+            mc.releaseOutputBuffer(index, false);
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec mc, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "Audio encoder error", e);
+            sink.onAudioFailed();
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec mc, @NonNull MediaFormat format) {
+            sink.onAudioFormat(format);
+        }
+    };
+}
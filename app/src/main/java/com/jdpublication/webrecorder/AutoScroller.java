@@ -0,0 +1,165 @@
+package com.jdpublication.webrecorder;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+import android.webkit.JavascriptInterface;
+import android.webkit.WebView;
+
+// Scrolls the recorded page at a steady rate while a recording runs, one step per vsync. A small
+// script reports the document height through a JS bridge whenever it changes; growth means lazy
+// content just arrived, so scrolling holds for a moment to let it render. The bottom is where the
+// WebView clamps the scroll, and once the page has stopped growing there for a while the listener
+// is told, which ends the recording.
+public class AutoScroller implements Choreographer.FrameCallback {
+
+    private static final String TAG = "AutoScroller";
+    private static final String BRIDGE = "WebRecorderScroll";
+    private static final long LAZY_PAUSE_MS = 800;
+    private static final long BOTTOM_HOLD_MS = 1500;
+    // A long stall should not turn into one big jump
+    private static final long MAX_STEP_NANOS = 100_000_000L;
+
+    // Reports scrollHeight and innerHeight at most once per animation frame
+    private static final String HEIGHT_SCRIPT = "(function(){" +
+            "if(window.__wrScroll||!window." + BRIDGE + ")return;window.__wrScroll=1;" +
+            "var last=0,queued=false;" +
+            "function report(){queued=false;var d=document.documentElement;" +
+            "var h=Math.max(d.scrollHeight,document.body?document.body.scrollHeight:0);" +
+            "if(h!==last){last=h;" + BRIDGE + ".onHeight(h,window.innerHeight);}}" +
+            "function schedule(){if(!queued){queued=true;requestAnimationFrame(report);}}" +
+            "report();" +
+            "new MutationObserver(schedule).observe(document.documentElement,{childList:true,subtree:true,attributes:true});" +
+            "window.addEventListener('load',schedule,true);" +
+            "})();";
+
+    public interface Listener {
+        // Main thread; the page is at its bottom and has stopped growing
+        void onReachedBottom();
+    }
+
+    // One per WebView, registered before anything loads; only the scrolled view's reports count
+    private final class Bridge {
+        private final WebView owner;
+
+        Bridge(WebView owner) {
+            this.owner = owner;
+        }
+
+        // JavaBridge thread
+        @JavascriptInterface
+        public void onHeight(int scrollHeight, int innerHeight) {
+            mainHandler.post(() -> {
+                if (owner == view) onPageHeight(scrollHeight, innerHeight);
+            });
+        }
+    }
+
+    private final Choreographer choreographer = Choreographer.getInstance();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Listener listener;
+
+    private WebView view;
+    private float pixelsPerSecond;
+    private boolean running = false;
+    private boolean paused = false;
+    private long lastFrameNanos = 0;
+    private float remainder = 0;
+    private int pageHeight = 0;
+    private long holdUntil = 0;
+    private long bottomSince = 0;
+
+    public AutoScroller(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Called for every WebView when it is configured
+    public void install(WebView view) {
+        view.addJavascriptInterface(new Bridge(view), BRIDGE);
+    }
+
+    // Main thread; pages loaded into the scrolled view need the height script again
+    public void onPageFinished(WebView view) {
+        if (running && view == this.view) view.evaluateJavascript(HEIGHT_SCRIPT, null);
+    }
+
+    public void start(WebView view, float pixelsPerSecond) {
+        stop();
+        this.view = view;
+        this.pixelsPerSecond = pixelsPerSecond;
+        running = true;
+        paused = false;
+        lastFrameNanos = 0;
+        remainder = 0;
+        pageHeight = 0;
+        holdUntil = 0;
+        bottomSince = 0;
+        view.evaluateJavascript(HEIGHT_SCRIPT, null);
+        choreographer.postFrameCallback(this);
+    }
+
+    public void pause() {
+        paused = true;
+    }
+
+    public void resume() {
+        if (!paused) return;
+        paused = false;
+        lastFrameNanos = 0;
+        bottomSince = 0;
+    }
+
+    public void stop() {
+        if (!running) return;
+        running = false;
+        choreographer.removeFrameCallback(this);
+        view = null;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!running) return;
+        choreographer.postFrameCallback(this);
+        long previous = lastFrameNanos;
+        lastFrameNanos = frameTimeNanos;
+        if (paused || previous == 0 || SystemClock.uptimeMillis() < holdUntil) return;
+
+        remainder += pixelsPerSecond * Math.min(frameTimeNanos - previous, MAX_STEP_NANOS) / 1e9f;
+        int step = (int) remainder;
+        if (step == 0) return;
+        remainder -= step;
+
+        int before = view.getScrollY();
+        view.scrollBy(0, step);
+        if (view.getScrollY() != before) {
+            bottomSince = 0;
+            return;
+        }
+        // Clamped: at the bottom for now, unless the page keeps growing
+        long now = SystemClock.uptimeMillis();
+        if (bottomSince == 0) {
+            bottomSince = now;
+        } else if (now - bottomSince >= BOTTOM_HOLD_MS) {
+            Log.d(TAG, "Reached the bottom at " + before + " px");
+            stop();
+            listener.onReachedBottom();
+        }
+    }
+
+    private void onPageHeight(int scrollHeight, int innerHeight) {
+        if (!running || innerHeight <= 0) return;
+        // CSS pixels to view pixels, whatever the page zoom is
+        int height = (int) ((long) scrollHeight * view.getHeight() / innerHeight);
+        if (pageHeight != 0 && height > pageHeight) {
+            holdUntil = SystemClock.uptimeMillis() + LAZY_PAUSE_MS;
+            bottomSince = 0;
+        }
+        pageHeight = height;
+    }
+}
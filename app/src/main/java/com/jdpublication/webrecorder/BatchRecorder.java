@@ -0,0 +1,198 @@
+package com.jdpublication.webrecorder;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+// Walks the playlist unattended: load entry, wait for the page to be ready, record a segment for the
+// configured duration (or until auto-scroll reaches the bottom), stop the segment, advance. The
+// projection lives for the whole run.
+public class BatchRecorder {
+
+    private static final String TAG = "BatchRecorder";
+
+    public interface Host {
+        int getEntryCount();
+
+        String getFilename(int index);
+
+        // Navigate the visible WebView to the entry; page readiness comes back via onPageReady()
+        void showEntry(int index);
+
+        // Entries that are passed over without being loaded
+        boolean shouldSkip(int index);
+
+        // One of ProgressJournal's states
+        void onEntryState(int index, int state);
+
+        // The shown entry is being recorded from now until onSegmentEnded
+        void onSegmentStarted(int index);
+
+        void onSegmentEnded(int index);
+
+        void onBatchFinished();
+    }
+
+    private enum State {IDLE, LOADING, SETTLING, RECORDING}
+
+    private final Context context;
+    private final Host host;
+    private final RecorderSettings settings;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private State state = State.IDLE;
+    private int index;
+    private boolean paused = false;
+    private boolean startPending = false;
+    private boolean segmentFailed = false;
+    private long segmentEndsAt;
+    private long remainingOnPause;
+
+    private final Runnable pageReadyTimeout = () -> {
+        Log.w(TAG, "Page ready timeout for entry " + index);
+        onPageReady();
+    };
+    private final Runnable startSegment = this::startSegment;
+    private final Runnable endSegment = this::endSegment;
+
+    public BatchRecorder(Context context, Host host, RecorderSettings settings) {
+        this.context = context;
+        this.host = host;
+        this.settings = settings;
+    }
+
+    public boolean isRunning() {
+        return state != State.IDLE;
+    }
+
+    public void start(int fromIndex, int resultCode, Intent data, EncoderProfiles.Quality quality) {
+        Intent serviceIntent = new Intent(context, RecordingService.class);
+        serviceIntent.putExtra("resultCode", resultCode);
+        serviceIntent.putExtra("data", data);
+        start(fromIndex, serviceIntent, quality);
+    }
+
+    // Records the WebView itself, so no projection token is needed
+    public void startDirect(int fromIndex, EncoderProfiles.Quality quality) {
+        Intent serviceIntent = new Intent(context, RecordingService.class);
+        serviceIntent.putExtra(RecordingService.EXTRA_DIRECT, true);
+        start(fromIndex, serviceIntent, quality);
+    }
+
+    private void start(int fromIndex, Intent serviceIntent, EncoderProfiles.Quality quality) {
+        index = fromIndex;
+        paused = false;
+
+        serviceIntent.putExtra(RecordingService.EXTRA_BATCH, true);
+        serviceIntent.putExtra(RecordingService.EXTRA_QUALITY, quality.name());
+        ContextCompat.startForegroundService(context, serviceIntent);
+
+        loadEntry();
+    }
+
+    public void onPageReady() {
+        if (state != State.LOADING) return;
+        handler.removeCallbacks(pageReadyTimeout);
+        state = State.SETTLING;
+        handler.postDelayed(startSegment, settings.getPageSettleMs());
+    }
+
+    // Auto-scroll got to the end of the page, so the entry is complete
+    public void onPageBottom() {
+        if (state != State.RECORDING || paused) return;
+        handler.removeCallbacks(endSegment);
+        endSegment();
+    }
+
+    // The service could not record the current entry
+    public void onSegmentFailed() {
+        if (state == State.RECORDING) segmentFailed = true;
+    }
+
+    public void pause() {
+        if (state == State.IDLE || paused) return;
+        paused = true;
+        if (state == State.RECORDING) {
+            handler.removeCallbacks(endSegment);
+            remainingOnPause = Math.max(0, segmentEndsAt - SystemClock.uptimeMillis());
+        }
+    }
+
+    public void resume() {
+        if (!paused) return;
+        paused = false;
+        if (startPending) {
+            startPending = false;
+            startSegment();
+        } else if (state == State.RECORDING) {
+            scheduleEnd(remainingOnPause);
+        }
+    }
+
+    // Called once the service is gone; the service already finalized any open segment
+    public void stop() {
+        handler.removeCallbacksAndMessages(null);
+        if (state == State.RECORDING) {
+            host.onSegmentEnded(index);
+            host.onEntryState(index, ProgressJournal.FAILED);
+        }
+        state = State.IDLE;
+        startPending = false;
+    }
+
+    private void loadEntry() {
+        while (index < host.getEntryCount() && host.shouldSkip(index)) index++;
+        if (index >= host.getEntryCount()) {
+            finish();
+            return;
+        }
+        state = State.LOADING;
+        handler.postDelayed(pageReadyTimeout, settings.getPageReadyTimeoutMs());
+        host.showEntry(index);
+    }
+
+    private void startSegment() {
+        if (paused) {
+            startPending = true;
+            return;
+        }
+        state = State.RECORDING;
+        segmentFailed = false;
+        host.onEntryState(index, ProgressJournal.RECORDING);
+        sendToService(RecordingService.ACTION_START_SEGMENT, host.getFilename(index));
+        host.onSegmentStarted(index);
+        scheduleEnd(settings.isAutoScrollEnabled() ? settings.getAutoScrollMaxMs() : settings.getBatchDurationMs());
+    }
+
+    private void scheduleEnd(long delay) {
+        segmentEndsAt = SystemClock.uptimeMillis() + delay;
+        handler.postDelayed(endSegment, delay);
+    }
+
+    private void endSegment() {
+        host.onSegmentEnded(index);
+        sendToService(RecordingService.ACTION_STOP_SEGMENT, null);
+        host.onEntryState(index, segmentFailed ? ProgressJournal.FAILED : ProgressJournal.DONE);
+        state = State.IDLE;
+        index++;
+        loadEntry();
+    }
+
+    private void finish() {
+        stop();
+        context.stopService(new Intent(context, RecordingService.class));
+        host.onBatchFinished();
+    }
+
+    private void sendToService(String action, String filename) {
+        Intent intent = new Intent(context, RecordingService.class);
+        intent.setAction(action);
+        if (filename != null) intent.putExtra("filename", filename);
+        context.startService(intent);
+    }
+}
@@ -0,0 +1,451 @@
+package com.jdpublication.webrecorder;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.media.projection.MediaProjection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Surface-input MediaCodec in async mode feeding a MediaMuxer. Codec callbacks and all muxer work run
+// on one dedicated HandlerThread. Files are switched on a requested keyframe, so rollover is gapless
+// and the input surface (and the VirtualDisplay on it) stays untouched. The same switch splits long
+// recordings once a file reaches its size or duration limit. With audio enabled an AudioCapture
+// encodes on the same thread and its samples join each file once the video track has started.
+public class CodecEngine implements RolloverEngine {
+
+    private static final String TAG = "CodecEngine";
+    private static final long EOS_TIMEOUT_MS = 3000;
+    // Static pages produce no new frames; repeat the last one so players keep a sane frame rate
+    private static final long REPEAT_FRAME_AFTER_US = 1_000_000;
+    private static final int CQ_QUALITY = 70;
+
+    private final EncoderConfig config;
+    private final Listener listener;
+    private final RecordingMetrics metrics;
+    private final long frameIntervalUs;
+    private long maxBytes = 0;
+    private long maxDurationUs = 0;
+
+    private HandlerThread thread;
+    private Handler handler;
+    private MediaCodec codec;
+    private Surface inputSurface;
+    private Context audioContext;
+    private MediaProjection audioProjection;
+    private boolean preferPlaybackAudio;
+    private volatile AudioCapture audio;
+    private final CountDownLatch endOfStream = new CountDownLatch(1);
+
+    // Set from the caller's thread, consumed on the codec thread
+    private volatile boolean paused = false;
+    private volatile boolean resumePending = false;
+    private final AtomicReference<RecordingOutput> pendingOutput = new AtomicReference<>();
+
+    // Codec-thread state
+    private RecordingOutput output;
+    private MediaMuxer muxer;
+    private MediaFormat videoFormat;
+    private MediaFormat audioFormat;
+    private int videoTrack = -1;
+    private int audioTrack = -1;
+    private long lastAudioPtsUs = -1;
+    private boolean needKeyframe = true;
+    private long samplesInFile = 0;
+    private long bytesInFile = 0;
+    private boolean limitReached = false;
+    private long fileBaseUs = -1;
+    private long lastRawPtsUs = -1;
+    private long pausedTotalUs = 0;
+
+    public CodecEngine(EncoderConfig config, Listener listener, RecordingMetrics metrics) {
+        this.config = config;
+        this.listener = listener;
+        this.metrics = metrics;
+        this.frameIntervalUs = 1_000_000L / Math.max(1, config.frameRate);
+    }
+
+    @Override
+    public void setRolloverLimits(long maxBytes, long maxDurationMs) {
+        this.maxBytes = maxBytes;
+        this.maxDurationUs = maxDurationMs * 1000;
+    }
+
+    // Before prepare(); page audio needs the projection, otherwise the microphone is recorded
+    public void enableAudio(Context context, @Nullable MediaProjection projection, boolean preferPlayback) {
+        audioContext = context;
+        audioProjection = projection;
+        preferPlaybackAudio = preferPlayback;
+    }
+
+    @Override
+    public void prepare(RecordingOutput output) throws IOException {
+        this.output = output;
+        String name = config.encoderName != null ? config.encoderName : findEncoder(config.mimeType, true);
+        if (name == null) throw new IOException("No encoder for " + config.mimeType);
+
+        thread = new HandlerThread(TAG);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+
+        try {
+            codec = MediaCodec.createByCodecName(name);
+            codec.setCallback(callback, handler);
+            codec.configure(createFormat(codec.getCodecInfo()), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            inputSurface = codec.createInputSurface();
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+        Log.d(TAG, "Using encoder " + name);
+        if (audioContext != null) prepareAudio();
+    }
+
+    // A missing audio path only costs the sound track
+    private void prepareAudio() {
+        AudioCapture capture = AudioCapture.create(audioContext, audioProjection, preferPlaybackAudio, audioSink);
+        if (capture == null) return;
+        try {
+            capture.prepare(handler);
+            audio = capture;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Audio encoder unavailable, recording without sound", e);
+            capture.release();
+        }
+    }
+
+    private MediaFormat createFormat(MediaCodecInfo info) {
+        MediaFormat format = MediaFormat.createVideoFormat(config.mimeType, config.width, config.height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, config.frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.keyframeIntervalSec);
+        format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, REPEAT_FRAME_AFTER_US);
+
+        int mode = config.bitrateMode;
+        MediaCodecInfo.EncoderCapabilities caps = info.getCapabilitiesForType(config.mimeType).getEncoderCapabilities();
+        if (!caps.isBitrateModeSupported(mode)) {
+            Log.w(TAG, "Bitrate mode " + mode + " unsupported by " + info.getName() + ", using VBR");
+            mode = EncoderConfig.BITRATE_MODE_VBR;
+        }
+        format.setInteger(MediaFormat.KEY_BITRATE_MODE, mode);
+        if (mode == EncoderConfig.BITRATE_MODE_CQ) {
+            format.setInteger(MediaFormat.KEY_QUALITY, caps.getQualityRange().clamp(CQ_QUALITY));
+        }
+        return format;
+    }
+
+    @Override
+    public Surface getInputSurface() {
+        return inputSurface;
+    }
+
+    @Override
+    public void start() {
+        codec.start();
+        AudioCapture capture = audio;
+        if (capture == null) return;
+        try {
+            capture.start();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Audio capture failed to start, recording without sound", e);
+            handler.post(() -> dropAudio(capture));
+        }
+    }
+
+    @Override
+    public void pause() {
+        paused = true;
+    }
+
+    @Override
+    public void resume() {
+        if (!paused) return;
+        resumePending = true;
+        paused = false;
+        requestKeyframe();
+    }
+
+    // The switch happens on the next keyframe, which is requested right away
+    @Override
+    public void rollover(RecordingOutput next) {
+        RecordingOutput replaced = pendingOutput.getAndSet(next);
+        if (replaced != null) listener.onOutputFinished(replaced, false);
+        requestKeyframe();
+    }
+
+    @Override
+    public void stop() {
+        if (codec == null) return;
+        AudioCapture capture = audio;
+        if (capture != null) capture.stopCapture();
+        try {
+            codec.signalEndOfInputStream();
+            if (!endOfStream.await(EOS_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out waiting for end of stream");
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to signal end of stream", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        handler.post(() -> {
+            finishFile();
+            RecordingOutput pending = pendingOutput.getAndSet(null);
+            if (pending != null) listener.onOutputFinished(pending, false);
+            release();
+        });
+    }
+
+    private void requestKeyframe() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            codec.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Keyframe request failed", e);
+        }
+    }
+
+    private final MediaCodec.Callback callback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec mc, int index) {
+            // Surface input: never called
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec mc, int index, @NonNull MediaCodec.BufferInfo info) {
+            ByteBuffer buffer = mc.getOutputBuffer(index);
+            boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+            if (buffer != null && !config && info.size > 0) {
+                metrics.onFrameEncoded();
+                if (!paused) writeSample(buffer, info);
+            }
+            mc.releaseOutputBuffer(index, false);
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                endOfStream.countDown();
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec mc, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "Encoder error", e);
+            endOfStream.countDown();
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec mc, @NonNull MediaFormat format) {
+            videoFormat = format;
+            if (muxer == null && output != null) openMuxer();
+        }
+    };
+
+    private final AudioCapture.Sink audioSink = new AudioCapture.Sink() {
+        @Override
+        public void onAudioFormat(MediaFormat format) {
+            audioFormat = format;
+            if (muxer == null && output != null) {
+                openMuxer();
+                // The first video keyframe went by while the muxer waited for this format
+                if (muxer != null) requestKeyframe();
+            }
+        }
+
+        @Override
+        public void onAudioSample(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            writeAudioSample(buffer, info);
+        }
+
+        @Override
+        public void onAudioFailed() {
+            AudioCapture capture = audio;
+            // Not from inside the failed codec's own callback
+            if (capture != null) handler.post(() -> dropAudio(capture));
+        }
+    };
+
+    // Codec thread; the video goes on alone, and a muxer still waiting for the audio format opens now
+    private void dropAudio(AudioCapture capture) {
+        if (audio != capture) return;
+        audio = null;
+        capture.release();
+        if (muxer == null && output != null) openMuxer();
+    }
+
+    private void writeSample(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        boolean keyframe = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (keyframe) {
+            RecordingOutput next = pendingOutput.getAndSet(null);
+            if (next != null) {
+                finishFile();
+                output = next;
+                openMuxer();
+            }
+        }
+        if (muxer == null) {
+            metrics.onFrameDropped();
+            return;
+        }
+        // After a pause or a switch the stream must continue from a keyframe
+        if ((needKeyframe || resumePending) && !keyframe) {
+            metrics.onFrameDropped();
+            return;
+        }
+        needKeyframe = false;
+
+        long rawPtsUs = info.presentationTimeUs;
+        if (resumePending) {
+            resumePending = false;
+            if (lastRawPtsUs >= 0) pausedTotalUs += Math.max(0, rawPtsUs - lastRawPtsUs - frameIntervalUs);
+        }
+        lastRawPtsUs = rawPtsUs;
+
+        long ptsUs = rawPtsUs - pausedTotalUs;
+        if (fileBaseUs < 0) fileBaseUs = ptsUs;
+        info.presentationTimeUs = ptsUs - fileBaseUs;
+
+        buffer.position(info.offset);
+        buffer.limit(info.offset + info.size);
+        try {
+            muxer.writeSampleData(videoTrack, buffer, info);
+            samplesInFile++;
+            bytesInFile += info.size;
+            metrics.onFrameWritten(info.size);
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            Log.e(TAG, "Dropped sample at " + info.presentationTimeUs, e);
+            metrics.onFrameDropped();
+        }
+        if (!limitReached && ((maxBytes > 0 && bytesInFile >= maxBytes) || (maxDurationUs > 0 && info.presentationTimeUs >= maxDurationUs))) {
+            limitReached = true;
+            rollOverAtLimit();
+        }
+    }
+
+    // Audio is stamped on the video clock, so it shares the pause offset and the file base; anything
+    // from before the file's first frame or from a pause is dropped
+    private void writeAudioSample(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        if (muxer == null || audioTrack < 0 || paused || resumePending || fileBaseUs < 0) return;
+        long ptsUs = info.presentationTimeUs - pausedTotalUs - fileBaseUs;
+        if (ptsUs < 0 || ptsUs <= lastAudioPtsUs) return;
+        lastAudioPtsUs = ptsUs;
+        info.presentationTimeUs = ptsUs;
+
+        buffer.position(info.offset);
+        buffer.limit(info.offset + info.size);
+        try {
+            muxer.writeSampleData(audioTrack, buffer, info);
+            bytesInFile += info.size;
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            Log.e(TAG, "Dropped audio sample at " + ptsUs, e);
+        }
+    }
+
+    // The next file starts at the keyframe requested here, like a rollover between entries
+    private void rollOverAtLimit() {
+        RecordingOutput next = listener.onRolloverNeeded();
+        if (next == null) return;
+        if (!pendingOutput.compareAndSet(null, next)) {
+            // A rollover to the next entry is already under way
+            listener.onOutputFinished(next, false);
+            return;
+        }
+        Log.d(TAG, "Rolling over after " + bytesInFile + " bytes");
+        requestKeyframe();
+    }
+
+    private void openMuxer() {
+        // Tracks cannot be added once the muxer has started, so wait for both formats
+        boolean withAudio = audio != null;
+        if (videoFormat == null || (withAudio && audioFormat == null)) return;
+        try {
+            muxer = new MediaMuxer(output.getFileDescriptor(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            videoTrack = muxer.addTrack(videoFormat);
+            audioTrack = withAudio ? muxer.addTrack(audioFormat) : -1;
+            muxer.start();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to open muxer", e);
+            if (muxer != null) muxer.release();
+            muxer = null;
+            listener.onOutputFinished(output, false);
+            output = null;
+            return;
+        }
+        samplesInFile = 0;
+        bytesInFile = 0;
+        limitReached = false;
+        fileBaseUs = -1;
+        lastAudioPtsUs = -1;
+        needKeyframe = true;
+    }
+
+    private void finishFile() {
+        if (output == null) return;
+        boolean success = muxer != null && samplesInFile > 0;
+        if (muxer != null) {
+            try {
+                muxer.stop();
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Failed to finalize muxer", e);
+                success = false;
+            }
+            muxer.release();
+            muxer = null;
+        }
+        listener.onOutputFinished(output, success);
+        output = null;
+    }
+
+    private void release() {
+        AudioCapture capture = audio;
+        audio = null;
+        if (capture != null) capture.release();
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "codec.stop", e);
+            }
+            codec.release();
+            codec = null;
+        }
+        if (inputSurface != null) {
+            inputSurface.release();
+            inputSurface = null;
+        }
+        if (thread != null) thread.quitSafely();
+    }
+
+    @Nullable
+    static String findEncoder(String mimeType, boolean preferHardware) {
+        String fallback = null;
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!info.isEncoder()) continue;
+            for (String type : info.getSupportedTypes()) {
+                if (!type.equalsIgnoreCase(mimeType)) continue;
+                if (isHardware(info) == preferHardware) return info.getName();
+                if (fallback == null) fallback = info.getName();
+            }
+        }
+        return fallback;
+    }
+
+    static boolean isHardware(MediaCodecInfo info) {
+        return info.isHardwareAccelerated();
+    }
+}
@@ -0,0 +1,44 @@
+package com.jdpublication.webrecorder;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+
+import androidx.annotation.Nullable;
+
+public class EncoderConfig {
+
+    public static final int BITRATE_MODE_CQ = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ;
+    public static final int BITRATE_MODE_VBR = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+    public static final int BITRATE_MODE_CBR = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+
+    public final String mimeType;
+    public final int width;
+    public final int height;
+    public final int frameRate;
+    public final int bitRate;
+    public final int bitrateMode;
+    public final int keyframeIntervalSec;
+    // Explicit codec name, or null to let the engine pick one
+    @Nullable
+    public final String encoderName;
+
+    public EncoderConfig(String mimeType, int width, int height, int frameRate, int bitRate, int bitrateMode, int keyframeIntervalSec, @Nullable String encoderName) {
+        this.mimeType = mimeType;
+        this.width = width;
+        this.height = height;
+        this.frameRate = frameRate;
+        this.bitRate = bitRate;
+        this.bitrateMode = bitrateMode;
+        this.keyframeIntervalSec = keyframeIntervalSec;
+        this.encoderName = encoderName;
+    }
+
+    // What initRecorder used to hard-code
+    public static EncoderConfig defaults() {
+        return new EncoderConfig(MediaFormat.MIMETYPE_VIDEO_AVC, 480, 854, 15, 1000000, BITRATE_MODE_VBR, 2, null);
+    }
+
+    public EncoderConfig withRateControl(int bitrateMode, int keyframeIntervalSec) {
+        return new EncoderConfig(mimeType, width, height, frameRate, bitRate, bitrateMode, keyframeIntervalSec, encoderName);
+    }
+}
@@ -0,0 +1,188 @@
+package com.jdpublication.webrecorder;
+
+import android.content.Context;
+import android.hardware.display.DisplayManager;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.util.Range;
+import android.view.Display;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Turns a quality tier into an EncoderConfig the device's encoder actually supports, keeping the
+// display's aspect ratio. MediaCodecList is only walked once per process, mime type and encoder kind.
+public final class EncoderProfiles {
+
+    private static final String TAG = "EncoderProfiles";
+    private static final int MIN_SHORT_SIDE = 240;
+
+    public enum Quality {
+        LOW(480, 15, 0.08f),
+        MEDIUM(720, 24, 0.10f),
+        HIGH(1080, 30, 0.12f);
+
+        final int shortSide;
+        final int frameRate;
+        // Bits per pixel per frame; text-heavy pages need more than camera footage
+        final float bitsPerPixel;
+
+        Quality(int shortSide, int frameRate, float bitsPerPixel) {
+            this.shortSide = shortSide;
+            this.frameRate = frameRate;
+            this.bitsPerPixel = bitsPerPixel;
+        }
+    }
+
+    static final class Probe {
+        final String encoderName;
+        final boolean hardware;
+        final MediaCodecInfo.VideoCapabilities video;
+        final int maxInstances;
+
+        Probe(String encoderName, boolean hardware, MediaCodecInfo.VideoCapabilities video, int maxInstances) {
+            this.encoderName = encoderName;
+            this.hardware = hardware;
+            this.video = video;
+            this.maxInstances = maxInstances;
+        }
+    }
+
+    private static final Map<String, Probe> probes = new HashMap<>();
+
+    private EncoderProfiles() {
+    }
+
+    // A hardware encoder is faster and easier on the battery; software output looks the same on every device
+    public static EncoderConfig select(Context context, Quality quality, String mimeType, int bitrateMode, int keyframeIntervalSec, boolean preferHardware) {
+        Probe probe = probe(mimeType, preferHardware);
+        if (probe == null) {
+            Log.w(TAG, "No encoder for " + mimeType + ", using defaults");
+            return EncoderConfig.defaults().withRateControl(bitrateMode, keyframeIntervalSec);
+        }
+        MediaCodecInfo.VideoCapabilities caps = probe.video;
+
+        DisplayMetrics metrics = realMetrics(context);
+        boolean portrait = metrics.heightPixels >= metrics.widthPixels;
+        int displayShort = Math.min(metrics.widthPixels, metrics.heightPixels);
+        int displayLong = Math.max(metrics.widthPixels, metrics.heightPixels);
+        double aspect = (double) displayLong / displayShort;
+
+        int shortSide = Math.min(quality.shortSide, displayShort);
+        int width = 0;
+        int height = 0;
+        // Step down until the encoder accepts the size; never stretch, only shrink both sides
+        for (; shortSide >= MIN_SHORT_SIDE; shortSide -= 16) {
+            int s = align(shortSide, portrait ? caps.getWidthAlignment() : caps.getHeightAlignment());
+            int l = align((int) Math.round(shortSide * aspect), portrait ? caps.getHeightAlignment() : caps.getWidthAlignment());
+            width = portrait ? s : l;
+            height = portrait ? l : s;
+            if (caps.isSizeSupported(width, height)) break;
+        }
+        if (shortSide < MIN_SHORT_SIDE) {
+            Log.w(TAG, "No supported size near " + quality + ", using defaults");
+            return EncoderConfig.defaults().withRateControl(bitrateMode, keyframeIntervalSec);
+        }
+
+        int frameRate = quality.frameRate;
+        Range<Double> rates = caps.getSupportedFrameRatesFor(width, height);
+        if (frameRate > rates.getUpper()) frameRate = (int) Math.floor(rates.getUpper());
+
+        int bitRate = (int) (width * (long) height * frameRate * quality.bitsPerPixel);
+        bitRate = caps.getBitrateRange().clamp(bitRate);
+
+        Log.d(TAG, quality + ": " + width + "x" + height + "@" + frameRate + " " + bitRate + "bps on " + probe.encoderName);
+        return new EncoderConfig(mimeType, width, height, frameRate, bitRate, bitrateMode, keyframeIntervalSec, probe.encoderName);
+    }
+
+    // How many streams of this config the selected encoder can run at once: bounded by its instance
+    // limit and by its throughput, from performance points where the device publishes them
+    public static int concurrentStreams(EncoderConfig config) {
+        Probe probe = probeFor(config);
+        if (probe == null) return 1;
+        int streams = Math.max(1, probe.maxInstances);
+        List<MediaCodecInfo.VideoCapabilities.PerformancePoint> points = probe.video.getSupportedPerformancePoints();
+        if (points != null && !points.isEmpty()) {
+            for (; streams > 1; streams--) {
+                MediaCodecInfo.VideoCapabilities.PerformancePoint needed =
+                        new MediaCodecInfo.VideoCapabilities.PerformancePoint(config.width, config.height, config.frameRate * streams);
+                if (covers(points, needed)) break;
+            }
+            return streams;
+        }
+        try {
+            double maxRate = probe.video.getSupportedFrameRatesFor(config.width, config.height).getUpper();
+            return Math.max(1, Math.min(streams, (int) (maxRate / Math.max(1, config.frameRate))));
+        } catch (IllegalArgumentException e) {
+            // The fallback config's size is not one the encoder lists
+            return 1;
+        }
+    }
+
+    private static boolean covers(List<MediaCodecInfo.VideoCapabilities.PerformancePoint> points, MediaCodecInfo.VideoCapabilities.PerformancePoint needed) {
+        for (MediaCodecInfo.VideoCapabilities.PerformancePoint point : points) {
+            if (point.covers(needed)) return true;
+        }
+        return false;
+    }
+
+    // The probe select() took the config's encoder from
+    @Nullable
+    private static Probe probeFor(EncoderConfig config) {
+        Probe hardware = probe(config.mimeType, true);
+        if (hardware == null || hardware.encoderName.equals(config.encoderName)) return hardware;
+        Probe software = probe(config.mimeType, false);
+        return software != null && software.encoderName.equals(config.encoderName) ? software : hardware;
+    }
+
+    @Nullable
+    static Probe probe(String mimeType) {
+        return probe(mimeType, true);
+    }
+
+    // Falls back to the other kind when the device has no encoder of the preferred one
+    @Nullable
+    static synchronized Probe probe(String mimeType, boolean preferHardware) {
+        String key = mimeType + (preferHardware ? "/hw" : "/sw");
+        if (probes.containsKey(key)) return probes.get(key);
+
+        Probe best = null;
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!info.isEncoder()) continue;
+            for (String type : info.getSupportedTypes()) {
+                if (!type.equalsIgnoreCase(mimeType)) continue;
+                MediaCodecInfo.CodecCapabilities caps = info.getCapabilitiesForType(type);
+                MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+                if (video == null) continue;
+                boolean hardware = CodecEngine.isHardware(info);
+                if (best == null || hardware == preferHardware && best.hardware != preferHardware) {
+                    best = new Probe(info.getName(), hardware, video, caps.getMaxSupportedInstances());
+                }
+            }
+        }
+        probes.put(key, best);
+        return best;
+    }
+
+    private static DisplayMetrics realMetrics(Context context) {
+        // The mirrored display includes the system bars, so its real size defines the aspect ratio
+        DisplayMetrics metrics = new DisplayMetrics();
+        DisplayManager dm = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+        Display display = dm.getDisplay(Display.DEFAULT_DISPLAY);
+        if (display != null) {
+            display.getRealMetrics(metrics);
+        } else {
+            metrics.setTo(context.getResources().getDisplayMetrics());
+        }
+        return metrics;
+    }
+
+    private static int align(int value, int alignment) {
+        return Math.max(alignment, value / alignment * alignment);
+    }
+}
@@ -0,0 +1,444 @@
+package com.jdpublication.webrecorder;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.CountDownLatch;
+
+// Sits between the VirtualDisplay and the encoder surface. Each composed frame is box-filtered on the
+// GPU into a small FBO and hashed; a frame that looks like the last forwarded one is only passed on
+// at the keepalive rate, changed frames go through at up to the encoder's frame rate. The keepalive
+// also re-sends the last frame when the display produces nothing, so every engine gets a steady
+// trickle of timestamps on a static page.
+public class FrameGate implements SurfaceTexture.OnFrameAvailableListener {
+
+    private static final String TAG = "FrameGate";
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+    // Each sample pixel is the average of a block this many pixels square, so one pixel changing by
+    // about an eighth of its range anywhere in the frame still moves the hash
+    private static final int SAMPLE_DIVISOR = 8;
+    private static final int POSITION = 0;
+    private static final int TEX_COORD = 1;
+
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uTexMatrix;\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec4 aTexCoord;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = aPosition;\n" +
+            "    vTexCoord = (uTexMatrix * aTexCoord).xy;\n" +
+            "}\n";
+    private static final String FRAGMENT_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "precision mediump float;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "uniform samplerExternalOES sTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(sTexture, vTexCoord);\n" +
+            "}\n";
+    // 4x4 bilinear taps, each on the corner between four texels, average the 8x8 block exactly
+    private static final String SAMPLE_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "#ifdef GL_FRAGMENT_PRECISION_HIGH\n" +
+            "precision highp float;\n" +
+            "#else\n" +
+            "precision mediump float;\n" +
+            "#endif\n" +
+            "varying vec2 vTexCoord;\n" +
+            "uniform samplerExternalOES sTexture;\n" +
+            "uniform vec2 uTexel;\n" +
+            "void main() {\n" +
+            "    vec4 sum = vec4(0.0);\n" +
+            "    for (int y = 0; y < 4; y++) {\n" +
+            "        for (int x = 0; x < 4; x++) {\n" +
+            "            sum += texture2D(sTexture, vTexCoord + (vec2(float(x), float(y)) * 2.0 - 3.0) * uTexel);\n" +
+            "        }\n" +
+            "    }\n" +
+            "    gl_FragColor = sum / 16.0;\n" +
+            "}\n";
+    // Triangle strip of x, y, s, t
+    private static final float[] QUAD = {
+            -1f, -1f, 0f, 0f,
+            1f, -1f, 1f, 0f,
+            -1f, 1f, 0f, 1f,
+            1f, 1f, 1f, 1f,
+    };
+
+    private final int width;
+    private final int height;
+    private final int sampleWidth;
+    private final int sampleHeight;
+    private final long minFrameIntervalNs;
+    private final long keepaliveNs;
+    private final RecordingMetrics metrics;
+
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    // GL thread state
+    private EGLDisplay eglDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext eglContext = EGL14.EGL_NO_CONTEXT;
+    private EGLConfig eglConfig;
+    private EGLSurface pbuffer = EGL14.EGL_NO_SURFACE;
+    private EGLSurface outputSurface = EGL14.EGL_NO_SURFACE;
+    private int program;
+    private int uTexMatrix;
+    private int sampleProgram;
+    private int uSampleTexMatrix;
+    private int oesTexture;
+    private int sampleTexture;
+    private int sampleFbo;
+    private FloatBuffer quad;
+    private ByteBuffer samplePixels;
+    private final float[] texMatrix = new float[16];
+    private SurfaceTexture surfaceTexture;
+    private Surface inputSurface;
+    private boolean hasFrame = false;
+    private boolean dirty = false;
+    private long lastHash = 0;
+    private long lastOutputNs = 0;
+
+    private volatile long framesIn = 0;
+    private volatile long framesOut = 0;
+
+    public FrameGate(int width, int height, int frameRate, long keepaliveMs, RecordingMetrics metrics) {
+        this.width = width;
+        this.height = height;
+        this.sampleWidth = Math.max(1, width / SAMPLE_DIVISOR);
+        this.sampleHeight = Math.max(1, height / SAMPLE_DIVISOR);
+        this.minFrameIntervalNs = 1_000_000_000L / Math.max(1, frameRate);
+        this.keepaliveNs = keepaliveMs * 1_000_000L;
+        this.metrics = metrics;
+
+        thread = new HandlerThread(TAG);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        try {
+            runSync(this::initGl);
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    // The VirtualDisplay renders into this
+    public Surface getInputSurface() {
+        return inputSurface;
+    }
+
+    // Blocks until the GL thread has let go of the previous surface, so the caller may release it
+    public void setOutputSurface(@Nullable Surface surface) {
+        runSync(() -> {
+            handler.removeCallbacks(deferredDraw);
+            if (outputSurface != EGL14.EGL_NO_SURFACE) {
+                makeCurrent(pbuffer);
+                EGL14.eglDestroySurface(eglDisplay, outputSurface);
+                outputSurface = EGL14.EGL_NO_SURFACE;
+            }
+            if (surface == null) return;
+            outputSurface = EGL14.eglCreateWindowSurface(eglDisplay, eglConfig, surface, new int[]{EGL14.EGL_NONE}, 0);
+            if (outputSurface == null || outputSurface == EGL14.EGL_NO_SURFACE) {
+                outputSurface = EGL14.EGL_NO_SURFACE;
+                throw new IllegalStateException("eglCreateWindowSurface failed: " + EGL14.eglGetError());
+            }
+            makeCurrent(outputSurface);
+            // A new output always starts with the current picture
+            lastOutputNs = 0;
+            dirty = true;
+            if (hasFrame) maybeDraw(System.nanoTime());
+        });
+    }
+
+    public long getFramesIn() {
+        return framesIn;
+    }
+
+    public long getFramesOut() {
+        return framesOut;
+    }
+
+    public void release() {
+        if (thread.isAlive()) {
+            runSync(this::releaseGl);
+        }
+        thread.quitSafely();
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture texture) {
+        if (surfaceTexture == null) return;
+        surfaceTexture.updateTexImage();
+        surfaceTexture.getTransformMatrix(texMatrix);
+        framesIn++;
+        hasFrame = true;
+        dirty = true;
+        maybeDraw(surfaceTexture.getTimestamp());
+    }
+
+    private final Runnable deferredDraw = () -> maybeDraw(System.nanoTime());
+
+    private void maybeDraw(long timestampNs) {
+        if (outputSurface == EGL14.EGL_NO_SURFACE || !hasFrame) return;
+        handler.removeCallbacks(deferredDraw);
+
+        long since = timestampNs - lastOutputNs;
+        if (lastOutputNs != 0 && since < minFrameIntervalNs) {
+            // Over the frame rate; the latest picture goes out when the interval is up
+            scheduleDraw(minFrameIntervalNs - since);
+            return;
+        }
+        if (dirty) {
+            long hash = sampleHash();
+            dirty = false;
+            if (hash != lastHash || lastOutputNs == 0) {
+                lastHash = hash;
+                draw(timestampNs);
+                return;
+            }
+        }
+        if (lastOutputNs != 0 && since < keepaliveNs) {
+            scheduleDraw(keepaliveNs - since);
+            return;
+        }
+        draw(timestampNs);
+    }
+
+    private void scheduleDraw(long delayNs) {
+        handler.postDelayed(deferredDraw, Math.max(1, delayNs / 1_000_000L));
+    }
+
+    private void draw(long timestampNs) {
+        // Display timestamps and the keepalive clock are both CLOCK_MONOTONIC; keep them ordered
+        if (timestampNs <= lastOutputNs) timestampNs = lastOutputNs + 1000;
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(0, 0, width, height);
+        drawQuad(program, uTexMatrix);
+        EGLExt.eglPresentationTimeANDROID(eglDisplay, outputSurface, timestampNs);
+        if (!EGL14.eglSwapBuffers(eglDisplay, outputSurface)) {
+            Log.w(TAG, "eglSwapBuffers failed: " + EGL14.eglGetError());
+            return;
+        }
+        lastOutputNs = timestampNs;
+        framesOut++;
+        metrics.onFrameSubmitted();
+        scheduleDraw(keepaliveNs);
+    }
+
+    private long sampleHash() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, sampleFbo);
+        GLES20.glViewport(0, 0, sampleWidth, sampleHeight);
+        drawQuad(sampleProgram, uSampleTexMatrix);
+        samplePixels.clear();
+        GLES20.glReadPixels(0, 0, sampleWidth, sampleHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, samplePixels);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        // FNV-1a over whole pixels
+        IntBuffer pixels = samplePixels.asIntBuffer();
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0, n = pixels.limit(); i < n; i++) {
+            hash ^= pixels.get(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private void drawQuad(int program, int texMatrixLocation) {
+        GLES20.glUseProgram(program);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, oesTexture);
+        GLES20.glUniformMatrix4fv(texMatrixLocation, 1, false, texMatrix, 0);
+        quad.position(0);
+        GLES20.glVertexAttribPointer(POSITION, 2, GLES20.GL_FLOAT, false, 16, quad);
+        GLES20.glEnableVertexAttribArray(POSITION);
+        quad.position(2);
+        GLES20.glVertexAttribPointer(TEX_COORD, 2, GLES20.GL_FLOAT, false, 16, quad);
+        GLES20.glEnableVertexAttribArray(TEX_COORD);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
+    private void initGl() {
+        eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(eglDisplay, version, 0, version, 1)) {
+            throw new IllegalStateException("eglInitialize failed");
+        }
+        int[] configAttribs = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_WINDOW_BIT | EGL14.EGL_PBUFFER_BIT,
+                EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] count = new int[1];
+        if (!EGL14.eglChooseConfig(eglDisplay, configAttribs, 0, configs, 0, 1, count, 0) || count[0] == 0) {
+            throw new IllegalStateException("No recordable EGL config");
+        }
+        eglConfig = configs[0];
+        eglContext = EGL14.eglCreateContext(eglDisplay, eglConfig, EGL14.EGL_NO_CONTEXT,
+                new int[]{EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE}, 0);
+        if (eglContext == null || eglContext == EGL14.EGL_NO_CONTEXT) {
+            eglContext = EGL14.EGL_NO_CONTEXT;
+            throw new IllegalStateException("eglCreateContext failed: " + EGL14.eglGetError());
+        }
+        pbuffer = EGL14.eglCreatePbufferSurface(eglDisplay, eglConfig,
+                new int[]{EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE}, 0);
+        makeCurrent(pbuffer);
+
+        program = createProgram(FRAGMENT_SHADER);
+        uTexMatrix = GLES20.glGetUniformLocation(program, "uTexMatrix");
+        sampleProgram = createProgram(SAMPLE_SHADER);
+        uSampleTexMatrix = GLES20.glGetUniformLocation(sampleProgram, "uTexMatrix");
+        GLES20.glUseProgram(sampleProgram);
+        GLES20.glUniform2f(GLES20.glGetUniformLocation(sampleProgram, "uTexel"), 1f / width, 1f / height);
+        quad = ByteBuffer.allocateDirect(QUAD.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        quad.put(QUAD).position(0);
+
+        int[] ids = new int[2];
+        GLES20.glGenTextures(2, ids, 0);
+        oesTexture = ids[0];
+        sampleTexture = ids[1];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, oesTexture);
+        setTextureParams(GLES11Ext.GL_TEXTURE_EXTERNAL_OES);
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, sampleTexture);
+        setTextureParams(GLES20.GL_TEXTURE_2D);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, sampleWidth, sampleHeight, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glGenFramebuffers(1, ids, 0);
+        sampleFbo = ids[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, sampleFbo);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, sampleTexture, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            throw new IllegalStateException("Sample framebuffer incomplete: " + status);
+        }
+        samplePixels = ByteBuffer.allocateDirect(sampleWidth * sampleHeight * 4).order(ByteOrder.nativeOrder());
+
+        surfaceTexture = new SurfaceTexture(oesTexture);
+        surfaceTexture.setDefaultBufferSize(width, height);
+        surfaceTexture.setOnFrameAvailableListener(this, handler);
+        inputSurface = new Surface(surfaceTexture);
+    }
+
+    private void releaseGl() {
+        handler.removeCallbacks(deferredDraw);
+        if (inputSurface != null) inputSurface.release();
+        if (surfaceTexture != null) surfaceTexture.release();
+        inputSurface = null;
+        surfaceTexture = null;
+        if (eglDisplay == EGL14.EGL_NO_DISPLAY) return;
+
+        if (eglContext != EGL14.EGL_NO_CONTEXT && pbuffer != EGL14.EGL_NO_SURFACE) {
+            makeCurrent(pbuffer);
+            GLES20.glDeleteFramebuffers(1, new int[]{sampleFbo}, 0);
+            GLES20.glDeleteTextures(2, new int[]{oesTexture, sampleTexture}, 0);
+            GLES20.glDeleteProgram(program);
+            GLES20.glDeleteProgram(sampleProgram);
+        }
+        EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        if (outputSurface != EGL14.EGL_NO_SURFACE) EGL14.eglDestroySurface(eglDisplay, outputSurface);
+        if (pbuffer != EGL14.EGL_NO_SURFACE) EGL14.eglDestroySurface(eglDisplay, pbuffer);
+        if (eglContext != EGL14.EGL_NO_CONTEXT) EGL14.eglDestroyContext(eglDisplay, eglContext);
+        EGL14.eglReleaseThread();
+        EGL14.eglTerminate(eglDisplay);
+        outputSurface = EGL14.EGL_NO_SURFACE;
+        pbuffer = EGL14.EGL_NO_SURFACE;
+        eglContext = EGL14.EGL_NO_CONTEXT;
+        eglDisplay = EGL14.EGL_NO_DISPLAY;
+    }
+
+    private void makeCurrent(EGLSurface surface) {
+        if (!EGL14.eglMakeCurrent(eglDisplay, surface, surface, eglContext)) {
+            throw new IllegalStateException("eglMakeCurrent failed: " + EGL14.eglGetError());
+        }
+    }
+
+    private static void setTextureParams(int target) {
+        GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+    }
+
+    // Both programs share the vertex shader and its attribute slots
+    private static int createProgram(String fragmentSource) {
+        int vertex = loadShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+        int fragment = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertex);
+        GLES20.glAttachShader(program, fragment);
+        GLES20.glBindAttribLocation(program, POSITION, "aPosition");
+        GLES20.glBindAttribLocation(program, TEX_COORD, "aTexCoord");
+        GLES20.glLinkProgram(program);
+        int[] linked = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linked, 0);
+        GLES20.glDeleteShader(vertex);
+        GLES20.glDeleteShader(fragment);
+        if (linked[0] != GLES20.GL_TRUE) {
+            String log = GLES20.glGetProgramInfoLog(program);
+            GLES20.glDeleteProgram(program);
+            throw new IllegalStateException("Program link failed: " + log);
+        }
+        return program;
+    }
+
+    private static int loadShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] compiled = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+        if (compiled[0] == 0) {
+            String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            throw new IllegalStateException("Shader compile failed: " + log);
+        }
+        return shader;
+    }
+
+    private void runSync(@NonNull Runnable task) {
+        CountDownLatch done = new CountDownLatch(1);
+        RuntimeException[] error = new RuntimeException[1];
+        boolean posted = handler.post(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                error[0] = e;
+            } finally {
+                done.countDown();
+            }
+        });
+        if (!posted) return;
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (error[0] != null) throw error[0];
+    }
+}
@@ -0,0 +1,284 @@
+package com.jdpublication.webrecorder;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Blocks requests to ad and tracker hosts. Every listed domain is kept as a 64-bit FNV-1a hash of
+// its characters taken right to left, in one sorted array. A lookup walks the host once from the end
+// and binary-searches the hash at each label boundary, so "a.ads.example.com" is checked as
+// "com", "example.com", "ads.example.com" and itself without allocating. The compiled array is
+// saved as a binary snapshot and rebuilt only when the bundled or imported lists change. Hosts on
+// the current playlist's allow-list are never blocked.
+public class HostBlocklist {
+
+    private static final String TAG = "HostBlocklist";
+    private static final int SNAPSHOT_MAGIC = 0x57524248;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final String SEED_ASSET = "blocklist.txt";
+    private static final int MAX_TRACKED_HOSTS = 512;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static HostBlocklist instance;
+
+    private final Context context;
+    private final File dir;
+    private final File snapshotFile;
+    private final File importedFile;
+    private final ExecutorService loader = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private volatile boolean enabled = true;
+    private volatile long[] blocked = new long[0];
+    private volatile long[] allowed = new long[0];
+    private final AtomicLong blockedCount = new AtomicLong();
+    private final Map<String, AtomicInteger> blockedByHost = new ConcurrentHashMap<>();
+
+    public interface ImportCallback {
+        // Main thread; error is null on success
+        void onImported(int domains, @Nullable Exception error);
+    }
+
+    public static synchronized HostBlocklist get(Context context) {
+        if (instance == null) instance = new HostBlocklist(context.getApplicationContext());
+        return instance;
+    }
+
+    private HostBlocklist(Context context) {
+        this.context = context;
+        dir = new File(context.getFilesDir(), "blocklist");
+        snapshotFile = new File(dir, "hosts.bin");
+        importedFile = new File(dir, "imported.txt");
+        loader.execute(this::load);
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    // Any thread; hosts as WebView reports them. Empty until the snapshot has loaded.
+    public boolean isBlocked(@Nullable String host) {
+        if (!enabled || host == null || host.isEmpty()) return false;
+        long[] block = blocked;
+        long[] allow = allowed;
+        boolean match = false;
+        long hash = FNV_OFFSET;
+        for (int i = host.length() - 1; i >= 0; i--) {
+            char c = host.charAt(i);
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            hash = (hash ^ c) * FNV_PRIME;
+            if (i == 0 || host.charAt(i - 1) == '.') {
+                // An allowed suffix wins even over a broader blocked one
+                if (allow.length > 0 && Arrays.binarySearch(allow, hash) >= 0) return false;
+                if (!match && Arrays.binarySearch(block, hash) >= 0) match = true;
+            }
+        }
+        return match;
+    }
+
+    public void onBlocked(String host) {
+        blockedCount.incrementAndGet();
+        AtomicInteger count = blockedByHost.get(host);
+        if (count == null && blockedByHost.size() < MAX_TRACKED_HOSTS) {
+            count = blockedByHost.computeIfAbsent(host, h -> new AtomicInteger());
+        }
+        if (count != null) count.incrementAndGet();
+    }
+
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    // Blocked hosts, most frequent first
+    public List<String> getBlockedHosts() {
+        List<Map.Entry<String, AtomicInteger>> counts = new ArrayList<>(blockedByHost.entrySet());
+        counts.sort((a, b) -> Integer.compare(b.getValue().get(), a.getValue().get()));
+        List<String> hosts = new ArrayList<>(counts.size());
+        for (Map.Entry<String, AtomicInteger> entry : counts) hosts.add(entry.getKey());
+        return hosts;
+    }
+
+    public int getBlockedCount(String host) {
+        AtomicInteger count = blockedByHost.get(host);
+        return count != null ? count.get() : 0;
+    }
+
+    public void setAllowList(Collection<String> hosts) {
+        long[] hashes = new long[hosts.size()];
+        int i = 0;
+        for (String host : hosts) hashes[i++] = hash(host);
+        Arrays.sort(hashes);
+        allowed = hashes;
+    }
+
+    // Adds a list in hosts, plain-domain or ||domain^ format to the bundled one
+    public void importList(Uri uri, ImportCallback callback) {
+        loader.execute(() -> {
+            int domains = 0;
+            Exception error = null;
+            try (InputStream in = context.getContentResolver().openInputStream(uri)) {
+                if (in == null) throw new IOException("Unable to open " + uri);
+                if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+                File tmp = new File(dir, "imported.tmp");
+                try (OutputStream out = new FileOutputStream(tmp)) {
+                    byte[] buffer = new byte[64 * 1024];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+                }
+                if (!tmp.renameTo(importedFile)) throw new IOException("Cannot replace " + importedFile);
+                domains = compile();
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Failed to import " + uri, e);
+                error = e;
+            }
+            int count = domains;
+            Exception failure = error;
+            mainHandler.post(() -> callback.onImported(count, failure));
+        });
+    }
+
+    // Loader thread
+    private void load() {
+        long started = System.nanoTime();
+        try {
+            if (isSnapshotCurrent()) {
+                blocked = readSnapshot();
+            } else {
+                compile();
+            }
+            Log.d(TAG, "Loaded " + blocked.length + " hosts in " + (System.nanoTime() - started) / 1000 + " us");
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to load blocklist", e);
+        }
+    }
+
+    // The seed list only changes with the app, imports replace the file
+    private boolean isSnapshotCurrent() {
+        if (!snapshotFile.isFile()) return false;
+        long built = snapshotFile.lastModified();
+        if (importedFile.isFile() && importedFile.lastModified() > built) return false;
+        try {
+            long installed = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+            return installed < built;
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    private long[] readSnapshot() throws IOException {
+        try (FileChannel channel = new FileInputStream(snapshotFile).getChannel()) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION) throw new IOException("Bad snapshot");
+            long[] hashes = new long[buffer.getInt()];
+            buffer.asLongBuffer().get(hashes);
+            return hashes;
+        }
+    }
+
+    private int compile() throws IOException {
+        long[] hashes = new long[1024];
+        int count = 0;
+        List<InputStream> sources = new ArrayList<>();
+        sources.add(context.getAssets().open(SEED_ASSET));
+        if (importedFile.isFile()) sources.add(new FileInputStream(importedFile));
+        for (InputStream source : sources) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(source, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    for (String domain : parseLine(line)) {
+                        if (count == hashes.length) hashes = Arrays.copyOf(hashes, count * 2);
+                        hashes[count++] = hash(domain);
+                    }
+                }
+            }
+        }
+        Arrays.sort(hashes, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || hashes[i] != hashes[unique - 1]) hashes[unique++] = hashes[i];
+        }
+        long[] compiled = Arrays.copyOf(hashes, unique);
+        writeSnapshot(compiled);
+        blocked = compiled;
+        return unique;
+    }
+
+    private void writeSnapshot(long[] hashes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        File tmp = new File(dir, "hosts.tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(12 + hashes.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(hashes.length);
+        buffer.asLongBuffer().put(hashes);
+        try (FileOutputStream out = new FileOutputStream(tmp); FileChannel channel = out.getChannel()) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(snapshotFile)) throw new IOException("Cannot replace " + snapshotFile);
+    }
+
+    static List<String> parseLine(String line) {
+        int comment = line.indexOf('#');
+        if (comment >= 0) line = line.substring(0, comment);
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("!") || line.startsWith("[")) return Collections.emptyList();
+        List<String> domains = new ArrayList<>(1);
+        if (line.startsWith("||")) {
+            // Adblock syntax: only plain host rules are usable here
+            int end = line.indexOf('^');
+            if (end < 0 || end != line.length() - 1) return domains;
+            addDomain(domains, line.substring(2, end));
+        } else {
+            // hosts format: address first, then any number of hosts; a bare domain list has no address
+            String[] fields = line.split("\\s+");
+            for (int i = fields.length >= 2 ? 1 : 0; i < fields.length; i++) addDomain(domains, fields[i]);
+        }
+        return domains;
+    }
+
+    private static void addDomain(List<String> domains, String host) {
+        host = host.toLowerCase(Locale.ROOT);
+        if (host.equals("localhost") || host.indexOf('.') < 0 || host.contains("/") || host.contains("*")) return;
+        domains.add(host);
+    }
+
+    static long hash(String domain) {
+        long hash = FNV_OFFSET;
+        for (int i = domain.length() - 1; i >= 0; i--) {
+            char c = domain.charAt(i);
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            hash = (hash ^ c) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
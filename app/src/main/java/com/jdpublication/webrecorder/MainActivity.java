@@ -3,21 +3,26 @@ package com.jdpublication.webrecorder;
 import android.Manifest;
 import android.annotation.SuppressLint;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
+import android.media.MediaFormat;
 import android.media.projection.MediaProjectionManager;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.provider.Settings;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
+import android.view.WindowManager;
 import android.webkit.WebView;
-import android.webkit.WebViewClient;
 import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -26,7 +31,9 @@ import androidx.activity.OnBackPressedCallback;
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.ActionBar;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 import androidx.core.app.ActivityCompat;
@@ -35,29 +42,67 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final int REQUEST_CODE_MEDIA_PROJECTION = 101;
     private static final int REQUEST_CODE_OVERLAY_PERMISSION = 102;
     private static final int REQUEST_CODE_AUDIO_PERMISSION = 103;
+    private static final int LOAD_BATCH_SIZE = 500;
+    // The choices offered in Settings, in the order of their labels
+    private static final int[] PREFETCH_DEPTHS = {0, 1, 2};
+    private static final int[] BATCH_DURATIONS_SEC = {5, 10, 20, 30, 60, 120};
+    private static final String[] ENGINES = {RecorderSettings.ENGINE_CODEC, RecorderSettings.ENGINE_MEDIA_RECORDER};
+    private static final int[] BITRATE_MODES = {EncoderConfig.BITRATE_MODE_VBR, EncoderConfig.BITRATE_MODE_CBR, EncoderConfig.BITRATE_MODE_CQ};
+    private static final int[] KEYFRAME_INTERVALS_SEC = {1, 2, 5, 10};
+    private static final int[] SEGMENT_MINUTES = {0, 10, 30, 60, 120};
+    private static final int[] SEGMENT_MEGABYTES = {0, 256, 512, 1024, 2048};
+    private static final int[] RESOURCE_CACHE_MEGABYTES = {0, 64, 128, 256, 512};
+    private static final String[] SNAPSHOT_FORMATS = {RecorderSettings.SNAPSHOT_WEBP, RecorderSettings.SNAPSHOT_PNG};
+    private static final int[] AUTO_SCROLL_DP_PER_SECOND = {100, 200, 400, 800};
 
     private WebView webView;
+    private RecorderWebViewClient webViewClient;
+    private PagePrefetcher prefetcher;
+    private RecorderSettings settings;
+    private PageLoadTelemetry telemetry;
+    private ResourceCache resourceCache;
+    private HostBlocklist blocklist;
+    private WebViewCapture webViewCapture;
+    private ParallelRecorder parallelRecorder;
+    private PageSnapshotter snapshotter;
+    private final AutoScroller autoScroller = new AutoScroller(this::onReachedBottom);
+    private BatchRecorder batchRecorder;
+    private boolean pendingBatch = false;
     private Button nextButton, prevButton;
     private FloatingActionButton fabRecord, fabPause;
     private TextView placeholderView;
-    private final List<UrlData> urlDataList = new ArrayList<>();
+    private TextView statsOverlay;
+    private PlaylistStore playlist = new PlaylistStore();
+    private PlaylistCache playlistCache;
+    private String playlistKey;
+    private ProgressJournal journal;
+    private RecordedIndex recordedIndex;
     private int currentIndex = -1;
+    // Entry being recorded outside a batch run
+    private int manualIndex = -1;
+    private int loadGeneration = 0;
+    private boolean isLoadingPlaylist = false;
 
     private MediaProjectionManager mediaProjectionManager;
     private boolean isRecording = false;
@@ -66,17 +111,132 @@ public class MainActivity extends AppCompatActivity {
 
     private final ActivityResultLauncher<String[]> filePickerLauncher = registerForActivityResult(new ActivityResultContracts.OpenDocument(), uri -> {
         if (uri != null) {
-            parseExcelFile(uri);
+            loadPlaylist(uri);
+        }
+    });
+
+    private final ActivityResultLauncher<String[]> blocklistPickerLauncher = registerForActivityResult(new ActivityResultContracts.OpenDocument(), uri -> {
+        if (uri != null) {
+            importBlocklist(uri);
         }
     });
 
+    // Bound without BIND_AUTO_CREATE so stopService still ends the recording
+    private RecordingService boundService;
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            boundService = ((RecordingService.LocalBinder) service).getService();
+            boundService.addStatsListener(statsListener);
+            boundService.setDirectCaptureListener(webViewCapture);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            boundService = null;
+        }
+    };
+
+    private final RecordingService.StatsListener statsListener = stats -> {
+        if (!isRecording) return;
+        ActionBar actionBar = getSupportActionBar();
+        if (actionBar != null) actionBar.setSubtitle(stats.formatElapsed());
+        if (settings.isStatsOverlayEnabled()) {
+            statsOverlay.setText(stats.formatDetails());
+            statsOverlay.setVisibility(View.VISIBLE);
+        } else {
+            statsOverlay.setVisibility(View.GONE);
+        }
+    };
+
     private final BroadcastReceiver recordingStoppedReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            onRecordingStopped();
+            onRecordingStopped(intent.getBooleanExtra(RecordingService.EXTRA_SUCCESS, false));
+        }
+    };
+
+    private final BroadcastReceiver segmentFailedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            batchRecorder.onSegmentFailed();
         }
     };
 
+    private final BroadcastReceiver transcodeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            float ratio = intent.getFloatExtra(TranscodeQueue.EXTRA_RATIO, 1f);
+            long seconds = intent.getLongExtra(TranscodeQueue.EXTRA_ELAPSED_MS, 0) / 1000;
+            Toast.makeText(MainActivity.this, "Recording shrunk to " + Math.round(ratio * 100) + "% in " + seconds + " s", Toast.LENGTH_SHORT).show();
+        }
+    };
+
+    // One host for every way of walking the playlist: the batch recorder on the visible view, and the
+    // parallel recorder and snapshotter on their own offscreen views
+    private final class PlaylistHost implements BatchRecorder.Host, PlaylistRunner.Host {
+        @Override
+        public int getEntryCount() {
+            return playlist.size();
+        }
+
+        @Override
+        public String getFilename(int index) {
+            return playlist.getFilename(index);
+        }
+
+        @Override
+        public String getWebUrl(int index) {
+            return playlist.getWebUrl(index);
+        }
+
+        @Override
+        public boolean shouldSkip(int index) {
+            return settings.isSkipRecordedEnabled() && isRecorded(index);
+        }
+
+        @Override
+        public void onEntryState(int index, int state) {
+            if (journal != null) journal.record(index, state);
+            updatePlaylistTitle();
+        }
+
+        @Override
+        public void showEntry(int index) {
+            currentIndex = index;
+            loadCurrentUrl();
+            updateNavigationButtons();
+        }
+
+        @Override
+        public void onSegmentStarted(int index) {
+            startAutoScroll();
+        }
+
+        @Override
+        public void onSegmentEnded(int index) {
+            autoScroller.stop();
+        }
+
+        @Override
+        public void onBatchFinished() {
+            Toast.makeText(MainActivity.this, "Batch recording finished.", Toast.LENGTH_LONG).show();
+            exportLoadReport();
+        }
+
+        @Override
+        public void onRunFinished(PlaylistRunner runner, int completed) {
+            getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+            String message = runner == snapshotter
+                    ? "Snapshots finished, " + completed + " pages saved to Pictures/WebSnapshots"
+                    : "Parallel recording finished, " + completed + " entries recorded.";
+            Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
+            onRecordingStopped(completed > 0);
+        }
+    }
+
+    private final PlaylistHost playlistHost = new PlaylistHost();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -85,12 +245,22 @@ public class MainActivity extends AppCompatActivity {
         Toolbar toolbar = findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
 
+        settings = new RecorderSettings(this);
+        telemetry = new PageLoadTelemetry(this);
+        resourceCache = ResourceCache.get(this);
+        blocklist = HostBlocklist.get(this);
+        blocklist.setEnabled(settings.isBlockingEnabled());
+        webViewCapture = new WebViewCapture();
+        batchRecorder = new BatchRecorder(this, playlistHost, settings);
         initializeViews();
         setupWebView();
         setupClickListeners();
 
         mediaProjectionManager = (MediaProjectionManager) getSystemService(MEDIA_PROJECTION_SERVICE);
+        playlistCache = new PlaylistCache(this);
+        recordedIndex = new RecordedIndex(this, this::updatePlaylistTitle);
         LocalBroadcastManager.getInstance(this).registerReceiver(recordingStoppedReceiver, new IntentFilter(RecordingService.ACTION_RECORDING_STOPPED));
+        LocalBroadcastManager.getInstance(this).registerReceiver(segmentFailedReceiver, new IntentFilter(RecordingService.ACTION_SEGMENT_FAILED));
 
         getOnBackPressedDispatcher().addCallback(this, new OnBackPressedCallback(true) {
             @Override
@@ -98,6 +268,13 @@ public class MainActivity extends AppCompatActivity {
                 handleBackNavigation();
             }
         });
+
+        restorePlaylist();
+        // Finishes recordings a previous process left half post-processed
+        RecordingPublisher.get(this).recover();
+        PostProcessor.get(this).resume();
+        TranscodeQueue.get(this).resume();
+        LocalBroadcastManager.getInstance(this).registerReceiver(transcodeReceiver, new IntentFilter(TranscodeQueue.ACTION_TRANSCODE_FINISHED));
     }
 
     @Override
@@ -106,19 +283,50 @@ public class MainActivity extends AppCompatActivity {
         isRecording = RecordingService.isRecording;
         isPaused = RecordingService.isPaused;
         updateUiForRecordingState();
+    }
 
-        if (isRecording && !isPaused) {
-            handler.removeCallbacks(runnable);
-            handler.post(runnable);
+    @Override
+    protected void onStart() {
+        super.onStart();
+        bindService(new Intent(this, RecordingService.class), serviceConnection, 0);
+    }
+
+    @Override
+    protected void onStop() {
+        if (boundService != null) {
+            boundService.removeStatsListener(statsListener);
+            boundService.setDirectCaptureListener(null);
+            boundService = null;
         }
+        webViewCapture.onCaptureSurface(null, 0, 0, 0);
+        unbindService(serviceConnection);
+        // Hidden WebViews stop rendering, so the sessions would only record stale frames
+        if (runningRunner() != null && !isPaused) pauseRecording();
+        super.onStop();
     }
 
     @Override
     protected void onDestroy() {
         LocalBroadcastManager.getInstance(this).unregisterReceiver(recordingStoppedReceiver);
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(transcodeReceiver);
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(segmentFailedReceiver);
+        setJournal(null);
+        parallelRecorder.destroy();
+        snapshotter.destroy();
+        prefetcher.destroy();
+        telemetry.destroy();
+        resourceCache.flush();
+        recordedIndex.destroy();
         super.onDestroy();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        prefetcher.onTrimMemory(level);
+        parallelRecorder.onTrimMemory(level);
+    }
+
     private void initializeViews() {
         webView = findViewById(R.id.webView);
         nextButton = findViewById(R.id.nextButton);
@@ -126,14 +334,27 @@ public class MainActivity extends AppCompatActivity {
         fabRecord = findViewById(R.id.fab_record);
         fabPause = findViewById(R.id.fab_pause);
         placeholderView = findViewById(R.id.placeholder_view);
+        statsOverlay = findViewById(R.id.stats_overlay);
         updateNavigationButtons();
     }
 
-    @SuppressLint("SetJavaScriptEnabled")
     private void setupWebView() {
-        webView.getSettings().setJavaScriptEnabled(true);
-        webView.getSettings().setDomStorageEnabled(true);
-        webView.getSettings().setDatabaseEnabled(true);
+        webViewClient = new RecorderWebViewClient(this::onPageFinished, telemetry, resourceCache, blocklist);
+        configureWebView(webView);
+        webViewCapture.setView(webView);
+        prefetcher = new PagePrefetcher(this, (ViewGroup) webView.getParent(), this::configureWebView, settings, telemetry);
+        OffscreenViews offscreenViews = new OffscreenViews(this, (ViewGroup) webView.getParent(), this::configureWebView, telemetry);
+        parallelRecorder = new ParallelRecorder(this, offscreenViews, settings, playlistHost);
+        snapshotter = new PageSnapshotter(this, offscreenViews, settings, playlistHost);
+    }
+
+    @SuppressLint("SetJavaScriptEnabled")
+    private void configureWebView(WebView view) {
+        view.getSettings().setJavaScriptEnabled(true);
+        view.getSettings().setDomStorageEnabled(true);
+        view.getSettings().setDatabaseEnabled(true);
+        view.setWebViewClient(webViewClient);
+        autoScroller.install(view);
     }
 
     private void handleBackNavigation() {
@@ -167,6 +388,7 @@ public class MainActivity extends AppCompatActivity {
                 stopRecording();
             } else {
                 if (currentIndex != -1) {
+                    pendingBatch = false;
                     startRecording();
                 } else {
                     Toast.makeText(this, "Please select a file and load a URL first.", Toast.LENGTH_SHORT).show();
@@ -182,118 +404,443 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+    @Nullable
+    private PlaylistRunner runningRunner() {
+        if (snapshotter.isRunning()) return snapshotter;
+        if (parallelRecorder.isRunning()) return parallelRecorder;
+        return null;
+    }
+
     private void pauseRecording() {
+        PlaylistRunner runner = runningRunner();
+        if (runner != null) {
+            runner.pause();
+            isPaused = true;
+            updateUiForRecordingState();
+            return;
+        }
         Intent intent = new Intent(this, RecordingService.class);
         intent.setAction(RecordingService.ACTION_PAUSE);
         startService(intent);
+        batchRecorder.pause();
+        autoScroller.pause();
         isPaused = true;
         updateUiForRecordingState();
     }
 
     private void resumeRecording() {
+        PlaylistRunner runner = runningRunner();
+        if (runner != null) {
+            runner.resume();
+            isPaused = false;
+            updateUiForRecordingState();
+            return;
+        }
         Intent intent = new Intent(this, RecordingService.class);
         intent.setAction(RecordingService.ACTION_RESUME);
         startService(intent);
+        batchRecorder.resume();
+        autoScroller.resume();
         isPaused = false;
         updateUiForRecordingState();
     }
 
-    private void parseExcelFile(Uri uri) {
-        placeholderView.setText("Loading Excel File...");
+    private void loadPlaylist(Uri uri) {
+        placeholderView.setText("Loading Playlist...");
+        placeholderView.setVisibility(View.VISIBLE);
+        webView.setVisibility(View.GONE);
+        playlist = new PlaylistStore();
+        playlistKey = null;
+        setJournal(null);
+        applyAllowList();
+        currentIndex = -1;
+        isLoadingPlaylist = true;
+        updateNavigationButtons();
+
+        // Stale batches from a previous pick are dropped by comparing generations
+        final int generation = ++loadGeneration;
 
         new Thread(() -> {
-            try (InputStream is = getContentResolver().openInputStream(uri)) {
-                assert is != null;
-                Workbook workbook = new XSSFWorkbook(is);
-                Sheet sheet = workbook.getSheetAt(0);
-                Iterator<Row> rowIterator = sheet.iterator();
-
-                List<UrlData> tempList = new ArrayList<>();
-                if (rowIterator.hasNext()) rowIterator.next(); // Skip header
-                while (rowIterator.hasNext()) {
-                    Row row = rowIterator.next();
-                    Cell fileNameCell = row.getCell(0);
-                    Cell urlCell = row.getCell(1);
-                    if (fileNameCell != null && urlCell != null) {
-                        tempList.add(new UrlData(fileNameCell.getStringCellValue(), urlCell.getStringCellValue()));
+            String key = cacheKeyFor(uri);
+            PlaylistStore cached = key != null ? playlistCache.load(key) : null;
+            if (cached != null) {
+                ProgressJournal opened = openJournal(key, cached.size());
+                int index = resumeIndex(key, cached, opened);
+                runOnUiThread(() -> showPlaylist(generation, key, cached, index, opened));
+                return;
+            }
+
+            File copy = new File(getCacheDir(), "import-" + generation);
+            AtomicInteger entries = new AtomicInteger();
+            try {
+                openPlaylistReader(uri, copy).read(new PlaylistReader.Listener() {
+                    private List<UrlData> batch = new ArrayList<>();
+                    private long rows = 0;
+                    private boolean firstFlushed = false;
+
+                    @Override
+                    public void onEntry(UrlData data) {
+                        entries.incrementAndGet();
+                        batch.add(data);
+                        // Flush the very first row right away so the first URL can load immediately
+                        if (batch.size() >= LOAD_BATCH_SIZE || !firstFlushed) {
+                            firstFlushed = true;
+                            flush();
+                        }
                     }
-                }
 
+                    @Override
+                    public void onProgress(long processed, long total) {
+                        rows = processed;
+                        flush();
+                    }
+
+                    private void flush() {
+                        List<UrlData> chunk = batch;
+                        batch = new ArrayList<>();
+                        long processed = rows;
+                        runOnUiThread(() -> appendLoadedEntries(generation, chunk, processed));
+                    }
+                });
+
+                // The journal is sized by the playlist, so it is only opened once every entry is in
+                ProgressJournal opened = key != null ? openJournal(key, entries.get()) : null;
                 // Post results back to the Main Thread
                 runOnUiThread(() -> {
-                    urlDataList.clear();
-                    urlDataList.addAll(tempList);
-                    if (!urlDataList.isEmpty()) {
-                        currentIndex = 0;
-                        loadCurrentUrl();
-                        placeholderView.setVisibility(View.GONE);
-                        webView.setVisibility(View.VISIBLE);
+                    if (generation != loadGeneration) {
+                        if (opened != null) opened.close();
+                        return;
+                    }
+                    isLoadingPlaylist = false;
+                    setJournal(opened);
+                    if (playlist.isEmpty()) {
+                        placeholderView.setText(R.string.select_an_excel_file_to_begin);
+                        Toast.makeText(MainActivity.this, "Playlist file is empty or in wrong format.", Toast.LENGTH_LONG).show();
                     } else {
-                        Toast.makeText(MainActivity.this, "Excel file is empty or in wrong format.", Toast.LENGTH_LONG).show();
+                        updatePlaylistTitle();
+                        if (key != null) savePlaylist(key);
                     }
                     updateNavigationButtons();
                 });
 
             } catch (Exception e) {
-                Log.e("ExcelError", "parseExcelFile: ", e);
+                Log.e("ExcelError", "loadPlaylist: ", e);
                 runOnUiThread(() -> {
+                    if (generation != loadGeneration) return;
+                    isLoadingPlaylist = false;
                     placeholderView.setText("Failed to load file.");
-                    Toast.makeText(MainActivity.this, "Failed to read Excel file.", Toast.LENGTH_LONG).show();
+                    Toast.makeText(MainActivity.this, "Failed to read playlist file.", Toast.LENGTH_LONG).show();
                 });
+            } finally {
+                //noinspection ResultOfMethodCallIgnored
+                copy.delete();
+            }
+        }).start();
+    }
+
+    private void appendLoadedEntries(int generation, List<UrlData> chunk, long rowsRead) {
+        if (generation != loadGeneration) return;
+        playlist.addAll(chunk);
+        if (currentIndex == -1) {
+            if (playlist.isEmpty()) {
+                placeholderView.setText("Loading Playlist... " + rowsRead + " rows");
+                return;
             }
+            currentIndex = 0;
+            loadCurrentUrl();
+            placeholderView.setVisibility(View.GONE);
+            webView.setVisibility(View.VISIBLE);
+        } else {
+            updatePlaylistTitle();
+            prefetchAhead();
+        }
+        updateNavigationButtons();
+    }
+
+    // The last opened playlist stays in the cache, so a cold start maps it back in instead of re-parsing
+    private void restorePlaylist() {
+        String key = playlistCache.getActiveKey();
+        if (key == null) return;
+        final int generation = ++loadGeneration;
+
+        new Thread(() -> {
+            PlaylistStore restored = playlistCache.load(key);
+            if (restored == null) return;
+            ProgressJournal opened = openJournal(key, restored.size());
+            int index = resumeIndex(key, restored, opened);
+            runOnUiThread(() -> showPlaylist(generation, key, restored, index, opened));
         }).start();
     }
 
+    @Nullable
+    private ProgressJournal openJournal(String key, int size) {
+        try {
+            return playlistCache.openJournal(key, size);
+        } catch (IOException e) {
+            Log.w("ExcelError", "openJournal: batch progress will not be kept", e);
+            return null;
+        }
+    }
+
+    // A playlist with batch progress resumes at its first unfinished entry, otherwise where it was left
+    private int resumeIndex(String key, PlaylistStore store, @Nullable ProgressJournal opened) {
+        if (opened == null || opened.isEmpty()) return playlistCache.getIndex(key);
+        return Math.min(opened.firstUnfinished(store.size()), store.size() - 1);
+    }
+
+    private void setJournal(@Nullable ProgressJournal opened) {
+        if (journal != null && journal != opened) journal.close();
+        journal = opened;
+    }
+
+    private void showPlaylist(int generation, String key, PlaylistStore store, int index, @Nullable ProgressJournal opened) {
+        if (generation != loadGeneration || store.isEmpty()) {
+            if (opened != null) opened.close();
+            return;
+        }
+        isLoadingPlaylist = false;
+        playlist = store;
+        playlistKey = key;
+        setJournal(opened);
+        applyAllowList();
+        playlistCache.setActiveKey(key);
+        currentIndex = Math.max(0, Math.min(index, store.size() - 1));
+        loadCurrentUrl();
+        placeholderView.setVisibility(View.GONE);
+        webView.setVisibility(View.VISIBLE);
+        updateNavigationButtons();
+    }
+
+    private void savePlaylist(String key) {
+        PlaylistStore snapshot = playlist;
+        playlistKey = key;
+        applyAllowList();
+        playlistCache.setActiveKey(key);
+        playlistCache.putIndex(key, currentIndex);
+        new Thread(() -> {
+            try {
+                playlistCache.store(key, snapshot);
+            } catch (IOException e) {
+                Log.e("ExcelError", "savePlaylist: ", e);
+            }
+        }).start();
+    }
+
+    private String cacheKeyFor(Uri uri) {
+        try {
+            return playlistCache.keyFor(uri);
+        } catch (IOException e) {
+            Log.w("ExcelError", "cacheKeyFor: parsing without cache", e);
+            return null;
+        }
+    }
+
+    private PlaylistReader openPlaylistReader(Uri uri, File copy) throws IOException {
+        if (isXlsxDocument(uri)) {
+            // XSSFReader needs random access to the zip, which a content stream cannot give us
+            copyToFile(uri, copy);
+            return new ExcelPlaylistReader(copy);
+        }
+        String type = getContentResolver().getType(uri);
+        char delimiter = "text/tab-separated-values".equals(type) ? '\t' : CsvPlaylistReader.DETECT_DELIMITER;
+        return new CsvPlaylistReader(mapDocument(uri, copy), delimiter);
+    }
+
+    private boolean isXlsxDocument(Uri uri) throws IOException {
+        try (InputStream in = getContentResolver().openInputStream(uri)) {
+            if (in == null) throw new IOException("Unable to open " + uri);
+            return ExcelPlaylistReader.isXlsx(in);
+        }
+    }
+
+    // The mapping stays valid after the descriptor is closed and the copy is deleted
+    private MappedByteBuffer mapDocument(Uri uri, File copy) throws IOException {
+        try (ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(uri, "r")) {
+            if (pfd == null) throw new IOException("Unable to open " + uri);
+            try (FileInputStream fis = new FileInputStream(pfd.getFileDescriptor())) {
+                return CsvPlaylistReader.map(fis.getChannel());
+            }
+        } catch (IOException e) {
+            // Streamed documents (e.g. cloud providers) hand out pipes, which cannot be mapped
+            Log.w("ExcelError", "mapDocument: falling back to a local copy", e);
+        }
+        copyToFile(uri, copy);
+        try (FileInputStream fis = new FileInputStream(copy)) {
+            return CsvPlaylistReader.map(fis.getChannel());
+        }
+    }
+
+    private void copyToFile(Uri uri, File target) throws IOException {
+        try (InputStream is = getContentResolver().openInputStream(uri); OutputStream os = new FileOutputStream(target)) {
+            if (is == null) throw new IOException("Unable to open " + uri);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+            }
+        }
+    }
+
     private void loadCurrentUrl() {
-        if (currentIndex >= 0 && currentIndex < urlDataList.size()) {
+        if (currentIndex >= 0 && currentIndex < playlist.size()) {
 
-            UrlData data = urlDataList.get(currentIndex);
+            UrlData data = playlist.get(currentIndex);
             isLoadedFromExcel = true;
+            if (playlistKey != null) playlistCache.putIndex(playlistKey, currentIndex);
 
-            webView.loadUrl(data.getWebUrl());
+            WebView prepared = prefetcher.take(data.getWebUrl());
+            if (prepared != null) {
+                swapWebView(prepared);
+                telemetry.attach(prepared, currentIndex, data.getFilename(), true);
+            } else {
+                telemetry.begin(webView, data.getWebUrl());
+                telemetry.attach(webView, currentIndex, data.getFilename(), false);
+                webView.loadUrl(data.getWebUrl());
+            }
 
-            // Clear history AFTER new page becomes base
-            webView.setWebViewClient(new WebViewClient() {
-                @Override
-                public void onPageFinished(WebView view, String url) {
-                    if (isLoadedFromExcel) {
-                        view.clearHistory();
-                    }
-                    updateBackButtonVisibility();
-                    isLoadedFromExcel = false;
-                    super.onPageFinished(view, url);
-                }
-            });
+            updatePlaylistTitle();
+            prefetchAhead();
+        }
+    }
+
+    private void swapWebView(WebView prepared) {
+        WebView previous = webView;
+        webView = prepared;
+        webView.setVisibility(previous.getVisibility());
+        webViewCapture.setView(webView);
+        prefetcher.recycle(previous);
+        if (webView.getProgress() == 100) {
+            // Already finished while in standby, so onPageFinished will not fire again
+            webView.clearHistory();
+            isLoadedFromExcel = false;
+            updateBackButtonVisibility();
+            onActivePageReady();
+        }
+    }
 
-            ActionBar actionBar = getSupportActionBar();
-            if (actionBar != null) {
-                actionBar.setTitle(data.getFilename());
-                actionBar.setSubtitle("(" + (currentIndex + 1) + "/" + urlDataList.size() + ")");
+    // Waits for the finished page to actually reach the screen before a batch starts recording it
+    private void onActivePageReady() {
+        if (!batchRecorder.isRunning()) return;
+        webView.postVisualStateCallback(currentIndex, new WebView.VisualStateCallback() {
+            @Override
+            public void onComplete(long requestId) {
+                if (requestId == currentIndex) batchRecorder.onPageReady();
             }
+        });
+    }
+
+    private void prefetchAhead() {
+        // The entries Next will actually land on
+        int next = stepFrom(currentIndex, 1);
+        int afterNext = next < playlist.size() ? stepFrom(next, 1) : next;
+        prefetcher.prefetch(urlAt(next), urlAt(afterNext));
+    }
+
+    private void onPageFinished(WebView view, String url) {
+        if (parallelRecorder.onPageFinished(view, url) || snapshotter.onPageFinished(view, url)) return;
+        autoScroller.onPageFinished(view);
+        if (view != webView) {
+            prefetcher.onPageFinished(view);
+            return;
+        }
+        // Clear history AFTER new page becomes base
+        if (isLoadedFromExcel) {
+            view.clearHistory();
         }
+        updateBackButtonVisibility();
+        isLoadedFromExcel = false;
+        onActivePageReady();
+    }
+
+    private void updatePlaylistTitle() {
+        ActionBar actionBar = getSupportActionBar();
+        if (actionBar == null || currentIndex < 0 || currentIndex >= playlist.size()) return;
+        String filename = playlist.getFilename(currentIndex);
+        actionBar.setTitle(recordedIndex.isRecorded(filename) ? filename + " \u2713" : filename);
+        if (isRecording) return; // Subtitle shows the recording timer
+        String done = journal != null && journal.getDoneCount() > 0 ? ", " + journal.getDoneCount() + " done" : "";
+        actionBar.setSubtitle("(" + (currentIndex + 1) + "/" + playlist.size() + (isLoadingPlaylist ? "+" : "") + done + ")");
     }
 
     private void navigate(boolean isNext) {
-        if (isNext) {
-            if (currentIndex < urlDataList.size() - 1) {
-                currentIndex++;
-                loadCurrentUrl();
-            }
-        } else {
-            if (currentIndex > 0) {
-                currentIndex--;
-                loadCurrentUrl();
-            }
+        int step = isNext ? 1 : -1;
+        int target = stepFrom(currentIndex, step);
+        if (target >= 0 && target < playlist.size()) {
+            currentIndex = target;
+            loadCurrentUrl();
+        } else if (target != currentIndex + step) {
+            Toast.makeText(this, "No unrecorded entries left in this direction.", Toast.LENGTH_SHORT).show();
         }
         updateNavigationButtons();
     }
 
+    // The neighbour of index in the step's direction, past recorded entries when those are skipped;
+    // out of range when there is none
+    private int stepFrom(int index, int step) {
+        int target = index + step;
+        if (settings.isSkipRecordedEnabled()) {
+            while (target >= 0 && target < playlist.size() && isRecorded(target)) target += step;
+        }
+        return target;
+    }
+
+    @Nullable
+    private String urlAt(int index) {
+        return index >= 0 && index < playlist.size() ? playlist.getWebUrl(index) : null;
+    }
+
+    private boolean isRecorded(int index) {
+        return recordedIndex.isRecorded(playlist.getFilename(index));
+    }
+
     private void updateNavigationButtons() {
         prevButton.setEnabled(currentIndex > 0);
-        nextButton.setEnabled(currentIndex != -1 && currentIndex < urlDataList.size() - 1);
+        nextButton.setEnabled(currentIndex != -1 && currentIndex < playlist.size() - 1);
         fabRecord.setEnabled(currentIndex != -1);
     }
 
+    private void startBatchRecording() {
+        if (isRecording) return;
+        if (currentIndex == -1) {
+            Toast.makeText(this, "Please select a file and load a URL first.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        pendingBatch = true;
+        startRecording();
+    }
+
+    // Encoders are started in-process and fed by WebViewCapture, so there is no service or projection
+    private void startParallelRecording() {
+        if (isRecording) return;
+        if (currentIndex == -1) {
+            Toast.makeText(this, "Please select a file and load a URL first.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        EncoderConfig config = EncoderProfiles.select(this, currentQuality(), MediaFormat.MIMETYPE_VIDEO_AVC,
+                settings.getBitrateMode(), settings.getKeyframeIntervalSec(), settings.isHardwareEncoderPreferred());
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        isRecording = true;
+        isPaused = false;
+        updateUiForRecordingState();
+        int sessions = parallelRecorder.start(currentIndex, config);
+        if (parallelRecorder.isRunning()) {
+            Toast.makeText(this, "Recording up to " + sessions + " entries at a time.", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private void startSnapshots() {
+        if (isRecording) return;
+        if (currentIndex == -1) {
+            Toast.makeText(this, "Please select a file and load a URL first.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        isRecording = true;
+        isPaused = false;
+        updateUiForRecordingState();
+        snapshotter.start(currentIndex);
+    }
+
     private void startRecording() {
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
             ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.RECORD_AUDIO}, REQUEST_CODE_AUDIO_PERMISSION);
@@ -304,53 +851,73 @@ public class MainActivity extends AppCompatActivity {
             startActivityForResult(intent, REQUEST_CODE_OVERLAY_PERMISSION);
             return;
         }
+        if (settings.isDirectCaptureEnabled()) {
+            beginRecording(RESULT_OK, null);
+            return;
+        }
         startActivityForResult(mediaProjectionManager.createScreenCaptureIntent(), REQUEST_CODE_MEDIA_PROJECTION);
     }
 
+    // data is the projection grant, or null to record the WebView directly
+    private void beginRecording(int resultCode, @Nullable Intent data) {
+        if (pendingBatch) {
+            pendingBatch = false;
+            if (data != null) {
+                batchRecorder.start(currentIndex, resultCode, data, currentQuality());
+            } else {
+                batchRecorder.startDirect(currentIndex, currentQuality());
+            }
+
+            isRecording = true;
+            isPaused = false;
+            updateUiForRecordingState();
+            return;
+        }
+        // Start immediately to avoid background-execution limits
+        Intent serviceIntent = new Intent(this, RecordingService.class);
+        if (data != null) {
+            serviceIntent.putExtra("resultCode", resultCode);
+            serviceIntent.putExtra("data", data);
+        } else {
+            serviceIntent.putExtra(RecordingService.EXTRA_DIRECT, true);
+        }
+        serviceIntent.putExtra("filename", playlist.getFilename(currentIndex));
+        serviceIntent.putExtra(RecordingService.EXTRA_QUALITY, currentQuality().name());
+
+        ContextCompat.startForegroundService(this, serviceIntent); // Use ContextCompat for safety
+        manualIndex = currentIndex;
+        if (journal != null) journal.record(manualIndex, ProgressJournal.RECORDING);
+        startAutoScroll();
+
+        isRecording = true;
+        isPaused = false;
+        updateUiForRecordingState();
+    }
+
     private void stopRecording() {
+        PlaylistRunner runner = runningRunner();
+        if (runner != null) {
+            runner.stop();
+            return;
+        }
         Intent serviceIntent = new Intent(this, RecordingService.class);
         stopService(serviceIntent);
         // onRecordingStopped() is called by the broadcast receiver
     }
 
-    int currentSec = 0;
-    Handler handler = new Handler();
-    Runnable runnable = new Runnable() {
-        @Override
-        public void run() {
-            if (isRecording && !isPaused) { // Timer only runs if not paused
-                int minutes = currentSec / 60;
-                int seconds = currentSec % 60;
-                String time = String.format("%02d:%02d", minutes, seconds);
-                ActionBar actionBar = getSupportActionBar();
-                if (actionBar != null) actionBar.setSubtitle(time);
-                currentSec++;
-            }
-            handler.postDelayed(this, 1000);
-        }
-    };
-
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
-        if (requestCode == REQUEST_CODE_MEDIA_PROJECTION && resultCode == RESULT_OK) {
-            // Start immediately to avoid background-execution limits
-            Intent serviceIntent = new Intent(this, RecordingService.class);
-            serviceIntent.putExtra("resultCode", resultCode);
-            serviceIntent.putExtra("data", data);
-            serviceIntent.putExtra("filename", urlDataList.get(currentIndex).getFilename());
-
-            ContextCompat.startForegroundService(this, serviceIntent); // Use ContextCompat for safety
-
-            isRecording = true;
-            isPaused = false;
-            currentSec = 0;
-            handler.removeCallbacks(runnable); // Clear any existing callbacks first
-            handler.post(runnable);
-            updateUiForRecordingState();
+        if (requestCode == REQUEST_CODE_MEDIA_PROJECTION && resultCode == RESULT_OK && data != null) {
+            beginRecording(resultCode, data);
+        } else if (requestCode == REQUEST_CODE_MEDIA_PROJECTION) {
+            pendingBatch = false;
         } else if (requestCode == REQUEST_CODE_OVERLAY_PERMISSION) {
             if (Settings.canDrawOverlays(this)) startRecording();
-            else Toast.makeText(this, "Overlay permission is required.", Toast.LENGTH_LONG).show();
+            else {
+                pendingBatch = false;
+                Toast.makeText(this, "Overlay permission is required.", Toast.LENGTH_LONG).show();
+            }
         }
     }
 
@@ -361,6 +928,7 @@ public class MainActivity extends AppCompatActivity {
             if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
                 startRecording();
             } else {
+                pendingBatch = false;
                 Toast.makeText(this, "Audio permission is required.", Toast.LENGTH_LONG).show();
             }
         }
@@ -369,6 +937,15 @@ public class MainActivity extends AppCompatActivity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main_menu, menu);
+        menu.findItem(R.id.action_stats_overlay).setChecked(settings.isStatsOverlayEnabled());
+        menu.findItem(R.id.action_transcode).setChecked(settings.isTranscodeEnabled());
+        menu.findItem(R.id.action_join_segments).setChecked(settings.isJoinSegmentsEnabled());
+        menu.findItem(R.id.action_skip_recorded).setChecked(settings.isSkipRecordedEnabled());
+        menu.findItem(R.id.action_block_hosts).setChecked(settings.isBlockingEnabled());
+        menu.findItem(R.id.action_direct_capture).setChecked(settings.isDirectCaptureEnabled());
+        menu.findItem(R.id.action_page_audio).setChecked(settings.isPageAudioEnabled());
+        menu.findItem(R.id.action_auto_scroll).setChecked(settings.isAutoScrollEnabled());
+        menu.findItem(R.id.action_frame_gate).setChecked(settings.isFrameGateEnabled());
         return true;
     }
 
@@ -379,17 +956,303 @@ public class MainActivity extends AppCompatActivity {
             return true; // Add this to consume the click
         }
 
+        if (item.getItemId() == R.id.action_batch_record) {
+            startBatchRecording();
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_parallel_record) {
+            startParallelRecording();
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_snapshots) {
+            startSnapshots();
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_quality) {
+            showQualityDialog();
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_prefetch_depth) {
+            showChoiceDialog(R.string.look_ahead, R.array.look_ahead_depths, PREFETCH_DEPTHS,
+                    settings.getPrefetchDepth(), settings::setPrefetchDepth);
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_batch_duration) {
+            showChoiceDialog(R.string.batch_entry_length, R.array.batch_entry_lengths, BATCH_DURATIONS_SEC,
+                    (int) (settings.getBatchDurationMs() / 1000), settings::setBatchDurationSec);
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_engine) {
+            showChoiceDialog(R.string.recording_engine, R.array.recording_engines, new int[]{0, 1},
+                    Arrays.asList(ENGINES).indexOf(settings.getEngine()), which -> settings.setEngine(ENGINES[which]));
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_bitrate_mode) {
+            showChoiceDialog(R.string.bitrate_mode, R.array.bitrate_modes, BITRATE_MODES,
+                    settings.getBitrateMode(), settings::setBitrateMode);
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_keyframe_interval) {
+            showChoiceDialog(R.string.keyframe_interval, R.array.keyframe_intervals, KEYFRAME_INTERVALS_SEC,
+                    settings.getKeyframeIntervalSec(), settings::setKeyframeIntervalSec);
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_frame_gate) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            settings.setFrameGateEnabled(enabled);
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_segment_minutes) {
+            showChoiceDialog(R.string.split_after, R.array.split_durations, SEGMENT_MINUTES,
+                    (int) (settings.getSegmentMaxDurationMs() / 60_000), settings::setSegmentMinutes);
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_segment_megabytes) {
+            showChoiceDialog(R.string.split_over, R.array.split_sizes, SEGMENT_MEGABYTES,
+                    (int) (settings.getSegmentMaxBytes() / (1024 * 1024)), settings::setSegmentMegabytes);
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_resource_cache) {
+            showChoiceDialog(R.string.asset_cache_size, R.array.asset_cache_sizes, RESOURCE_CACHE_MEGABYTES,
+                    (int) (settings.getResourceCacheBytes() / (1024 * 1024)), megabytes -> {
+                        settings.setResourceCacheMegabytes(megabytes);
+                        ResourceCache.get(this).setMaxBytes(settings.getResourceCacheBytes());
+                    });
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_snapshot_format) {
+            showChoiceDialog(R.string.snapshot_format, R.array.snapshot_formats, new int[]{0, 1},
+                    Arrays.asList(SNAPSHOT_FORMATS).indexOf(settings.getSnapshotFormat()), which -> settings.setSnapshotFormat(SNAPSHOT_FORMATS[which]));
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_auto_scroll_speed) {
+            showChoiceDialog(R.string.auto_scroll_speed, R.array.auto_scroll_speeds, AUTO_SCROLL_DP_PER_SECOND,
+                    settings.getAutoScrollDpPerSecond(), settings::setAutoScrollDpPerSecond);
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_video_encoder) {
+            showChoiceDialog(R.string.video_encoder, R.array.video_encoders, new int[]{1, 0},
+                    settings.isHardwareEncoderPreferred() ? 1 : 0, hardware -> settings.setHardwareEncoderPreferred(hardware == 1));
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_stats_overlay) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            settings.setStatsOverlayEnabled(enabled);
+            if (!enabled) statsOverlay.setVisibility(View.GONE);
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_transcode) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            settings.setTranscodeEnabled(enabled);
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_join_segments) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            settings.setJoinSegmentsEnabled(enabled);
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_skip_recorded) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            settings.setSkipRecordedEnabled(enabled);
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_auto_scroll) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            settings.setAutoScrollEnabled(enabled);
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_direct_capture) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            settings.setDirectCaptureEnabled(enabled);
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_page_audio) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            settings.setPageAudioEnabled(enabled);
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_block_hosts) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            settings.setBlockingEnabled(enabled);
+            blocklist.setEnabled(enabled);
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_blocked_requests) {
+            showBlockedRequestsDialog();
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_import_blocklist) {
+            blocklistPickerLauncher.launch(new String[]{"text/plain", "application/octet-stream"});
+            return true;
+        }
+
+        if (item.getItemId() == R.id.action_export_load_report) {
+            exportLoadReport();
+            return true;
+        }
+
         if (item.getItemId() == R.id.action_select_file) {
-            filePickerLauncher.launch(new String[]{"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", "application/vnd.ms-excel"});
+            filePickerLauncher.launch(new String[]{"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", "application/vnd.ms-excel", "text/csv", "text/comma-separated-values", "text/tab-separated-values", "text/plain"});
             return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
-    public void onRecordingStopped() {
+    private void exportLoadReport() {
+        if (telemetry.getRecordCount() == 0) {
+            Toast.makeText(this, "No page loads recorded yet.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        telemetry.export((uri, error) -> {
+            if (error != null) {
+                Toast.makeText(this, "Failed to export load report: " + error.getMessage(), Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(this, "Load report saved to Documents/WebRecordings", Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    private void importBlocklist(Uri uri) {
+        blocklist.importList(uri, (domains, error) -> {
+            if (error != null) {
+                Toast.makeText(this, "Failed to import blocklist: " + error.getMessage(), Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(this, "Blocking " + domains + " hosts", Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    private void applyAllowList() {
+        blocklist.setAllowList(playlistKey != null ? playlistCache.getAllowList(playlistKey) : Collections.emptySet());
+    }
+
+    // Checked hosts are let through for the current playlist; without one only until the next load
+    private void showBlockedRequestsDialog() {
+        Set<String> allowed = playlistKey != null ? playlistCache.getAllowList(playlistKey) : new HashSet<>();
+        List<String> hosts = new ArrayList<>(allowed);
+        for (String host : blocklist.getBlockedHosts()) {
+            if (!allowed.contains(host)) hosts.add(host);
+        }
+        if (hosts.isEmpty()) {
+            Toast.makeText(this, "No requests blocked yet.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String[] labels = new String[hosts.size()];
+        boolean[] checked = new boolean[hosts.size()];
+        for (int i = 0; i < labels.length; i++) {
+            String host = hosts.get(i);
+            labels[i] = host + " (" + blocklist.getBlockedCount(host) + ")";
+            checked[i] = allowed.contains(host);
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.blocked_requests_title, blocklist.getBlockedCount()))
+                .setMultiChoiceItems(labels, checked, (dialog, which, isChecked) -> checked[which] = isChecked)
+                .setPositiveButton(android.R.string.ok, (dialog, which) -> {
+                    Set<String> selected = new HashSet<>();
+                    for (int i = 0; i < checked.length; i++) {
+                        if (checked[i]) selected.add(hosts.get(i));
+                    }
+                    if (playlistKey != null) playlistCache.putAllowList(playlistKey, selected);
+                    blocklist.setAllowList(selected);
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private EncoderProfiles.Quality currentQuality() {
+        EncoderProfiles.Quality fallback = settings.getDefaultQuality();
+        return playlistKey != null ? playlistCache.getQuality(playlistKey, fallback) : fallback;
+    }
+
+    // Remembered per playlist; without a playlist it becomes the default for new ones
+    private void showQualityDialog() {
+        EncoderProfiles.Quality[] qualities = EncoderProfiles.Quality.values();
+        String[] labels = getResources().getStringArray(R.array.recording_qualities);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.recording_quality)
+                .setSingleChoiceItems(labels, currentQuality().ordinal(), (dialog, which) -> {
+                    if (playlistKey != null) {
+                        playlistCache.putQuality(playlistKey, qualities[which]);
+                    } else {
+                        settings.setDefaultQuality(qualities[which]);
+                    }
+                    dialog.dismiss();
+                })
+                .show();
+    }
+
+    // Picks one of a few preset values; nothing is checked while the setting holds some other value
+    private void showChoiceDialog(int title, int labels, int[] values, int current, IntConsumer onChosen) {
+        int checked = -1;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == current) checked = i;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(title)
+                .setSingleChoiceItems(getResources().getStringArray(labels), checked, (dialog, which) -> {
+                    onChosen.accept(values[which]);
+                    dialog.dismiss();
+                })
+                .show();
+    }
+
+    private void startAutoScroll() {
+        if (!settings.isAutoScrollEnabled()) return;
+        float density = getResources().getDisplayMetrics().density;
+        autoScroller.start(webView, settings.getAutoScrollDpPerSecond() * density);
+    }
+
+    // A manual recording ends with the page; a batch moves on to the next entry
+    private void onReachedBottom() {
+        if (batchRecorder.isRunning()) {
+            batchRecorder.onPageBottom();
+        } else if (isRecording && manualIndex >= 0) {
+            stopRecording();
+        }
+    }
+
+    // success only concerns a manual recording, which is journaled failed when it was not saved whole
+    public void onRecordingStopped(boolean success) {
+        autoScroller.stop();
+        batchRecorder.stop();
+        if (manualIndex >= 0 && journal != null) journal.record(manualIndex, success ? ProgressJournal.DONE : ProgressJournal.FAILED);
+        manualIndex = -1;
         isRecording = false;
         isPaused = false;
-        handler.removeCallbacks(runnable);
         updateUiForRecordingState();
     }
 
@@ -411,6 +1274,7 @@ public class MainActivity extends AppCompatActivity {
 
                 fabRecord.setImageResource(R.drawable.ic_record);
                 fabPause.setVisibility(View.GONE);
+                statsOverlay.setVisibility(View.GONE);
                 loadCurrentUrl(); // Restore filename/count subtitle
             }
         });
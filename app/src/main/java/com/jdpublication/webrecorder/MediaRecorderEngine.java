@@ -0,0 +1,159 @@
+package com.jdpublication.webrecorder;
+
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+
+// MediaRecorder cannot switch files on demand, but it can continue into a next file when the
+// current one approaches its size limit; that is how long recordings are split. A duration limit is
+// turned into a size limit from the configured bitrates.
+public class MediaRecorderEngine implements RecordingEngine {
+
+    private static final String TAG = "MediaRecorderEngine";
+    private static final int AUDIO_BIT_RATE = 128000;
+
+    private final EncoderConfig config;
+    private final Listener listener;
+    private final RecordingMetrics metrics;
+    private MediaRecorder mediaRecorder;
+    private RecordingOutput output;
+    // Handed to MediaRecorder, becomes the output once it reports the switch
+    private RecordingOutput nextOutput;
+    private long maxFileBytes = 0;
+
+    public MediaRecorderEngine(EncoderConfig config, Listener listener, RecordingMetrics metrics) {
+        this.config = config;
+        this.listener = listener;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void setRolloverLimits(long maxBytes, long maxDurationMs) {
+        long durationBytes = maxDurationMs > 0 ? (config.bitRate + AUDIO_BIT_RATE) / 8L * maxDurationMs / 1000 : 0;
+        if (maxBytes > 0 && durationBytes > 0) {
+            maxFileBytes = Math.min(maxBytes, durationBytes);
+        } else {
+            maxFileBytes = Math.max(maxBytes, durationBytes);
+        }
+    }
+
+    @Override
+    public void prepare(RecordingOutput output) throws IOException {
+        this.output = output;
+        mediaRecorder = new MediaRecorder();
+        try {
+            int videoEncoder = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(config.mimeType) ? MediaRecorder.VideoEncoder.HEVC : MediaRecorder.VideoEncoder.H264;
+
+            mediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+            mediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+            mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+            mediaRecorder.setVideoEncoder(videoEncoder);
+            mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+            mediaRecorder.setAudioEncodingBitRate(AUDIO_BIT_RATE);
+            mediaRecorder.setAudioSamplingRate(44100);
+            mediaRecorder.setVideoSize(config.width, config.height);
+            mediaRecorder.setVideoEncodingBitRate(config.bitRate);
+            mediaRecorder.setVideoFrameRate(config.frameRate);
+            mediaRecorder.setOutputFile(output.getFileDescriptor());
+            if (maxFileBytes > 0) {
+                mediaRecorder.setMaxFileSize(maxFileBytes);
+                mediaRecorder.setOnInfoListener(this::onInfo);
+            }
+            mediaRecorder.prepare();
+            // MediaRecorder keeps its counters to itself; the file size is all we can watch
+            metrics.trackOutput(output);
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    private void onInfo(MediaRecorder recorder, int what, int extra) {
+        switch (what) {
+            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING:
+                if (nextOutput != null) return;
+                nextOutput = listener.onRolloverNeeded();
+                if (nextOutput == null) return;
+                try {
+                    recorder.setNextOutputFile(nextOutput.getFileDescriptor());
+                } catch (IOException | IllegalStateException e) {
+                    Log.e(TAG, "Failed to set next output file", e);
+                    listener.onOutputFinished(nextOutput, false);
+                    nextOutput = null;
+                }
+                break;
+            case MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED:
+                if (nextOutput == null) return;
+                RecordingOutput finished = output;
+                metrics.untrackOutput(finished);
+                output = nextOutput;
+                nextOutput = null;
+                metrics.trackOutput(output);
+                listener.onOutputFinished(finished, true);
+                break;
+            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED:
+                Log.w(TAG, "Size limit reached without a next file; MediaRecorder has stopped");
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public Surface getInputSurface() {
+        return mediaRecorder.getSurface();
+    }
+
+    @Override
+    public void start() {
+        mediaRecorder.start();
+    }
+
+    @Override
+    public void pause() {
+        try {
+            mediaRecorder.pause();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to pause MediaRecorder", e);
+        }
+    }
+
+    @Override
+    public void resume() {
+        try {
+            mediaRecorder.resume();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to resume MediaRecorder", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (mediaRecorder == null) return;
+        boolean success = true;
+        try {
+            mediaRecorder.stop();
+        } catch (RuntimeException e) {
+            // Thrown when no valid frames were recorded
+            Log.e(TAG, "Error stopping MediaRecorder", e);
+            success = false;
+        }
+        release();
+        metrics.untrackOutput(output);
+        listener.onOutputFinished(output, success);
+        output = null;
+        if (nextOutput != null) {
+            listener.onOutputFinished(nextOutput, false);
+            nextOutput = null;
+        }
+    }
+
+    private void release() {
+        mediaRecorder.reset();
+        mediaRecorder.release();
+        mediaRecorder = null;
+    }
+}
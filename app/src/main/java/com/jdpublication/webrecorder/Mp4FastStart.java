@@ -0,0 +1,191 @@
+package com.jdpublication.webrecorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+// Moves the moov atom of an MP4 in front of its media data, the way qt-faststart does. MediaMuxer
+// and MediaRecorder append moov at the end, so players have to fetch the tail before they can start.
+// Only the chunk offset tables change; samples are copied byte for byte.
+final class Mp4FastStart {
+
+    interface Copier {
+        void copy(FileChannel in, long position, long count, FileChannel out) throws IOException;
+    }
+
+    // Unthrottled copy of a byte range
+    static final Copier DIRECT = (in, position, count, out) -> {
+        long end = position + count;
+        while (position < end) {
+            long moved = in.transferTo(position, end - position, out);
+            if (moved <= 0) throw new IOException("Short transfer at " + position);
+            position += moved;
+        }
+    };
+
+    private static final int MAX_MOOV_BYTES = 64 * 1024 * 1024;
+
+    static final class Atom {
+        final String type;
+        final long offset;
+        final long size;
+
+        Atom(String type, long offset, long size) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private Mp4FastStart() {
+    }
+
+    // True when moov comes after the first mdat and can be relocated
+    static boolean needsRelocation(FileChannel in) throws IOException {
+        List<Atom> atoms = readTopLevel(in);
+        int moov = indexOf(atoms, "moov");
+        int mdat = indexOf(atoms, "mdat");
+        return moov >= 0 && mdat >= 0 && moov > mdat;
+    }
+
+    static void relocate(FileChannel in, FileChannel out, Copier copier) throws IOException {
+        List<Atom> atoms = readTopLevel(in);
+        int moovIndex = indexOf(atoms, "moov");
+        int mdatIndex = indexOf(atoms, "mdat");
+        if (moovIndex < 0 || mdatIndex < 0 || moovIndex < mdatIndex) {
+            throw new IOException("Nothing to relocate");
+        }
+        // Chunk offsets can only be shifted uniformly if nothing but padding follows moov
+        for (int i = moovIndex + 1; i < atoms.size(); i++) {
+            if (!atoms.get(i).type.equals("free") && !atoms.get(i).type.equals("skip")) {
+                throw new IOException("Unsupported atom after moov: " + atoms.get(i).type);
+            }
+        }
+
+        Atom moov = atoms.get(moovIndex);
+        if (moov.size > MAX_MOOV_BYTES) throw new IOException("moov too large: " + moov.size);
+        ByteBuffer moovData = ByteBuffer.allocate((int) moov.size).order(ByteOrder.BIG_ENDIAN);
+        readFully(in, moovData, moov.offset);
+        moovData.flip();
+        patchOffsets(moovData, 8, moovData.limit(), moov.size);
+
+        out.position(0);
+        out.truncate(0);
+        for (int i = 0; i < mdatIndex; i++) {
+            Atom atom = atoms.get(i);
+            copier.copy(in, atom.offset, atom.size, out);
+        }
+        while (moovData.hasRemaining()) out.write(moovData);
+        for (int i = mdatIndex; i < moovIndex; i++) {
+            Atom atom = atoms.get(i);
+            copier.copy(in, atom.offset, atom.size, out);
+        }
+    }
+
+    // End of the leading run of well-formed top-level atoms. A preallocated file reads as zeros past
+    // the last atom the muxer wrote, which ends the run.
+    static long atomsLength(FileChannel in) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+        long length = in.size();
+        long offset = 0;
+        while (offset + 8 <= length) {
+            header.clear();
+            readFully(in, header, offset);
+            long size = header.getInt(0) & 0xffffffffL;
+            if (size == 1) {
+                header.clear();
+                readFully(in, header, offset + 8);
+                size = header.getLong(0);
+            }
+            if (size < 8 || offset + size > length) break;
+            offset += size;
+        }
+        return offset;
+    }
+
+    static List<Atom> readTopLevel(FileChannel in) throws IOException {
+        List<Atom> atoms = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN);
+        long length = in.size();
+        long offset = 0;
+        while (offset + 8 <= length) {
+            header.clear().limit(8);
+            readFully(in, header, offset);
+            long size = header.getInt(0) & 0xffffffffL;
+            String type = fourCc(header, 4);
+            if (size == 1) {
+                header.clear().limit(8);
+                readFully(in, header, offset + 8);
+                size = header.getLong(0);
+            } else if (size == 0) {
+                size = length - offset;
+            }
+            if (size < 8 || offset + size > length) throw new IOException("Corrupt atom " + type + " at " + offset);
+            atoms.add(new Atom(type, offset, size));
+            offset += size;
+        }
+        return atoms;
+    }
+
+    // Walks the container atoms down to stco/co64 and adds delta to every chunk offset
+    private static void patchOffsets(ByteBuffer buffer, int start, int end, long delta) throws IOException {
+        int offset = start;
+        while (offset + 8 <= end) {
+            long size = buffer.getInt(offset) & 0xffffffffL;
+            String type = fourCc(buffer, offset + 4);
+            if (size < 8 || offset + size > end) throw new IOException("Corrupt atom " + type + " in moov");
+            int atomEnd = (int) (offset + size);
+            switch (type) {
+                case "trak":
+                case "mdia":
+                case "minf":
+                case "stbl":
+                    patchOffsets(buffer, offset + 8, atomEnd, delta);
+                    break;
+                case "stco": {
+                    int count = buffer.getInt(offset + 12);
+                    for (int i = 0, p = offset + 16; i < count; i++, p += 4) {
+                        long value = (buffer.getInt(p) & 0xffffffffL) + delta;
+                        if (value > 0xffffffffL) throw new IOException("Chunk offset overflow; co64 upgrade needed");
+                        buffer.putInt(p, (int) value);
+                    }
+                    break;
+                }
+                case "co64": {
+                    int count = buffer.getInt(offset + 12);
+                    for (int i = 0, p = offset + 16; i < count; i++, p += 8) {
+                        buffer.putLong(p, buffer.getLong(p) + delta);
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+            offset = atomEnd;
+        }
+    }
+
+    private static int indexOf(List<Atom> atoms, String type) {
+        for (int i = 0; i < atoms.size(); i++) {
+            if (atoms.get(i).type.equals(type)) return i;
+        }
+        return -1;
+    }
+
+    private static String fourCc(ByteBuffer buffer, int offset) {
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++) chars[i] = (char) (buffer.get(offset + i) & 0xff);
+        return new String(chars);
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position);
+            if (read < 0) throw new IOException("Unexpected end of file");
+            position += read;
+        }
+    }
+}
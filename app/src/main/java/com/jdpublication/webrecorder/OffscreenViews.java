@@ -0,0 +1,52 @@
+package com.jdpublication.webrecorder;
+
+import android.content.Context;
+import android.view.View;
+import android.view.ViewGroup;
+import android.webkit.WebView;
+
+// The WebViews a PlaylistRunner loads entries into. They sit behind the visible view at full size,
+// so they lay out and render like the real page without being seen; hiding them instead would stop
+// the WebView from rendering at all.
+public class OffscreenViews {
+
+    private final Context context;
+    private final ViewGroup parent;
+    private final PagePrefetcher.ViewConfigurator configurator;
+    private final PageLoadTelemetry telemetry;
+
+    public OffscreenViews(Context context, ViewGroup parent, PagePrefetcher.ViewConfigurator configurator, PageLoadTelemetry telemetry) {
+        this.context = context;
+        this.parent = parent;
+        this.configurator = configurator;
+        this.telemetry = telemetry;
+    }
+
+    public int getWidth() {
+        return parent.getWidth();
+    }
+
+    public int getHeight() {
+        return parent.getHeight();
+    }
+
+    public WebView create() {
+        WebView view = new WebView(context);
+        configurator.configure(view);
+        view.setVisibility(View.VISIBLE);
+        parent.addView(view, 0, new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+        return view;
+    }
+
+    // Page-load telemetry is kept for offscreen entries just like for the visible view
+    public void load(WebView view, int index, String filename, String url) {
+        telemetry.begin(view, url);
+        telemetry.attach(view, index, filename, false);
+        view.loadUrl(url);
+    }
+
+    public void discard(WebView view) {
+        parent.removeView(view);
+        view.destroy();
+    }
+}
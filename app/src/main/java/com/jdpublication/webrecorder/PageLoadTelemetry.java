@@ -0,0 +1,264 @@
+package com.jdpublication.webrecorder;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+import android.webkit.WebView;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Times every playlist entry from loadUrl to the first frame of the finished page. All WebView
+// callbacks arrive on the UI thread and only store a timestamp there; building and writing the
+// report happens on a background thread from an immutable snapshot.
+public class PageLoadTelemetry {
+
+    private static final String TAG = "PageLoadTelemetry";
+    private static final int MAX_RECORDS = 10_000;
+    // Resource Timing only reports sizes for same-origin or Timing-Allow-Origin responses
+    private static final String BYTES_SCRIPT = "(function(){var t=0;"
+            + "performance.getEntriesByType('navigation').forEach(function(e){t+=e.transferSize||0;});"
+            + "performance.getEntriesByType('resource').forEach(function(e){t+=e.transferSize||0;});"
+            + "return t;})()";
+
+    public interface ExportCallback {
+        void onExported(@Nullable Uri uri, @Nullable Exception error);
+    }
+
+    static final class Record {
+        final int index;
+        final String filename;
+        final String url;
+        final boolean prefetched;
+        final long commitVisibleMs;
+        final long finishedMs;
+        final long visualReadyMs;
+        final int resources;
+        final long bytes;
+
+        Record(Trace trace) {
+            index = trace.index;
+            filename = trace.filename;
+            url = trace.url;
+            prefetched = trace.prefetched;
+            commitVisibleMs = trace.commitVisibleAt > 0 ? trace.commitVisibleAt - trace.startedAt : -1;
+            finishedMs = trace.finishedAt - trace.startedAt;
+            visualReadyMs = trace.visualReadyAt - trace.startedAt;
+            resources = trace.resources;
+            bytes = trace.bytes;
+        }
+    }
+
+    private static final class Trace {
+        final String url;
+        final long startedAt;
+        int index = -1;
+        String filename;
+        boolean prefetched;
+        long commitVisibleAt;
+        long finishedAt;
+        long visualReadyAt;
+        int resources;
+        long bytes = -1;
+        boolean bytesDone;
+        boolean recorded;
+
+        Trace(String url, long startedAt) {
+            this.url = url;
+            this.startedAt = startedAt;
+        }
+    }
+
+    private final Context context;
+    private final Map<WebView, Trace> traces = new WeakHashMap<>();
+    private final ArrayDeque<Record> records = new ArrayDeque<>();
+    private final ExecutorService exportExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private long nextVisualRequest = 0;
+
+    public PageLoadTelemetry(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    // Call right before view.loadUrl(url)
+    public void begin(WebView view, String url) {
+        traces.put(view, new Trace(url, SystemClock.elapsedRealtime()));
+    }
+
+    // Ties the load in view to a playlist entry; prefetched loads are attached when they are shown
+    public void attach(WebView view, int index, String filename, boolean prefetched) {
+        Trace trace = traces.get(view);
+        if (trace == null) return;
+        trace.index = index;
+        trace.filename = filename;
+        trace.prefetched = prefetched;
+        maybeRecord(trace);
+    }
+
+    public void onPageCommitVisible(WebView view) {
+        Trace trace = traces.get(view);
+        if (trace != null && trace.commitVisibleAt == 0) trace.commitVisibleAt = SystemClock.elapsedRealtime();
+    }
+
+    public void onLoadResource(WebView view) {
+        Trace trace = traces.get(view);
+        if (trace != null && trace.finishedAt == 0) trace.resources++;
+    }
+
+    public void onPageFinished(WebView view) {
+        Trace trace = traces.get(view);
+        if (trace == null || trace.finishedAt != 0) return;
+        trace.finishedAt = SystemClock.elapsedRealtime();
+
+        view.evaluateJavascript(BYTES_SCRIPT, value -> {
+            try {
+                trace.bytes = (long) Double.parseDouble(value);
+            } catch (NumberFormatException | NullPointerException e) {
+                trace.bytes = -1;
+            }
+            trace.bytesDone = true;
+            maybeRecord(trace);
+        });
+        view.postVisualStateCallback(nextVisualRequest++, new WebView.VisualStateCallback() {
+            @Override
+            public void onComplete(long requestId) {
+                trace.visualReadyAt = SystemClock.elapsedRealtime();
+                maybeRecord(trace);
+            }
+        });
+    }
+
+    private void maybeRecord(Trace trace) {
+        if (trace.recorded || trace.index < 0 || trace.visualReadyAt == 0 || !trace.bytesDone) return;
+        trace.recorded = true;
+        if (records.size() == MAX_RECORDS) records.removeFirst();
+        records.addLast(new Record(trace));
+    }
+
+    public int getRecordCount() {
+        return records.size();
+    }
+
+    // Writes Documents/WebRecordings/page_loads_<time>.csv; MediaStore keeps Movies video-only
+    public void export(ExportCallback callback) {
+        List<Record> snapshot = new ArrayList<>(records);
+        exportExecutor.execute(() -> {
+            Uri uri = null;
+            Exception error = null;
+            try {
+                uri = write(snapshot);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Export failed", e);
+                error = e;
+            }
+            Uri result = uri;
+            Exception failure = error;
+            mainHandler.post(() -> callback.onExported(result, failure));
+        });
+    }
+
+    public void destroy() {
+        exportExecutor.shutdown();
+    }
+
+    private Uri write(List<Record> snapshot) throws IOException {
+        String stamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+        ContentResolver resolver = context.getContentResolver();
+        ContentValues values = new ContentValues();
+        // RELATIVE_PATH needs API 29, which minSdk guarantees
+        values.put(MediaStore.MediaColumns.RELATIVE_PATH, Environment.DIRECTORY_DOCUMENTS + "/WebRecordings");
+        values.put(MediaStore.MediaColumns.DISPLAY_NAME, "page_loads_" + stamp + ".csv");
+        values.put(MediaStore.MediaColumns.MIME_TYPE, "text/csv");
+        Uri uri = resolver.insert(MediaStore.Files.getContentUri("external"), values);
+        if (uri == null) throw new IOException("Failed to create report record.");
+
+        try (OutputStream os = resolver.openOutputStream(uri)) {
+            if (os == null) throw new IOException("Unable to open " + uri);
+            Writer writer = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+            writeEntries(writer, snapshot);
+            writer.write("\n");
+            writeSummary(writer, snapshot);
+            writer.flush();
+        } catch (IOException | RuntimeException e) {
+            resolver.delete(uri, null, null);
+            throw e;
+        }
+        return uri;
+    }
+
+    private static void writeEntries(Writer writer, List<Record> snapshot) throws IOException {
+        writer.write("entry,filename,url,prefetched,commit_visible_ms,finished_ms,visual_ready_ms,resources,bytes\n");
+        for (Record r : snapshot) {
+            writer.write((r.index + 1) + "," + csv(r.filename) + "," + csv(r.url) + "," + r.prefetched + ","
+                    + r.commitVisibleMs + "," + r.finishedMs + "," + r.visualReadyMs + "," + r.resources + "," + r.bytes + "\n");
+        }
+    }
+
+    private static void writeSummary(Writer writer, List<Record> snapshot) throws IOException {
+        int n = snapshot.size();
+        long[] commit = new long[n];
+        long[] finished = new long[n];
+        long[] visual = new long[n];
+        long[] resources = new long[n];
+        long[] bytes = new long[n];
+        int commitCount = 0;
+        int bytesCount = 0;
+        for (int i = 0; i < n; i++) {
+            Record r = snapshot.get(i);
+            if (r.commitVisibleMs >= 0) commit[commitCount++] = r.commitVisibleMs;
+            if (r.bytes >= 0) bytes[bytesCount++] = r.bytes;
+            finished[i] = r.finishedMs;
+            visual[i] = r.visualReadyMs;
+            resources[i] = r.resources;
+        }
+        writer.write("metric,count,p50,p90,p99,max\n");
+        writeRow(writer, "commit_visible_ms", commit, commitCount);
+        writeRow(writer, "finished_ms", finished, n);
+        writeRow(writer, "visual_ready_ms", visual, n);
+        writeRow(writer, "resources", resources, n);
+        writeRow(writer, "bytes", bytes, bytesCount);
+    }
+
+    private static void writeRow(Writer writer, String metric, long[] values, int count) throws IOException {
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        writer.write(metric + "," + count + "," + percentile(sorted, 50) + "," + percentile(sorted, 90) + ","
+                + percentile(sorted, 99) + "," + (count > 0 ? sorted[count - 1] : "") + "\n");
+    }
+
+    // Nearest-rank percentile; empty string when there is nothing to rank
+    static String percentile(long[] sorted, int p) {
+        if (sorted.length == 0) return "";
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return String.valueOf(sorted[Math.max(0, rank - 1)]);
+    }
+
+    private static String csv(@Nullable String value) {
+        if (value == null) return "";
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) return value;
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
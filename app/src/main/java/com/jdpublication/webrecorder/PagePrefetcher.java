@@ -0,0 +1,141 @@
+package com.jdpublication.webrecorder;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.webkit.WebView;
+
+import androidx.annotation.Nullable;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Keeps one invisible WebView next to the visible one and loads the next playlist entry into it,
+// so Next can swap views instead of starting a cold load. Entries further ahead only get a DNS
+// lookup, which warms the resolver cache the WebView's network stack shares.
+public class PagePrefetcher {
+
+    private static final String TAG = "PagePrefetcher";
+    // Below this memory class a second renderer costs more than the latency it saves
+    private static final int MIN_MEMORY_CLASS_MB = 192;
+    private static final long TRIM_BACKOFF_MS = 60_000;
+
+    public interface ViewConfigurator {
+        void configure(WebView view);
+    }
+
+    private final Context context;
+    private final ViewGroup parent;
+    private final ViewConfigurator configurator;
+    private final RecorderSettings settings;
+    private final PageLoadTelemetry telemetry;
+    private final boolean standbyAllowed;
+    private final ExecutorService dnsExecutor = Executors.newSingleThreadExecutor();
+
+    private WebView standby;
+    private String standbyUrl;
+    private long suspendedUntil = 0;
+
+    public PagePrefetcher(Context context, ViewGroup parent, ViewConfigurator configurator, RecorderSettings settings, PageLoadTelemetry telemetry) {
+        this.context = context;
+        this.parent = parent;
+        this.configurator = configurator;
+        this.settings = settings;
+        this.telemetry = telemetry;
+
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        standbyAllowed = !am.isLowRamDevice() && am.getMemoryClass() >= MIN_MEMORY_CLASS_MB;
+    }
+
+    public void prefetch(@Nullable String nextUrl, @Nullable String afterNextUrl) {
+        int depth = settings.getPrefetchDepth();
+        if (depth >= 2 && afterNextUrl != null) preconnect(afterNextUrl);
+        if (depth < 1 || nextUrl == null) return;
+
+        if (!standbyAllowed || SystemClock.elapsedRealtime() < suspendedUntil) {
+            preconnect(nextUrl);
+            return;
+        }
+        if (nextUrl.equals(standbyUrl)) return;
+
+        if (standby == null) {
+            standby = new WebView(context);
+            configurator.configure(standby);
+            standby.setVisibility(View.INVISIBLE);
+            // Same slot as the visible view so layout and viewport size match when it is swapped in
+            parent.addView(standby, 0, new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+        }
+        standbyUrl = nextUrl;
+        standby.stopLoading();
+        telemetry.begin(standby, nextUrl);
+        standby.loadUrl(nextUrl);
+    }
+
+    // Hands over the standby view if it holds url; the caller makes it visible
+    @Nullable
+    public WebView take(String url) {
+        if (standby == null || !url.equals(standbyUrl)) return null;
+        WebView ready = standby;
+        standby = null;
+        standbyUrl = null;
+        return ready;
+    }
+
+    // The view that was just replaced becomes the next standby instead of being thrown away
+    public void recycle(WebView previous) {
+        previous.setVisibility(View.INVISIBLE);
+        previous.stopLoading();
+        if (standby != null || !standbyAllowed || SystemClock.elapsedRealtime() < suspendedUntil) {
+            discard(previous);
+            return;
+        }
+        standby = previous;
+        standbyUrl = null;
+    }
+
+    public void onPageFinished(WebView view) {
+        // The standby starts with an empty history once it is swapped in
+        if (view == standby) view.clearHistory();
+    }
+
+    public void onTrimMemory(int level) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) return;
+        Log.d(TAG, "Dropping standby WebView, trim level " + level);
+        suspendedUntil = SystemClock.elapsedRealtime() + TRIM_BACKOFF_MS;
+        if (standby != null) {
+            discard(standby);
+            standby = null;
+            standbyUrl = null;
+        }
+    }
+
+    public void destroy() {
+        if (standby != null) discard(standby);
+        standby = null;
+        dnsExecutor.shutdownNow();
+    }
+
+    private void discard(WebView view) {
+        parent.removeView(view);
+        view.destroy();
+    }
+
+    private void preconnect(String url) {
+        String host = Uri.parse(url).getHost();
+        if (host == null) return;
+        dnsExecutor.execute(() -> {
+            try {
+                InetAddress.getAllByName(host);
+            } catch (UnknownHostException e) {
+                Log.d(TAG, "preconnect: " + host + " did not resolve");
+            }
+        });
+    }
+}
@@ -0,0 +1,350 @@
+package com.jdpublication.webrecorder;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.util.Log;
+import android.webkit.WebView;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Captures each playlist entry as still images instead of video. One offscreen WebView walks the
+// page a viewport at a time; every step is drawn into a bitmap from a fixed pool and handed to a
+// small encoder pool, which writes it to Pictures/WebSnapshots/<filename>/. Tiles are named after
+// their vertical offset in the page, so they can be stitched back in order; the last one is aligned
+// to the bottom of the page and may overlap the one before. While tiles encode, the next entry is
+// already loading. When every pooled bitmap is being encoded, drawing waits for one to come back.
+public class PageSnapshotter implements PlaylistRunner {
+
+    private static final String TAG = "PageSnapshotter";
+    private static final String RELATIVE_PATH = Environment.DIRECTORY_PICTURES + "/WebSnapshots/";
+    // Infinite-scroll pages would never reach a bottom
+    private static final int MAX_TILES = 40;
+    private static final int WEBP_QUALITY = 80;
+    private static final long POOL_RETRY_MS = 16;
+
+    // A pooled bitmap with the canvas that draws into it
+    private static final class Tile {
+        final Bitmap bitmap;
+        final Canvas canvas;
+
+        Tile(int width, int height) {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            canvas = new Canvas(bitmap);
+        }
+    }
+
+    // Main thread only
+    private static final class Entry {
+        final int index;
+        final String filename;
+        int nextY = 0;
+        int lastY = -1;
+        int tiles = 0;
+        int pending = 0;
+        boolean started = false;
+        boolean captured = false;
+        boolean failed = false;
+
+        Entry(int index, String filename) {
+            this.index = index;
+            this.filename = filename;
+        }
+    }
+
+    private final Context context;
+    private final OffscreenViews views;
+    private final RecorderSettings settings;
+    private final Host host;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final int encoderCount = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
+    private ExecutorService encoders;
+    private ArrayBlockingQueue<Tile> pool;
+    private WebView view;
+    private Entry entry;
+    private int next;
+    private int inFlight = 0;
+    private int captured = 0;
+    private boolean running = false;
+    private boolean paused = false;
+    private Runnable parkedStep;
+
+    private final Runnable pageReadyTimeout = () -> {
+        Log.w(TAG, "Page ready timeout for entry " + entry.index);
+        onPageReady();
+    };
+    private final Runnable startCapture = this::startCapture;
+    private final Runnable drawTile = this::drawTile;
+
+    public PageSnapshotter(Context context, OffscreenViews views, RecorderSettings settings, Host host) {
+        this.context = context;
+        this.views = views;
+        this.settings = settings;
+        this.host = host;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    public void start(int fromIndex) {
+        int width = views.getWidth();
+        int height = views.getHeight();
+        if (width == 0 || height == 0) {
+            host.onRunFinished(this, 0);
+            return;
+        }
+        next = fromIndex;
+        captured = 0;
+        running = true;
+        paused = false;
+        encoders = Executors.newFixedThreadPool(encoderCount);
+        // One bitmap per encoder plus the one being drawn; nothing else is allocated per tile
+        pool = new ArrayBlockingQueue<>(encoderCount + 1);
+        for (int i = 0; i < encoderCount + 1; i++) pool.add(new Tile(width, height));
+
+        view = views.create();
+        loadNext();
+    }
+
+    @Override
+    public boolean onPageFinished(WebView view, String url) {
+        if (view != this.view || this.view == null) return false;
+        Entry loading = entry;
+        if (loading != null && !loading.started) {
+            view.postVisualStateCallback(loading.index, new WebView.VisualStateCallback() {
+                @Override
+                public void onComplete(long requestId) {
+                    // A late onPageFinished (redirect, frame) must not restart a capture under way
+                    if (entry == loading && !loading.started) onPageReady();
+                }
+            });
+        }
+        return true;
+    }
+
+    @Override
+    public void pause() {
+        paused = true;
+    }
+
+    @Override
+    public void resume() {
+        if (!paused) return;
+        paused = false;
+        Runnable step = parkedStep;
+        parkedStep = null;
+        if (step != null) step.run();
+    }
+
+    @Override
+    public void stop() {
+        if (!running) return;
+        release();
+        host.onRunFinished(this, captured);
+    }
+
+    @Override
+    public void destroy() {
+        if (running) release();
+    }
+
+    private void loadNext() {
+        while (next < host.getEntryCount() && host.shouldSkip(next)) next++;
+        if (next >= host.getEntryCount()) {
+            entry = null;
+            maybeFinish();
+            return;
+        }
+        int index = next++;
+        entry = new Entry(index, host.getFilename(index));
+        handler.postDelayed(pageReadyTimeout, settings.getPageReadyTimeoutMs());
+        view.scrollTo(0, 0);
+        views.load(view, index, entry.filename, host.getWebUrl(index));
+    }
+
+    private void onPageReady() {
+        handler.removeCallbacks(pageReadyTimeout);
+        handler.removeCallbacks(startCapture);
+        handler.postDelayed(startCapture, settings.getPageSettleMs());
+    }
+
+    private void startCapture() {
+        if (paused) {
+            parkedStep = this::startCapture;
+            return;
+        }
+        entry.started = true;
+        host.onEntryState(entry.index, ProgressJournal.RECORDING);
+        scrollToNextTile();
+    }
+
+    private void scrollToNextTile() {
+        Entry current = entry;
+        view.scrollTo(0, current.nextY);
+        view.postVisualStateCallback(current.index, new WebView.VisualStateCallback() {
+            @Override
+            public void onComplete(long requestId) {
+                if (entry == current) drawTile();
+            }
+        });
+    }
+
+    private void drawTile() {
+        if (!running) return;
+        if (paused) {
+            parkedStep = this::drawTile;
+            return;
+        }
+        Entry current = entry;
+        // The WebView clamps the scroll, so a short step means this is the bottom of the page
+        int y = view.getScrollY();
+        if (y <= current.lastY) {
+            finishCapture(current);
+            return;
+        }
+        Tile tile = pool.poll();
+        if (tile == null) {
+            // Every bitmap is still being encoded
+            handler.postDelayed(drawTile, POOL_RETRY_MS);
+            return;
+        }
+        tile.canvas.drawColor(Color.WHITE);
+        tile.canvas.save();
+        tile.canvas.translate(-view.getScrollX(), -y);
+        view.draw(tile.canvas);
+        tile.canvas.restore();
+        encode(current, tile, y);
+
+        current.lastY = y;
+        current.tiles++;
+        if (y < current.nextY || current.tiles >= MAX_TILES) {
+            finishCapture(current);
+        } else {
+            current.nextY = y + view.getHeight();
+            scrollToNextTile();
+        }
+    }
+
+    // Tiles may still be encoding; the entry is journaled once the last one is written
+    private void finishCapture(Entry current) {
+        current.captured = true;
+        completeIfDone(current);
+        loadNext();
+    }
+
+    private void encode(Entry current, Tile tile, int y) {
+        current.pending++;
+        inFlight++;
+        String name = String.format(Locale.US, "%s_%05d", current.filename, y);
+        String format = settings.getSnapshotFormat();
+        // Identifies the run, since a stopped run's tiles can still be written after the next one starts
+        ArrayBlockingQueue<Tile> owner = pool;
+        encoders.execute(() -> {
+            boolean ok = false;
+            try {
+                ok = write(tile.bitmap, current.filename, name, format);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to write " + name, e);
+            } finally {
+                owner.offer(tile);
+            }
+            boolean written = ok;
+            handler.post(() -> onTileWritten(owner, current, written));
+        });
+    }
+
+    private void onTileWritten(ArrayBlockingQueue<Tile> owner, Entry current, boolean ok) {
+        if (owner != pool) return;
+        inFlight--;
+        current.pending--;
+        if (!ok) current.failed = true;
+        completeIfDone(current);
+        maybeFinish();
+    }
+
+    private void completeIfDone(Entry current) {
+        if (!running || !current.captured || current.pending > 0) return;
+        boolean failed = current.failed || current.tiles == 0;
+        host.onEntryState(current.index, failed ? ProgressJournal.FAILED : ProgressJournal.DONE);
+        if (!failed) captured++;
+    }
+
+    private void maybeFinish() {
+        if (running && entry == null && inFlight == 0) {
+            release();
+            host.onRunFinished(this, captured);
+        }
+    }
+
+    // Encoder thread
+    private boolean write(Bitmap bitmap, String folder, String name, String format) {
+        boolean png = RecorderSettings.SNAPSHOT_PNG.equals(format);
+        ContentResolver resolver = context.getContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.Images.Media.RELATIVE_PATH, RELATIVE_PATH + folder + "/");
+        values.put(MediaStore.Images.Media.DISPLAY_NAME, name + (png ? ".png" : ".webp"));
+        values.put(MediaStore.Images.Media.MIME_TYPE, png ? "image/png" : "image/webp");
+        values.put(MediaStore.Images.Media.IS_PENDING, 1);
+        Uri uri = resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+        if (uri == null) {
+            Log.e(TAG, "Failed to create MediaStore record for " + name);
+            return false;
+        }
+        try (OutputStream out = resolver.openOutputStream(uri)) {
+            if (out == null || !bitmap.compress(compressFormat(png), png ? 100 : WEBP_QUALITY, out)) {
+                throw new IOException("Failed to encode " + name);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to write " + name, e);
+            resolver.delete(uri, null, null);
+            return false;
+        }
+        values.clear();
+        values.put(MediaStore.Images.Media.IS_PENDING, 0);
+        resolver.update(uri, values, null, null);
+        return true;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat compressFormat(boolean png) {
+        if (png) return Bitmap.CompressFormat.PNG;
+        // Before API 30 plain WEBP is lossy for any quality below 100
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+    }
+
+    private void release() {
+        running = false;
+        paused = false;
+        parkedStep = null;
+        handler.removeCallbacksAndMessages(null);
+        if (entry != null && entry.started) {
+            host.onEntryState(entry.index, ProgressJournal.FAILED);
+        }
+        entry = null;
+        inFlight = 0;
+        // Queued tiles still finish; their bitmaps are simply not reused
+        encoders.shutdown();
+        pool = null;
+        if (view != null) {
+            views.discard(view);
+            view = null;
+        }
+    }
+}
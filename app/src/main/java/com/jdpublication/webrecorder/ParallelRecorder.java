@@ -0,0 +1,445 @@
+package com.jdpublication.webrecorder;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.WebView;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Records several playlist entries at once, each in its own offscreen WebView drawn straight into
+// its own encoder by a WebViewCapture. How many run at once follows from the encoder's instance and
+// throughput limits and the app's memory class. An encoder that will not start, or sessions whose
+// encoders keep falling behind, lower that number, and no new session is admitted while any running
+// one is behind. Video only, since the microphone cannot be split, and only while the activity is in
+// front.
+public class ParallelRecorder implements PlaylistRunner {
+
+    private static final String TAG = "ParallelRecorder";
+    private static final int MAX_SESSIONS = 4;
+    // Rough share of the memory class one more renderer and its encoder buffers take
+    private static final int SESSION_MEMORY_MB = 96;
+    private static final long HEALTH_INTERVAL_MS = 1000;
+    // An encoded frame rate below this share of the target counts as falling behind
+    private static final float MIN_FPS_RATIO = 0.8f;
+    // Consecutive behind samples before the session limit drops
+    private static final int LAG_STRIKES = 3;
+    private static final String BLANK_URL = "about:blank";
+
+    private enum State {LOADING, SETTLING, RECORDING}
+
+    private final class Session implements RecordingEngine.Listener {
+        final WebView view;
+        final WebViewCapture capture = new WebViewCapture();
+        final RecordingMetrics metrics = new RecordingMetrics();
+        int index;
+        State state = State.LOADING;
+        boolean startPending = false;
+        // Stopped before its time was up, so it is journaled failed whatever the file turns out like
+        boolean cutShort = false;
+        volatile SegmentSet segmentSet;
+        RecordingEngine engine;
+        long endsAt;
+        long remainingOnPause;
+        int samples = 0;
+        int lagStrikes = 0;
+
+        final Runnable pageReadyTimeout = () -> {
+            Log.w(TAG, "Page ready timeout for entry " + index);
+            onPageReady(this);
+        };
+        final Runnable startRecording = () -> startRecording(this);
+        final Runnable endRecording = () -> endRecording(this);
+
+        Session(WebView view) {
+            this.view = view;
+        }
+
+        @Override
+        public void onOutputFinished(RecordingOutput output, boolean success) {
+            ParallelRecorder.this.onOutputFinished(output, success);
+        }
+
+        @Override
+        public RecordingOutput onRolloverNeeded() {
+            SegmentSet set = segmentSet;
+            if (set == null) return null;
+            try {
+                RecordingOutput next = set.newOutput(context);
+                if (next != null) segmentOwners.put(next, set);
+                return next;
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Failed to create the next part, continuing in the current file", e);
+                return null;
+            }
+        }
+    }
+
+    private final Context context;
+    private final OffscreenViews views;
+    private final RecorderSettings settings;
+    private final Host host;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // Draining an encoder blocks for up to a few seconds, so it happens off the main thread
+    private final ExecutorService stopper = Executors.newCachedThreadPool();
+    private final Map<RecordingOutput, SegmentSet> segmentOwners = new ConcurrentHashMap<>();
+
+    private final List<Session> sessions = new ArrayList<>();
+    private final List<WebView> idleViews = new ArrayList<>();
+    // Entries handed back because their encoder could not start yet
+    private final ArrayDeque<Integer> retries = new ArrayDeque<>();
+    private EncoderConfig config;
+    private boolean running = false;
+    private boolean paused = false;
+    private int next;
+    private int limit;
+    private int stopping = 0;
+    // Entries whose files are not finished yet; each is journaled once its SegmentSet settles
+    private int settling = 0;
+    private int recorded = 0;
+    private boolean destroyed = false;
+
+    private final Runnable healthCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkHealth();
+            handler.postDelayed(this, HEALTH_INTERVAL_MS);
+        }
+    };
+
+    public ParallelRecorder(Context context, OffscreenViews views, RecorderSettings settings, Host host) {
+        this.context = context;
+        this.views = views;
+        this.settings = settings;
+        this.host = host;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    // Returns how many sessions may run at once
+    public int start(int fromIndex, EncoderConfig config) {
+        this.config = config;
+        next = fromIndex;
+        limit = pickConcurrency(context, config);
+        recorded = 0;
+        running = true;
+        paused = false;
+        Log.d(TAG, "Recording up to " + limit + " entries at once");
+        handler.postDelayed(healthCheck, HEALTH_INTERVAL_MS);
+        fill();
+        return limit;
+    }
+
+    static int pickConcurrency(Context context, EncoderConfig config) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am.isLowRamDevice()) return 1;
+        int byMemory = Math.max(1, am.getMemoryClass() / SESSION_MEMORY_MB);
+        int byEncoder = EncoderProfiles.concurrentStreams(config);
+        return Math.max(1, Math.min(MAX_SESSIONS, Math.min(byMemory, byEncoder)));
+    }
+
+    @Override
+    public boolean onPageFinished(WebView view, String url) {
+        if (idleViews.contains(view)) return true;
+        Session session = sessionFor(view);
+        if (session == null) return false;
+        // A recycled view may still report the blank page it was parked on
+        if (session.state == State.LOADING && !BLANK_URL.equals(url)) {
+            int index = session.index;
+            view.postVisualStateCallback(index, new WebView.VisualStateCallback() {
+                @Override
+                public void onComplete(long requestId) {
+                    if (sessions.contains(session) && session.index == requestId) onPageReady(session);
+                }
+            });
+        }
+        return true;
+    }
+
+    @Override
+    public void pause() {
+        if (!running || paused) return;
+        paused = true;
+        long now = SystemClock.uptimeMillis();
+        for (Session session : sessions) {
+            if (session.state != State.RECORDING) continue;
+            handler.removeCallbacks(session.endRecording);
+            session.remainingOnPause = Math.max(0, session.endsAt - now);
+            session.engine.pause();
+            session.metrics.stopClock();
+        }
+    }
+
+    @Override
+    public void resume() {
+        if (!running || !paused) return;
+        paused = false;
+        for (Session session : new ArrayList<>(sessions)) {
+            if (session.startPending) {
+                session.startPending = false;
+                startRecording(session);
+            } else if (session.state == State.RECORDING) {
+                session.engine.resume();
+                session.metrics.startClock();
+                scheduleEnd(session, session.remainingOnPause);
+            }
+        }
+        fill();
+    }
+
+    @Override
+    public void stop() {
+        if (!running) return;
+        release();
+        host.onRunFinished(this, recorded);
+    }
+
+    @Override
+    public void destroy() {
+        destroyed = true;
+        if (running) release();
+        stopper.shutdown();
+    }
+
+    public void onTrimMemory(int level) {
+        if (!running || level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) return;
+        if (limit > 1) {
+            limit--;
+            Log.d(TAG, "Memory is low, limit is now " + limit);
+        }
+    }
+
+    private void fill() {
+        while (running && !paused && sessions.size() < limit && !anyBehind()) {
+            int index = nextEntry();
+            if (index < 0) break;
+            startSession(index);
+        }
+        if (running && sessions.isEmpty() && stopping == 0 && settling == 0 && !hasMoreEntries()) {
+            release();
+            host.onRunFinished(this, recorded);
+        }
+    }
+
+    private int nextEntry() {
+        if (!retries.isEmpty()) return retries.poll();
+        while (next < host.getEntryCount() && host.shouldSkip(next)) next++;
+        return next < host.getEntryCount() ? next++ : -1;
+    }
+
+    private boolean hasMoreEntries() {
+        if (!retries.isEmpty()) return true;
+        while (next < host.getEntryCount() && host.shouldSkip(next)) next++;
+        return next < host.getEntryCount();
+    }
+
+    private void startSession(int index) {
+        WebView view = !idleViews.isEmpty() ? idleViews.remove(idleViews.size() - 1) : views.create();
+        Session session = new Session(view);
+        session.index = index;
+        sessions.add(session);
+
+        handler.postDelayed(session.pageReadyTimeout, settings.getPageReadyTimeoutMs());
+        views.load(view, index, host.getFilename(index), host.getWebUrl(index));
+    }
+
+    private void onPageReady(Session session) {
+        if (session.state != State.LOADING) return;
+        handler.removeCallbacks(session.pageReadyTimeout);
+        session.state = State.SETTLING;
+        handler.postDelayed(session.startRecording, settings.getPageSettleMs());
+    }
+
+    private void startRecording(Session session) {
+        if (paused) {
+            session.startPending = true;
+            return;
+        }
+        SegmentSet set = new SegmentSet(host.getFilename(session.index), settings.isJoinSegmentsEnabled(), RecordingPublisher.get(context),
+                complete -> handler.post(() -> onSettled(session, complete)));
+        RecordingOutput output = null;
+        RecordingEngine engine = new CodecEngine(config, session, session.metrics);
+        engine.setRolloverLimits(settings.getSegmentMaxBytes(), settings.getSegmentMaxDurationMs());
+        try {
+            output = set.newOutput(context);
+            if (output == null) throw new IOException("Entry already closed");
+            segmentOwners.put(output, set);
+            engine.prepare(output);
+            engine.start();
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Encoder unavailable for entry " + session.index, e);
+            // Closed before it counts as settling, so its outcome is ignored
+            session.cutShort = true;
+            if (output != null) onOutputFinished(output, false);
+            set.close();
+            onEncoderUnavailable(session);
+            return;
+        }
+        settling++;
+        session.segmentSet = set;
+        session.engine = engine;
+        session.state = State.RECORDING;
+        host.onEntryState(session.index, ProgressJournal.RECORDING);
+        session.capture.setView(session.view);
+        session.capture.setMetrics(session.metrics);
+        session.capture.onCaptureSurface(engine.getInputSurface(), config.width, config.height, config.frameRate);
+        session.metrics.startClock();
+        scheduleEnd(session, settings.getBatchDurationMs());
+    }
+
+    // Backpressure: the encoder is out of instances, so run fewer sessions and retry the entry later.
+    // A codec that is still being released elsewhere is only a transient shortage.
+    private void onEncoderUnavailable(Session session) {
+        int index = session.index;
+        recycle(session);
+        if (sessions.isEmpty() && stopping == 0) {
+            // Not even one encoder: this entry cannot be recorded at all
+            host.onEntryState(index, ProgressJournal.FAILED);
+        } else {
+            if (stopping == 0) limit = Math.max(1, sessions.size());
+            retries.addFirst(index);
+            Log.d(TAG, "Entry " + index + " waits for an encoder, limit is now " + limit);
+        }
+        if (stopping == 0) fill();
+    }
+
+    private void scheduleEnd(Session session, long delay) {
+        session.endsAt = SystemClock.uptimeMillis() + delay;
+        handler.postDelayed(session.endRecording, delay);
+    }
+
+    // The entry is journaled once the encoder has drained and its file is saved or discarded
+    private void endRecording(Session session) {
+        stopEncoder(session);
+        recycle(session);
+        fill();
+    }
+
+    private void onSettled(Session session, boolean complete) {
+        if (session.cutShort) return;
+        settling--;
+        if (destroyed) return;
+        if (complete) recorded++;
+        host.onEntryState(session.index, complete ? ProgressJournal.DONE : ProgressJournal.FAILED);
+        fill();
+    }
+
+    // The capture lets go of the surface before the encoder drains and releases it
+    private void stopEncoder(Session session) {
+        session.capture.onCaptureSurface(null, 0, 0, 0);
+        session.capture.setView(null);
+        session.metrics.stopClock();
+        SegmentSet set = session.segmentSet;
+        session.segmentSet = null;
+        if (set != null) set.close();
+        RecordingEngine engine = session.engine;
+        session.engine = null;
+        if (engine == null) return;
+        stopping++;
+        stopper.execute(() -> {
+            engine.stop();
+            handler.post(() -> {
+                stopping--;
+                fill();
+            });
+        });
+    }
+
+    // Any thread
+    private void onOutputFinished(RecordingOutput output, boolean success) {
+        File finished = null;
+        if (success) {
+            finished = output.finish();
+        } else {
+            Log.e(TAG, "Discarding unplayable recording " + output.getName());
+            output.discard();
+        }
+        SegmentSet set = segmentOwners.remove(output);
+        if (set != null) set.onPartFinished(output, finished);
+    }
+
+    private void checkHealth() {
+        boolean overloaded = false;
+        for (Session session : sessions) {
+            if (session.state != State.RECORDING || paused) continue;
+            RecordingStats stats = session.metrics.sample();
+            // The first sample has no rate yet
+            if (++session.samples < 2) continue;
+            boolean behind = stats.encodedFps < config.frameRate * MIN_FPS_RATIO
+                    || stats.queueDepth > config.frameRate;
+            session.lagStrikes = behind ? session.lagStrikes + 1 : 0;
+            if (session.lagStrikes >= LAG_STRIKES) overloaded = true;
+        }
+        if (overloaded && limit > 1) {
+            limit = Math.max(1, Math.min(limit, sessions.size()) - 1);
+            for (Session session : sessions) session.lagStrikes = 0;
+            Log.d(TAG, "Encoders are falling behind, limit is now " + limit);
+        }
+        if (!anyBehind()) fill();
+    }
+
+    private boolean anyBehind() {
+        for (Session session : sessions) {
+            if (session.lagStrikes > 0) return true;
+        }
+        return false;
+    }
+
+    private void recycle(Session session) {
+        handler.removeCallbacks(session.pageReadyTimeout);
+        handler.removeCallbacks(session.startRecording);
+        handler.removeCallbacks(session.endRecording);
+        sessions.remove(session);
+        WebView view = session.view;
+        view.stopLoading();
+        if (idleViews.size() < limit) {
+            // Drops the page and its renderer memory but keeps the view for the next entry
+            view.loadUrl(BLANK_URL);
+            idleViews.add(view);
+        } else {
+            views.discard(view);
+        }
+    }
+
+    private void release() {
+        running = false;
+        handler.removeCallbacks(healthCheck);
+        for (Session session : new ArrayList<>(sessions)) {
+            if (session.state == State.RECORDING) {
+                session.cutShort = true;
+                settling--;
+                stopEncoder(session);
+                host.onEntryState(session.index, ProgressJournal.FAILED);
+            }
+            recycle(session);
+        }
+        for (WebView view : idleViews) views.discard(view);
+        idleViews.clear();
+        retries.clear();
+    }
+
+    @Nullable
+    private Session sessionFor(WebView view) {
+        for (Session session : sessions) {
+            if (session.view == view) return session;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,117 @@
+package com.jdpublication.webrecorder;
+
+import android.media.AudioRecord;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Single-producer, single-consumer PCM ring with no locks and no allocation after construction. The
+// capture thread reads the AudioRecord straight into free space and tags each chunk with the
+// capture time of its first frame; the encoder side copies out into codec input buffers and asks
+// for the time at its read position. Positions only grow, so full and empty are told apart without
+// a spare slot. When the reader falls behind, new audio is dropped rather than making the capture
+// thread wait, and the chunk tags keep the timestamps after the gap right.
+final class PcmRingBuffer {
+
+    private final byte[] data;
+    private final int mask;
+    private final int frameBytes;
+    private final int sampleRate;
+    // Chunk tags: where a chunk starts in the stream and when its first frame was captured
+    private final long[] chunkStart;
+    private final long[] chunkPtsUs;
+    private final int chunkMask;
+
+    private final AtomicLong writePos = new AtomicLong();
+    private final AtomicLong readPos = new AtomicLong();
+    private final AtomicLong chunksPublished = new AtomicLong();
+    // Tags before this one are no longer read and may be reused
+    private final AtomicLong chunksReleased = new AtomicLong();
+    // Producer only
+    private long chunksWritten = 0;
+    // Consumer only
+    private long chunkCursor = 0;
+
+    // capacityBytes and maxChunks are rounded up to powers of two
+    PcmRingBuffer(int capacityBytes, int maxChunks, int frameBytes, int sampleRate) {
+        int capacity = Integer.highestOneBit(Math.max(capacityBytes, 1024) - 1) << 1;
+        int chunks = Integer.highestOneBit(Math.max(maxChunks, 4) - 1) << 1;
+        data = new byte[capacity];
+        mask = capacity - 1;
+        chunkStart = new long[chunks];
+        chunkPtsUs = new long[chunks];
+        chunkMask = chunks - 1;
+        this.frameBytes = frameBytes;
+        this.sampleRate = sampleRate;
+    }
+
+    // Producer: contiguous free space, whole frames only, at most max bytes
+    int writableBytes(int max) {
+        long w = writePos.get();
+        long free = data.length - (w - readPos.get());
+        int contiguous = data.length - (int) (w & mask);
+        int n = (int) Math.min(Math.min(free, contiguous), max);
+        // Every live chunk needs a tag, so a full tag ring counts as full too
+        if (chunksWritten - chunksReleased.get() >= chunkStart.length) return 0;
+        return n - n % frameBytes;
+    }
+
+    // Producer: blocks in AudioRecord.read; returns the bytes read or the AudioRecord error
+    int writeFrom(AudioRecord record, int length, long ptsUs) {
+        long w = writePos.get();
+        int read = record.read(data, (int) (w & mask), length);
+        if (read <= 0) return read;
+        int tag = (int) (chunksWritten & chunkMask);
+        chunkStart[tag] = w;
+        chunkPtsUs[tag] = ptsUs;
+        chunksWritten++;
+        // Publishing the position also publishes the tag written before it
+        chunksPublished.set(chunksWritten);
+        writePos.set(w + read);
+        return read;
+    }
+
+    // Consumer
+    int readableBytes() {
+        return (int) (writePos.get() - readPos.get());
+    }
+
+    // Consumer: capture time of the frame at the read position
+    long peekPtsUs() {
+        long r = readPos.get();
+        advanceCursor(r);
+        int tag = (int) (chunkCursor & chunkMask);
+        long frames = (r - chunkStart[tag]) / frameBytes;
+        return chunkPtsUs[tag] + frames * 1_000_000L / sampleRate;
+    }
+
+    // Consumer: copies up to max bytes, whole frames only, into target and frees them. A copy never
+    // runs past the end of a chunk, so a gap left by dropped audio cannot hide inside one buffer.
+    int readInto(ByteBuffer target, int max) {
+        long r = readPos.get();
+        long end = writePos.get();
+        advanceCursor(r);
+        if (chunkCursor + 1 < chunksPublished.get()) {
+            end = Math.min(end, chunkStart[(int) ((chunkCursor + 1) & chunkMask)]);
+        }
+        int n = (int) Math.min(end - r, Math.min(max, target.remaining()));
+        n -= n % frameBytes;
+        if (n <= 0) return 0;
+        int offset = (int) (r & mask);
+        int first = Math.min(n, data.length - offset);
+        target.put(data, offset, first);
+        if (n > first) target.put(data, 0, n - first);
+        readPos.set(r + n);
+        return n;
+    }
+
+    private void advanceCursor(long r) {
+        long published = chunksPublished.get();
+        long cursor = chunkCursor;
+        while (cursor + 1 < published && chunkStart[(int) ((cursor + 1) & chunkMask)] <= r) cursor++;
+        if (cursor != chunkCursor) {
+            chunkCursor = cursor;
+            chunksReleased.set(cursor);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.jdpublication.webrecorder;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+// Parsed playlists keyed by document identity, so re-picking the same sheet skips parsing entirely.
+// Entries are PlaylistStore index files, evicted least-recently-used once the directory exceeds its budget,
+// together with their progress journals.
+public class PlaylistCache {
+
+    private static final String TAG = "PlaylistCache";
+    private static final String DIR = "playlists";
+    private static final String PREFS = "playlist_cache";
+    private static final String KEY_ACTIVE = "active";
+    private static final String KEY_INDEX_PREFIX = "index_";
+    private static final String KEY_QUALITY_PREFIX = "quality_";
+    private static final String KEY_ALLOW_PREFIX = "allow_";
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+
+    private final ContentResolver resolver;
+    private final File dir;
+    private final SharedPreferences prefs;
+
+    public PlaylistCache(Context context) {
+        resolver = context.getContentResolver();
+        dir = new File(context.getFilesDir(), DIR);
+        //noinspection ResultOfMethodCallIgnored
+        dir.mkdirs();
+        prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    // Uri + size + last-modified when the provider reports them, otherwise a hash of the content;
+    // null when the provider will not let us read it, so the playlist is parsed without the cache
+    @Nullable
+    public String keyFor(Uri uri) throws IOException {
+        long size = -1;
+        long lastModified = -1;
+        try (Cursor cursor = resolver.query(uri, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int sizeColumn = cursor.getColumnIndex(OpenableColumns.SIZE);
+                int modifiedColumn = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                if (sizeColumn != -1 && !cursor.isNull(sizeColumn)) size = cursor.getLong(sizeColumn);
+                if (modifiedColumn != -1 && !cursor.isNull(modifiedColumn)) lastModified = cursor.getLong(modifiedColumn);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "keyFor: metadata query failed", e);
+        }
+
+        MessageDigest digest = newDigest();
+        if (size > 0 && lastModified > 0) {
+            digest.update((uri + "|" + size + "|" + lastModified).getBytes(StandardCharsets.UTF_8));
+        } else {
+            try (InputStream is = resolver.openInputStream(uri)) {
+                if (is == null) throw new IOException("Unable to open " + uri);
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            } catch (SecurityException e) {
+                // The grant on a picked document can be gone by the time we hash it
+                Log.w(TAG, "keyFor: no read access to " + uri, e);
+                return null;
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    @Nullable
+    public PlaylistStore load(String key) {
+        File file = fileFor(key);
+        if (!file.exists()) return null;
+        try {
+            PlaylistStore store = PlaylistStore.open(file);
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());
+            return store;
+        } catch (IOException e) {
+            Log.w(TAG, "load: dropping unreadable entry " + key, e);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    public void store(String key, PlaylistStore store) throws IOException {
+        store.save(fileFor(key));
+        trim(key);
+    }
+
+    @Nullable
+    public String getActiveKey() {
+        return prefs.getString(KEY_ACTIVE, null);
+    }
+
+    public void setActiveKey(String key) {
+        prefs.edit().putString(KEY_ACTIVE, key).apply();
+    }
+
+    public int getIndex(String key) {
+        return prefs.getInt(KEY_INDEX_PREFIX + key, 0);
+    }
+
+    public void putIndex(String key, int index) {
+        prefs.edit().putInt(KEY_INDEX_PREFIX + key, index).apply();
+    }
+
+    // Recording quality chosen for this playlist, or fallback if none was picked yet
+    public EncoderProfiles.Quality getQuality(String key, EncoderProfiles.Quality fallback) {
+        String name = prefs.getString(KEY_QUALITY_PREFIX + key, null);
+        if (name == null) return fallback;
+        try {
+            return EncoderProfiles.Quality.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+
+    public void putQuality(String key, EncoderProfiles.Quality quality) {
+        prefs.edit().putString(KEY_QUALITY_PREFIX + key, quality.name()).apply();
+    }
+
+    // Batch progress for this playlist of size entries; replayed on the calling thread
+    public ProgressJournal openJournal(String key, int size) throws IOException {
+        return ProgressJournal.open(journalFor(key), size);
+    }
+
+    private File journalFor(String key) {
+        return new File(dir, key + ".journal");
+    }
+
+    // Hosts the blocklist leaves alone for this playlist
+    public Set<String> getAllowList(String key) {
+        return new HashSet<>(prefs.getStringSet(KEY_ALLOW_PREFIX + key, Collections.emptySet()));
+    }
+
+    public void putAllowList(String key, Set<String> hosts) {
+        prefs.edit().putStringSet(KEY_ALLOW_PREFIX + key, new HashSet<>(hosts)).apply();
+    }
+
+    private File fileFor(String key) {
+        return new File(dir, key + ".idx");
+    }
+
+    private void trim(String keep) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".idx"));
+        if (files == null) return;
+
+        long total = 0;
+        for (File file : files) total += file.length();
+        if (total <= MAX_BYTES) return;
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        String active = getActiveKey();
+        SharedPreferences.Editor editor = prefs.edit();
+        for (File file : files) {
+            if (total <= MAX_BYTES) break;
+            String key = file.getName().substring(0, file.getName().length() - 4);
+            if (key.equals(keep) || key.equals(active)) continue;
+            total -= file.length();
+            //noinspection ResultOfMethodCallIgnored
+            journalFor(key).delete();
+            if (file.delete()) editor.remove(KEY_INDEX_PREFIX + key).remove(KEY_QUALITY_PREFIX + key).remove(KEY_ALLOW_PREFIX + key);
+        }
+        editor.apply();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
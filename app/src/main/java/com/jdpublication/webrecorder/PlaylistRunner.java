@@ -0,0 +1,40 @@
+package com.jdpublication.webrecorder;
+
+import android.webkit.WebView;
+
+// Walks the playlist in its own offscreen WebViews while the activity is in front: ParallelRecorder
+// and PageSnapshotter. Only one runs at a time, and the activity drives either through this.
+public interface PlaylistRunner {
+
+    interface Host {
+        int getEntryCount();
+
+        String getFilename(int index);
+
+        String getWebUrl(int index);
+
+        // Entries that are passed over without being loaded
+        boolean shouldSkip(int index);
+
+        // One of ProgressJournal's states
+        void onEntryState(int index, int state);
+
+        // After stop() or once every entry is done; completed counts the entries recorded or captured
+        void onRunFinished(PlaylistRunner runner, int completed);
+    }
+
+    boolean isRunning();
+
+    // True when view belongs to this runner, now or earlier in the run
+    boolean onPageFinished(WebView view, String url);
+
+    void pause();
+
+    void resume();
+
+    // Entries cut short are journaled as failed
+    void stop();
+
+    // Like stop() without telling the host, for when the activity goes away
+    void destroy();
+}
@@ -0,0 +1,266 @@
+package com.jdpublication.webrecorder;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Finishes recordings after the fact: a poster frame in Pictures/WebRecordings and
+// duration/size/dimensions in MediaStore. The moov atom is already at the front, RecordingPublisher
+// and TranscodeQueue relocate it as they write. Jobs run one at a time on a background-priority
+// thread; a failed job is rescheduled rather than slept on, so it never holds the thread. The queue
+// is persisted, so anything unfinished when the process dies is picked up by resume().
+public class PostProcessor {
+
+    private static final String TAG = "PostProcessor";
+    private static final int THUMBNAIL_MAX_SIDE = 512;
+    // Retries within one process; a job that still fails stays queued for the next start
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 5000;
+
+    private static PostProcessor instance;
+
+    private final Context context;
+    private final File workDir;
+    private final File queueFile;
+    private final Set<String> queued = new LinkedHashSet<>();
+    private final Map<String, Integer> attempts = new HashMap<>();
+    private final ScheduledThreadPoolExecutor executor;
+    private boolean resumed = false;
+
+    public static synchronized PostProcessor get(Context context) {
+        if (instance == null) instance = new PostProcessor(context.getApplicationContext());
+        return instance;
+    }
+
+    private PostProcessor(Context context) {
+        this.context = context;
+        workDir = new File(context.getFilesDir(), "postprocess");
+        queueFile = new File(workDir, "queue");
+        executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_LESS_FAVORABLE);
+                runnable.run();
+            }, TAG);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public synchronized void enqueue(Uri uri) {
+        resume();
+        if (!queued.add(uri.toString())) return;
+        persistQueue();
+        submit(uri.toString(), 0);
+    }
+
+    // Re-submits whatever a previous process left in the queue; safe to call repeatedly
+    public synchronized void resume() {
+        if (resumed) return;
+        resumed = true;
+        if (!workDir.isDirectory() && !workDir.mkdirs()) {
+            Log.e(TAG, "Cannot create " + workDir);
+            return;
+        }
+        if (!queueFile.isFile()) return;
+        try {
+            for (String line : Files.readAllLines(queueFile.toPath(), StandardCharsets.UTF_8)) {
+                if (!line.isEmpty() && queued.add(line)) submit(line, 0);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read queue", e);
+        }
+    }
+
+    private void submit(String uri, long delayMs) {
+        executor.schedule(() -> {
+            boolean retry = false;
+            try {
+                process(Uri.parse(uri));
+            } catch (FileNotFoundException e) {
+                if (recordingExists(Uri.parse(uri))) {
+                    Log.e(TAG, "Recording unavailable, retrying " + uri, e);
+                    retry = true;
+                } else {
+                    Log.w(TAG, "Recording is gone, dropping " + uri);
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Post-processing failed for " + uri, e);
+                retry = true;
+            }
+            synchronized (this) {
+                if (retry) {
+                    int attempt = attempts.merge(uri, 1, Integer::sum);
+                    if (attempt < MAX_ATTEMPTS) {
+                        submit(uri, RETRY_DELAY_MS * attempt);
+                    } else {
+                        Log.e(TAG, "Giving up on " + uri + " until the next start");
+                    }
+                    return;
+                }
+                attempts.remove(uri);
+                queued.remove(uri);
+                persistQueue();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void persistQueue() {
+        File tmp = new File(workDir, "queue.tmp");
+        try {
+            Files.write(tmp.toPath(), new ArrayList<>(queued), StandardCharsets.UTF_8);
+            if (!tmp.renameTo(queueFile)) throw new IOException("rename failed");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to persist queue", e);
+        }
+    }
+
+    private void process(Uri uri) throws IOException {
+        long started = SystemClock.elapsedRealtime();
+        writeThumbnail(uri);
+        writeMetadata(uri);
+        Log.d(TAG, "Processed " + uri + " in " + (SystemClock.elapsedRealtime() - started) + " ms");
+    }
+
+    private void writeThumbnail(Uri uri) throws IOException {
+        String title = queryTitle(uri);
+        if (title == null) throw new FileNotFoundException(uri.toString());
+        String displayName = title + ".jpg";
+        String relativePath = Environment.DIRECTORY_PICTURES + "/WebRecordings/";
+        ContentResolver resolver = context.getContentResolver();
+        if (imageExists(resolver, displayName, relativePath)) return;
+
+        Bitmap frame;
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try (ParcelFileDescriptor pfd = openOrThrow(resolver, uri, "r")) {
+            retriever.setDataSource(pfd.getFileDescriptor());
+            long durationMs = parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
+            // A second in, the page is usually past its first paint
+            long atUs = Math.min(1000, durationMs / 2) * 1000;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+                frame = retriever.getScaledFrameAtTime(atUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC, THUMBNAIL_MAX_SIDE, THUMBNAIL_MAX_SIDE);
+            } else {
+                frame = retriever.getFrameAtTime(atUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            }
+        } finally {
+            retriever.release();
+        }
+        if (frame == null) {
+            Log.w(TAG, "No poster frame for " + uri);
+            return;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.Images.Media.RELATIVE_PATH, relativePath);
+        values.put(MediaStore.Images.Media.DISPLAY_NAME, displayName);
+        values.put(MediaStore.Images.Media.MIME_TYPE, "image/jpeg");
+        Uri imageUri = resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+        if (imageUri == null) throw new IOException("Failed to create thumbnail record.");
+        try (OutputStream os = resolver.openOutputStream(imageUri)) {
+            if (os == null) throw new IOException("Unable to open " + imageUri);
+            frame.compress(Bitmap.CompressFormat.JPEG, 85, os);
+        } catch (IOException | RuntimeException e) {
+            resolver.delete(imageUri, null, null);
+            throw e;
+        } finally {
+            frame.recycle();
+        }
+    }
+
+    private void writeMetadata(Uri uri) throws IOException {
+        ContentResolver resolver = context.getContentResolver();
+        ContentValues values = new ContentValues();
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try (ParcelFileDescriptor pfd = openOrThrow(resolver, uri, "r")) {
+            retriever.setDataSource(pfd.getFileDescriptor());
+            values.put(MediaStore.Video.Media.DURATION, parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)));
+            values.put(MediaStore.Video.Media.WIDTH, parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH)));
+            values.put(MediaStore.Video.Media.HEIGHT, parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT)));
+            values.put(MediaStore.Video.Media.SIZE, pfd.getStatSize());
+        } finally {
+            retriever.release();
+        }
+        resolver.update(uri, values, null, null);
+    }
+
+    private boolean recordingExists(Uri uri) {
+        try {
+            return queryTitle(uri) != null;
+        } catch (RuntimeException e) {
+            // Cannot tell, so the job is retried
+            return true;
+        }
+    }
+
+    @Nullable
+    private String queryTitle(Uri uri) {
+        try (Cursor cursor = context.getContentResolver().query(uri, new String[]{MediaStore.Video.Media.TITLE}, null, null, null)) {
+            if (cursor == null || !cursor.moveToFirst()) return null;
+            return cursor.getString(0);
+        }
+    }
+
+    private static boolean imageExists(ContentResolver resolver, String displayName, String relativePath) {
+        String selection = MediaStore.Images.Media.DISPLAY_NAME + "=? AND " + MediaStore.Images.Media.RELATIVE_PATH + "=?";
+        try (Cursor cursor = resolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, new String[]{MediaStore.Images.Media._ID},
+                selection, new String[]{displayName, relativePath}, null)) {
+            return cursor != null && cursor.getCount() > 0;
+        }
+    }
+
+    private static ParcelFileDescriptor openOrThrow(ContentResolver resolver, Uri uri, String mode) throws FileNotFoundException {
+        ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, mode);
+        if (pfd == null) throw new FileNotFoundException(uri.toString());
+        return pfd;
+    }
+
+    private static long parseLong(@Nullable String value) {
+        if (value == null) return 0;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static String jobName(Uri uri) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(uri.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 8; i++) sb.append(String.format("%02x", digest[i]));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.jdpublication.webrecorder;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Append-only record of what happened to each playlist entry, so a killed batch run can pick up where
+// it stopped. Every state change is one fixed-size record (index, state, wall-clock time); replay maps
+// the file and keeps the last state per entry. A torn record at the tail and any record outside the
+// playlist or without a time are ignored, so a damaged file never decides how much is allocated.
+// Writes reach the file right away but are only fsynced in batches. Once most records are superseded
+// the journal is rewritten as one record per entry.
+public class ProgressJournal {
+
+    private static final String TAG = "ProgressJournal";
+
+    public static final int PENDING = 0;
+    public static final int RECORDING = 1;
+    public static final int DONE = 2;
+    public static final int FAILED = 3;
+
+    private static final int RECORD_BYTES = 16;
+    private static final long SYNC_DELAY_MS = 1000;
+    private static final int COMPACT_FACTOR = 4;
+    private static final int COMPACT_MIN_RECORDS = 1024;
+
+    private final File file;
+    private final HandlerThread thread;
+    private final Handler writer;
+    // Writer thread only
+    private final FileChannel channel;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private boolean syncScheduled = false;
+
+    // Guarded by this; one slot per playlist entry
+    private final byte[] states;
+    private final long[] times;
+    private int doneCount = 0;
+
+    private final Runnable sync = this::sync;
+
+    // Replays the journal on the calling thread
+    public static ProgressJournal open(File file, int size) throws IOException {
+        return new ProgressJournal(file, size);
+    }
+
+    private ProgressJournal(File file, int size) throws IOException {
+        this.file = file;
+        states = new byte[size];
+        times = new long[size];
+        int records = replay();
+        if (records > COMPACT_MIN_RECORDS && records > COMPACT_FACTOR * countRecorded()) compact();
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        // Drops a torn tail so new records stay aligned
+        channel.truncate(channel.size() - channel.size() % RECORD_BYTES);
+        channel.position(channel.size());
+
+        thread = new HandlerThread(TAG);
+        thread.start();
+        writer = new Handler(thread.getLooper());
+    }
+
+    private int replay() throws IOException {
+        if (!file.isFile()) return 0;
+        try (FileChannel in = new RandomAccessFile(file, "r").getChannel()) {
+            long length = in.size() - in.size() % RECORD_BYTES;
+            if (length == 0) return 0;
+            MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            int count = (int) (length / RECORD_BYTES);
+            for (int i = 0; i < count; i++) {
+                int index = map.getInt();
+                int state = map.getInt();
+                long time = map.getLong();
+                if (index >= 0 && index < states.length && state >= PENDING && state <= FAILED && time != 0) {
+                    apply(index, state, time);
+                }
+            }
+            return count;
+        }
+    }
+
+    private int countRecorded() {
+        int recorded = 0;
+        for (long time : times) {
+            if (time != 0) recorded++;
+        }
+        return recorded;
+    }
+
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = new RandomAccessFile(tmp, "rw").getChannel()) {
+            out.truncate(0);
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < states.length; i++) {
+                if (times[i] == 0) continue;
+                if (buffer.remaining() < RECORD_BYTES) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) out.write(buffer);
+                    buffer.clear();
+                }
+                buffer.putInt(i).putInt(states[i]).putLong(times[i]);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) out.write(buffer);
+            out.force(false);
+        }
+        if (!tmp.renameTo(file)) throw new IOException("Cannot replace " + file);
+        Log.d(TAG, "Compacted " + file.getName());
+    }
+
+    private void apply(int index, int state, long time) {
+        if (states[index] == DONE) doneCount--;
+        if (state == DONE) doneCount++;
+        states[index] = (byte) state;
+        times[index] = time;
+    }
+
+    public void record(int index, int state) {
+        if (index < 0 || index >= states.length) return;
+        long time = System.currentTimeMillis();
+        synchronized (this) {
+            apply(index, state, time);
+        }
+        writer.post(() -> append(index, state, time));
+    }
+
+    public synchronized int getState(int index) {
+        return index < states.length ? states[index] : PENDING;
+    }
+
+    public synchronized int getDoneCount() {
+        return doneCount;
+    }
+
+    public synchronized boolean isEmpty() {
+        return countRecorded() == 0;
+    }
+
+    // First entry that was neither recorded nor given up on; size if all of them were
+    public synchronized int firstUnfinished(int size) {
+        for (int i = 0; i < size; i++) {
+            int state = i < states.length ? states[i] : PENDING;
+            if (state != DONE && state != FAILED) return i;
+        }
+        return size;
+    }
+
+    public void close() {
+        writer.post(() -> {
+            writer.removeCallbacks(sync);
+            sync();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close", e);
+            }
+        });
+        thread.quitSafely();
+    }
+
+    // Writer thread
+    private void append(int index, int state, long time) {
+        record.clear();
+        record.putInt(index).putInt(state).putLong(time).flip();
+        try {
+            while (record.hasRemaining()) channel.write(record);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to append to " + file.getName(), e);
+            return;
+        }
+        if (!syncScheduled) {
+            syncScheduled = true;
+            writer.postDelayed(sync, SYNC_DELAY_MS);
+        }
+    }
+
+    private void sync() {
+        syncScheduled = false;
+        try {
+            if (channel.isOpen()) channel.force(false);
+        } catch (IOException e) {
+            Log.w(TAG, "fsync failed for " + file.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.jdpublication.webrecorder;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Which recordings already exist in Movies/WebRecordings, by display name. One query fills the index,
+// then a ContentObserver applies single-row changes as they happen and only falls back to a full
+// reload for bulk changes. Lookups are in memory and safe from any thread. Pending rows are not
+// visible to the query, so a recording counts once it has been published.
+public class RecordedIndex {
+
+    private static final String TAG = "RecordedIndex";
+    private static final String RELATIVE_PATH = Environment.DIRECTORY_MOVIES + "/WebRecordings/";
+    private static final Uri COLLECTION = MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
+
+    public interface Listener {
+        // Main thread
+        void onRecordedIndexChanged();
+    }
+
+    private final ContentResolver resolver;
+    private final Listener listener;
+    private final HandlerThread thread;
+    private final Handler worker;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ContentObserver observer;
+
+    // Guarded by this
+    private final Map<Long, String> namesById = new HashMap<>();
+    private final Map<String, Integer> nameCounts = new HashMap<>();
+
+    public RecordedIndex(Context context, Listener listener) {
+        this.resolver = context.getContentResolver();
+        this.listener = listener;
+        thread = new HandlerThread(TAG);
+        thread.start();
+        worker = new Handler(thread.getLooper());
+        observer = new ContentObserver(worker) {
+            @Override
+            public void onChange(boolean selfChange, @Nullable Uri uri) {
+                onMediaChanged(uri);
+            }
+        };
+        resolver.registerContentObserver(COLLECTION, true, observer);
+        worker.post(this::reload);
+    }
+
+    // Recorded under its plain name, or as the first part of a split recording
+    public synchronized boolean isRecorded(String filename) {
+        return nameCounts.containsKey(filename + ".mp4") || nameCounts.containsKey(filename + "_part001.mp4");
+    }
+
+    public void destroy() {
+        resolver.unregisterContentObserver(observer);
+        thread.quitSafely();
+        mainHandler.removeCallbacksAndMessages(null);
+    }
+
+    // Worker thread
+    private void reload() {
+        Map<Long, String> loaded = new HashMap<>();
+        // RELATIVE_PATH needs API 29, which minSdk guarantees
+        try (Cursor cursor = resolver.query(COLLECTION, new String[]{MediaStore.Video.Media._ID, MediaStore.Video.Media.DISPLAY_NAME},
+                MediaStore.Video.Media.RELATIVE_PATH + "=?", new String[]{RELATIVE_PATH}, null)) {
+            if (cursor == null) return;
+            while (cursor.moveToNext()) {
+                if (!cursor.isNull(1)) loaded.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to query recordings", e);
+            return;
+        }
+        synchronized (this) {
+            namesById.clear();
+            nameCounts.clear();
+            for (Map.Entry<Long, String> entry : loaded.entrySet()) add(entry.getKey(), entry.getValue());
+        }
+        Log.d(TAG, "Indexed " + loaded.size() + " recordings");
+        notifyChanged();
+    }
+
+    private void onMediaChanged(@Nullable Uri uri) {
+        long id = idOf(uri);
+        if (id < 0) {
+            reload();
+            return;
+        }
+        String name = null;
+        try (Cursor cursor = resolver.query(COLLECTION, new String[]{MediaStore.Video.Media.DISPLAY_NAME},
+                MediaStore.Video.Media._ID + "=? AND " + MediaStore.Video.Media.RELATIVE_PATH + "=?",
+                new String[]{String.valueOf(id), RELATIVE_PATH}, null)) {
+            if (cursor != null && cursor.moveToFirst()) name = cursor.getString(0);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to query " + uri, e);
+            return;
+        }
+        boolean changed;
+        synchronized (this) {
+            String previous = remove(id);
+            if (name != null) add(id, name);
+            changed = previous == null ? name != null : !previous.equals(name);
+        }
+        if (changed) notifyChanged();
+    }
+
+    private void add(long id, String name) {
+        namesById.put(id, name);
+        Integer count = nameCounts.get(name);
+        nameCounts.put(name, count == null ? 1 : count + 1);
+    }
+
+    @Nullable
+    private String remove(long id) {
+        String name = namesById.remove(id);
+        if (name == null) return null;
+        Integer count = nameCounts.get(name);
+        if (count == null || count <= 1) nameCounts.remove(name);
+        else nameCounts.put(name, count - 1);
+        return name;
+    }
+
+    private void notifyChanged() {
+        mainHandler.post(listener::onRecordedIndexChanged);
+    }
+
+    private static long idOf(@Nullable Uri uri) {
+        if (uri == null) return -1;
+        String last = uri.getLastPathSegment();
+        if (last == null) return -1;
+        try {
+            return Long.parseLong(last);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
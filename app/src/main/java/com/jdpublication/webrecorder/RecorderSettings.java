@@ -0,0 +1,277 @@
+package com.jdpublication.webrecorder;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaFormat;
+
+public class RecorderSettings {
+
+    public static final String ENGINE_MEDIA_RECORDER = "media_recorder";
+    public static final String ENGINE_CODEC = "codec";
+    public static final String SNAPSHOT_WEBP = "webp";
+    public static final String SNAPSHOT_PNG = "png";
+
+    private static final String PREFS = "recorder_settings";
+
+    private static final String KEY_PREFETCH_DEPTH = "prefetch_depth";
+    private static final String KEY_BATCH_DURATION_SEC = "batch_duration_sec";
+    private static final String KEY_PAGE_READY_TIMEOUT_SEC = "page_ready_timeout_sec";
+    private static final String KEY_PAGE_SETTLE_MS = "page_settle_ms";
+    private static final String KEY_ENGINE = "engine";
+    private static final String KEY_BITRATE_MODE = "bitrate_mode";
+    private static final String KEY_KEYFRAME_INTERVAL_SEC = "keyframe_interval_sec";
+    private static final String KEY_HARDWARE_ENCODER = "hardware_encoder";
+    private static final String KEY_DEFAULT_QUALITY = "default_quality";
+    private static final String KEY_FRAME_GATE = "frame_gate";
+    private static final String KEY_STATIC_FRAME_INTERVAL_MS = "static_frame_interval_ms";
+    private static final String KEY_STATS_OVERLAY = "stats_overlay";
+    private static final String KEY_TRANSCODE = "transcode";
+    private static final String KEY_TRANSCODE_MIME = "transcode_mime";
+    private static final String KEY_TRANSCODE_BITRATE = "transcode_bitrate";
+    private static final String KEY_TRANSCODE_CONCURRENCY = "transcode_concurrency";
+    private static final String KEY_TRANSCODE_MIN_BATTERY = "transcode_min_battery";
+    private static final String KEY_SEGMENT_MINUTES = "segment_minutes";
+    private static final String KEY_SEGMENT_MEGABYTES = "segment_megabytes";
+    private static final String KEY_JOIN_SEGMENTS = "join_segments";
+    private static final String KEY_SKIP_RECORDED = "skip_recorded";
+    private static final String KEY_RESOURCE_CACHE_MB = "resource_cache_mb";
+    private static final String KEY_BLOCK_HOSTS = "block_hosts";
+    private static final String KEY_DIRECT_CAPTURE = "direct_capture";
+    private static final String KEY_PAGE_AUDIO = "page_audio";
+    private static final String KEY_SNAPSHOT_FORMAT = "snapshot_format";
+    private static final String KEY_AUTO_SCROLL = "auto_scroll";
+    private static final String KEY_AUTO_SCROLL_DP_PER_SEC = "auto_scroll_dp_per_sec";
+    private static final String KEY_AUTO_SCROLL_MAX_SEC = "auto_scroll_max_sec";
+
+    private final SharedPreferences prefs;
+
+    public RecorderSettings(Context context) {
+        prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    // 0 = off, 1 = pre-render the next entry, 2 = also warm DNS for the one after
+    public int getPrefetchDepth() {
+        return prefs.getInt(KEY_PREFETCH_DEPTH, 1);
+    }
+
+    public void setPrefetchDepth(int depth) {
+        prefs.edit().putInt(KEY_PREFETCH_DEPTH, depth).apply();
+    }
+
+    public long getBatchDurationMs() {
+        return prefs.getInt(KEY_BATCH_DURATION_SEC, 10) * 1000L;
+    }
+
+    public void setBatchDurationSec(int seconds) {
+        prefs.edit().putInt(KEY_BATCH_DURATION_SEC, seconds).apply();
+    }
+
+    // A page that never finishes loading is recorded as-is once this runs out
+    public long getPageReadyTimeoutMs() {
+        return prefs.getInt(KEY_PAGE_READY_TIMEOUT_SEC, 30) * 1000L;
+    }
+
+    public long getPageSettleMs() {
+        return prefs.getInt(KEY_PAGE_SETTLE_MS, 500);
+    }
+
+    // The codec engine records page audio; MediaRecorder only knows the microphone
+    public String getEngine() {
+        return prefs.getString(KEY_ENGINE, ENGINE_CODEC);
+    }
+
+    public void setEngine(String engine) {
+        prefs.edit().putString(KEY_ENGINE, engine).apply();
+    }
+
+    // One of EncoderConfig.BITRATE_MODE_*; only honoured by the codec engine
+    public int getBitrateMode() {
+        return prefs.getInt(KEY_BITRATE_MODE, EncoderConfig.BITRATE_MODE_VBR);
+    }
+
+    public void setBitrateMode(int mode) {
+        prefs.edit().putInt(KEY_BITRATE_MODE, mode).apply();
+    }
+
+    public int getKeyframeIntervalSec() {
+        return prefs.getInt(KEY_KEYFRAME_INTERVAL_SEC, 2);
+    }
+
+    public void setKeyframeIntervalSec(int seconds) {
+        prefs.edit().putInt(KEY_KEYFRAME_INTERVAL_SEC, seconds).apply();
+    }
+
+    // Recording encoder; the other kind is used when the device has none of this one
+    public boolean isHardwareEncoderPreferred() {
+        return prefs.getBoolean(KEY_HARDWARE_ENCODER, true);
+    }
+
+    public void setHardwareEncoderPreferred(boolean preferred) {
+        prefs.edit().putBoolean(KEY_HARDWARE_ENCODER, preferred).apply();
+    }
+
+    // Used for playlists that have no quality of their own
+    public EncoderProfiles.Quality getDefaultQuality() {
+        try {
+            return EncoderProfiles.Quality.valueOf(prefs.getString(KEY_DEFAULT_QUALITY, EncoderProfiles.Quality.MEDIUM.name()));
+        } catch (IllegalArgumentException e) {
+            return EncoderProfiles.Quality.MEDIUM;
+        }
+    }
+
+    public void setDefaultQuality(EncoderProfiles.Quality quality) {
+        prefs.edit().putString(KEY_DEFAULT_QUALITY, quality.name()).apply();
+    }
+
+    // Drop frames that repeat the last one instead of encoding every composed frame
+    public boolean isFrameGateEnabled() {
+        return prefs.getBoolean(KEY_FRAME_GATE, true);
+    }
+
+    public void setFrameGateEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_FRAME_GATE, enabled).apply();
+    }
+
+    // How often an unchanged picture is still sent to the encoder
+    public long getStaticFrameIntervalMs() {
+        return prefs.getInt(KEY_STATIC_FRAME_INTERVAL_MS, 500);
+    }
+
+    public boolean isStatsOverlayEnabled() {
+        return prefs.getBoolean(KEY_STATS_OVERLAY, false);
+    }
+
+    public void setStatsOverlayEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_STATS_OVERLAY, enabled).apply();
+    }
+
+    // Re-encode finished recordings before they are post-processed
+    public boolean isTranscodeEnabled() {
+        return prefs.getBoolean(KEY_TRANSCODE, false);
+    }
+
+    public void setTranscodeEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_TRANSCODE, enabled).apply();
+    }
+
+    // Falls back to AVC on devices without an encoder for this type
+    public String getTranscodeMimeType() {
+        return prefs.getString(KEY_TRANSCODE_MIME, MediaFormat.MIMETYPE_VIDEO_HEVC);
+    }
+
+    public int getTranscodeBitRate() {
+        return prefs.getInt(KEY_TRANSCODE_BITRATE, 500_000);
+    }
+
+    // Hardware encoders have few instances, and capture needs one of them
+    public int getTranscodeConcurrency() {
+        return Math.max(1, prefs.getInt(KEY_TRANSCODE_CONCURRENCY, 1));
+    }
+
+    // Below this and not charging, transcodes wait
+    public int getTranscodeMinBatteryPercent() {
+        return prefs.getInt(KEY_TRANSCODE_MIN_BATTERY, 30);
+    }
+
+    // Long recordings continue in a new file after this long; 0 = never
+    public long getSegmentMaxDurationMs() {
+        return prefs.getInt(KEY_SEGMENT_MINUTES, 30) * 60_000L;
+    }
+
+    public void setSegmentMinutes(int minutes) {
+        prefs.edit().putInt(KEY_SEGMENT_MINUTES, minutes).apply();
+    }
+
+    // ... or once a file grows past this; 0 = never
+    public long getSegmentMaxBytes() {
+        return prefs.getInt(KEY_SEGMENT_MEGABYTES, 1024) * 1024L * 1024L;
+    }
+
+    public void setSegmentMegabytes(int megabytes) {
+        prefs.edit().putInt(KEY_SEGMENT_MEGABYTES, megabytes).apply();
+    }
+
+    // Publish the parts of a split recording as one file once it has ended
+    public boolean isJoinSegmentsEnabled() {
+        return prefs.getBoolean(KEY_JOIN_SEGMENTS, false);
+    }
+
+    public void setJoinSegmentsEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_JOIN_SEGMENTS, enabled).apply();
+    }
+
+    // Step over entries that already have a recording, in navigation and batch runs
+    public boolean isSkipRecordedEnabled() {
+        return prefs.getBoolean(KEY_SKIP_RECORDED, false);
+    }
+
+    public void setSkipRecordedEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_SKIP_RECORDED, enabled).apply();
+    }
+
+    // Disk budget for shared page assets; 0 = leave caching to the WebView
+    public long getResourceCacheBytes() {
+        return prefs.getInt(KEY_RESOURCE_CACHE_MB, 256) * 1024L * 1024L;
+    }
+
+    public void setResourceCacheMegabytes(int megabytes) {
+        prefs.edit().putInt(KEY_RESOURCE_CACHE_MB, megabytes).apply();
+    }
+
+    public boolean isBlockingEnabled() {
+        return prefs.getBoolean(KEY_BLOCK_HOSTS, true);
+    }
+
+    public void setBlockingEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_BLOCK_HOSTS, enabled).apply();
+    }
+
+    // Draw the WebView into the encoder instead of mirroring the screen through MediaProjection
+    public boolean isDirectCaptureEnabled() {
+        return prefs.getBoolean(KEY_DIRECT_CAPTURE, false);
+    }
+
+    public void setDirectCaptureEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_DIRECT_CAPTURE, enabled).apply();
+    }
+
+    // Record what the page plays instead of the microphone; needs the projection and Android 10
+    public boolean isPageAudioEnabled() {
+        return prefs.getBoolean(KEY_PAGE_AUDIO, true);
+    }
+
+    public void setPageAudioEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_PAGE_AUDIO, enabled).apply();
+    }
+
+    // SNAPSHOT_WEBP is lossy and a fraction of the size; SNAPSHOT_PNG keeps text pixel-exact
+    public String getSnapshotFormat() {
+        return prefs.getString(KEY_SNAPSHOT_FORMAT, SNAPSHOT_WEBP);
+    }
+
+    public void setSnapshotFormat(String format) {
+        prefs.edit().putString(KEY_SNAPSHOT_FORMAT, format).apply();
+    }
+
+    // Recordings scroll the page and end at its bottom instead of after the batch duration
+    public boolean isAutoScrollEnabled() {
+        return prefs.getBoolean(KEY_AUTO_SCROLL, false);
+    }
+
+    public void setAutoScrollEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_AUTO_SCROLL, enabled).apply();
+    }
+
+    public int getAutoScrollDpPerSecond() {
+        return prefs.getInt(KEY_AUTO_SCROLL_DP_PER_SEC, 200);
+    }
+
+    public void setAutoScrollDpPerSecond(int dpPerSecond) {
+        prefs.edit().putInt(KEY_AUTO_SCROLL_DP_PER_SEC, dpPerSecond).apply();
+    }
+
+    // A batch entry that never reaches a bottom still ends after this
+    public long getAutoScrollMaxMs() {
+        return prefs.getInt(KEY_AUTO_SCROLL_MAX_SEC, 600) * 1000L;
+    }
+}
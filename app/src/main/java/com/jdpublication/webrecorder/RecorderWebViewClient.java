@@ -0,0 +1,66 @@
+package com.jdpublication.webrecorder;
+
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import java.io.ByteArrayInputStream;
+
+// One client shared by every WebView we own; callbacks are routed by the view they came from
+public class RecorderWebViewClient extends WebViewClient {
+
+    public interface Listener {
+        void onPageFinished(WebView view, String url);
+    }
+
+    private final Listener listener;
+    private final PageLoadTelemetry telemetry;
+    private final ResourceCache resourceCache;
+    private final HostBlocklist blocklist;
+
+    public RecorderWebViewClient(Listener listener, PageLoadTelemetry telemetry, ResourceCache resourceCache, HostBlocklist blocklist) {
+        this.listener = listener;
+        this.telemetry = telemetry;
+        this.resourceCache = resourceCache;
+        this.blocklist = blocklist;
+    }
+
+    @Override
+    public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+        // The page itself always loads, only what it pulls in is filtered
+        if (!request.isForMainFrame()) {
+            String host = request.getUrl().getHost();
+            if (blocklist.isBlocked(host)) {
+                blocklist.onBlocked(host);
+                return blocked();
+            }
+        }
+        WebResourceResponse cached = resourceCache.intercept(request);
+        return cached != null ? cached : super.shouldInterceptRequest(view, request);
+    }
+
+    // A fresh empty 204 per request; WebView reads the stream
+    private static WebResourceResponse blocked() {
+        return new WebResourceResponse("text/plain", "utf-8", 204, "No Content", null, new ByteArrayInputStream(new byte[0]));
+    }
+
+    @Override
+    public void onPageCommitVisible(WebView view, String url) {
+        telemetry.onPageCommitVisible(view);
+        super.onPageCommitVisible(view, url);
+    }
+
+    @Override
+    public void onLoadResource(WebView view, String url) {
+        telemetry.onLoadResource(view);
+        super.onLoadResource(view, url);
+    }
+
+    @Override
+    public void onPageFinished(WebView view, String url) {
+        telemetry.onPageFinished(view);
+        listener.onPageFinished(view, url);
+        super.onPageFinished(view, url);
+    }
+}
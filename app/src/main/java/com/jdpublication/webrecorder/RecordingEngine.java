@@ -0,0 +1,36 @@
+package com.jdpublication.webrecorder;
+
+import android.view.Surface;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+
+public interface RecordingEngine {
+
+    interface Listener {
+        // The engine is done writing output; success is false when nothing playable was written
+        void onOutputFinished(RecordingOutput output, boolean success);
+
+        // Called on the engine's thread when the current file hit a rollover limit; null keeps
+        // writing to the current file
+        @Nullable
+        RecordingOutput onRolloverNeeded();
+    }
+
+    // Zero disables a limit. Must be called before prepare().
+    void setRolloverLimits(long maxBytes, long maxDurationMs);
+
+    void prepare(RecordingOutput output) throws IOException;
+
+    // Valid after prepare(); capture renders into this
+    Surface getInputSurface();
+
+    void start();
+
+    void pause();
+
+    void resume();
+
+    void stop();
+}
@@ -0,0 +1,97 @@
+package com.jdpublication.webrecorder;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counters shared by the capture stage and the engines, which update them from their own threads.
+// The recorded-time clock only runs while a segment is actually recording.
+public class RecordingMetrics {
+
+    private final AtomicLong framesSubmitted = new AtomicLong();
+    private final AtomicLong framesEncoded = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private volatile boolean countsSubmissions = false;
+    private volatile boolean countsEncodes = false;
+    // Engines that cannot count bytes themselves expose the file being written instead
+    private volatile RecordingOutput trackedOutput;
+
+    // Main thread only
+    private long clockStartedAt = -1;
+    private long clockAccumulatedMs = 0;
+    private long lastSampleAt = -1;
+    private long lastSampleFrames = 0;
+    private long lastSampleBytes = 0;
+
+    // Capture stage: one frame handed to the encoder's input surface
+    public void onFrameSubmitted() {
+        countsSubmissions = true;
+        framesSubmitted.incrementAndGet();
+    }
+
+    // Engine: one frame came out of the encoder
+    public void onFrameEncoded() {
+        countsEncodes = true;
+        framesEncoded.incrementAndGet();
+    }
+
+    public void onFrameWritten(int bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+
+    // Engine: an encoded frame that had to be thrown away
+    public void onFrameDropped() {
+        framesDropped.incrementAndGet();
+    }
+
+    public void trackOutput(RecordingOutput output) {
+        trackedOutput = output;
+    }
+
+    public void untrackOutput(RecordingOutput output) {
+        if (trackedOutput != output) return;
+        bytesWritten.addAndGet(output.size());
+        trackedOutput = null;
+    }
+
+    public void startClock() {
+        if (clockStartedAt < 0) clockStartedAt = SystemClock.elapsedRealtime();
+    }
+
+    public void stopClock() {
+        if (clockStartedAt < 0) return;
+        clockAccumulatedMs += SystemClock.elapsedRealtime() - clockStartedAt;
+        clockStartedAt = -1;
+    }
+
+    public long getElapsedMs() {
+        long running = clockStartedAt < 0 ? 0 : SystemClock.elapsedRealtime() - clockStartedAt;
+        return clockAccumulatedMs + running;
+    }
+
+    // Rates are measured against the previous sample, so call this at a steady interval
+    public RecordingStats sample() {
+        long now = SystemClock.elapsedRealtime();
+        long encoded = framesEncoded.get();
+        // MediaRecorder hides its encoder, so fall back to what the capture stage fed it
+        long frames = countsEncodes ? encoded : framesSubmitted.get();
+        RecordingOutput tracked = trackedOutput;
+        long bytes = bytesWritten.get() + (tracked != null ? tracked.size() : 0);
+
+        float fps = 0;
+        long bytesPerSecond = 0;
+        if (lastSampleAt >= 0 && now > lastSampleAt) {
+            long intervalMs = now - lastSampleAt;
+            fps = (frames - lastSampleFrames) * 1000f / intervalMs;
+            bytesPerSecond = Math.max(0, bytes - lastSampleBytes) * 1000 / intervalMs;
+        }
+        lastSampleAt = now;
+        lastSampleFrames = frames;
+        lastSampleBytes = bytes;
+
+        // Exact while the frame gate's keepalive keeps the encoder from repeating frames on its own
+        int queueDepth = countsSubmissions && countsEncodes ? (int) Math.max(0, framesSubmitted.get() - encoded) : -1;
+        return new RecordingStats(getElapsedMs(), fps, frames, framesDropped.get(), bytes, bytesPerSecond, queueDepth);
+    }
+}
@@ -0,0 +1,110 @@
+package com.jdpublication.webrecorder;
+
+import android.content.Context;
+import android.net.Uri;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+// One MP4 being written into app-private staging. Nothing is visible in MediaStore until the file
+// is finished and RecordingPublisher copies it out, so a failed recording never leaves a row behind.
+// While recording the file is named <title>.<time>.mp4.part; finish() trims it and drops ".part".
+public class RecordingOutput {
+
+    private static final String TAG = "RecordingOutput";
+    static final String PART_SUFFIX = ".part";
+    // Reserved up front so the muxer's appends do not fragment the file or hit ENOSPC mid-recording
+    private static final long PREALLOCATE_BYTES = 64L * 1024 * 1024;
+
+    private final File file;
+    private final RandomAccessFile raf;
+
+    private RecordingOutput(File file, RandomAccessFile raf) {
+        this.file = file;
+        this.raf = raf;
+    }
+
+    public static RecordingOutput create(Context context, String filename) throws IOException {
+        File dir = stagingDir(context);
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        File file = new File(dir, Uri.encode(filename) + "." + System.currentTimeMillis() + ".mp4" + PART_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            Os.posix_fallocate(raf.getFD(), 0, PREALLOCATE_BYTES);
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Preallocation failed for " + file.getName() + ": " + e.getMessage());
+        }
+        return new RecordingOutput(file, raf);
+    }
+
+    static File stagingDir(Context context) {
+        return new File(context.getFilesDir(), "staging");
+    }
+
+    // The title the staged file was created for
+    @Nullable
+    static String titleOf(File staged) {
+        String name = staged.getName();
+        if (name.endsWith(PART_SUFFIX)) name = name.substring(0, name.length() - PART_SUFFIX.length());
+        if (!name.endsWith(".mp4")) return null;
+        name = name.substring(0, name.length() - 4);
+        int stamp = name.lastIndexOf('.');
+        return stamp > 0 ? Uri.decode(name.substring(0, stamp)) : null;
+    }
+
+    public FileDescriptor getFileDescriptor() throws IOException {
+        return raf.getFD();
+    }
+
+    public String getName() {
+        return file.getName();
+    }
+
+    // Bytes written so far. The file size is the preallocation, so this is the shared write offset
+    // that the muxer advances as it appends.
+    public long size() {
+        try {
+            return Os.lseek(raf.getFD(), 0, OsConstants.SEEK_CUR);
+        } catch (ErrnoException | IOException e) {
+            return 0;
+        }
+    }
+
+    // Trims the preallocated tail and renames the file for publishing; null if nothing usable is left
+    @Nullable
+    public File finish() {
+        File finished = new File(file.getPath().substring(0, file.getPath().length() - PART_SUFFIX.length()));
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = Mp4FastStart.atomsLength(channel);
+            channel.truncate(length);
+            raf.getFD().sync();
+            raf.close();
+            if (length == 0) throw new IOException("Empty recording");
+            if (!file.renameTo(finished)) throw new IOException("Cannot rename " + file);
+            return finished;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to finish " + file.getName(), e);
+            discard();
+            return null;
+        }
+    }
+
+    public void discard() {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close: " + file.getName(), e);
+        }
+        if (file.exists() && !file.delete()) Log.w(TAG, "Cannot delete " + file);
+    }
+}
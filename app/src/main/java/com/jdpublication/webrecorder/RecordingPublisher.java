@@ -0,0 +1,235 @@
+package com.jdpublication.webrecorder;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Moves finished recordings from private staging into Movies/WebRecordings. The row is inserted
+// with IS_PENDING set, so the scanner and gallery apps only see the video once it is complete, and
+// the copy puts moov in front on the way. recover() clears out whatever a killed process left
+// behind: pending rows are deleted, unfinished staging files dropped and finished ones published.
+// A joined recording is listed in a manifest next to it until its parts are gone, so recover() never
+// publishes both the joined file and the parts it was made from.
+public class RecordingPublisher {
+
+    private static final String TAG = "RecordingPublisher";
+    private static final String RELATIVE_PATH = Environment.DIRECTORY_MOVIES + "/WebRecordings/";
+    // <joined file>.parts lists the staged parts the joined file replaces, one name per line
+    private static final String MANIFEST_SUFFIX = ".parts";
+
+    private static RecordingPublisher instance;
+
+    private final Context context;
+    private final RecorderSettings settings;
+    private final ExecutorService executor;
+
+    public static synchronized RecordingPublisher get(Context context) {
+        if (instance == null) instance = new RecordingPublisher(context.getApplicationContext());
+        return instance;
+    }
+
+    private RecordingPublisher(Context context) {
+        this.context = context;
+        settings = new RecorderSettings(context);
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, TAG);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void publish(File staged, String title) {
+        executor.execute(() -> publishNow(staged, title));
+    }
+
+    // The parts of a split recording as one file; if joining fails they are published separately
+    public void publishJoined(List<File> parts, String title) {
+        executor.execute(() -> {
+            File joined = new File(RecordingOutput.stagingDir(context), Uri.encode(title) + "." + System.currentTimeMillis() + ".mp4");
+            File work = new File(joined.getPath() + RecordingOutput.PART_SUFFIX);
+            File manifest = new File(joined.getPath() + MANIFEST_SUFFIX);
+            try {
+                SegmentJoiner.join(parts, work);
+                // Written before the joined file appears, so a crash from here on is settled by recover()
+                writeManifest(manifest, parts);
+                if (!work.renameTo(joined)) throw new IOException("Cannot rename " + work);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to join " + parts.size() + " parts of " + title, e);
+                if (work.exists() && !work.delete()) Log.w(TAG, "Cannot delete " + work);
+                if (manifest.exists() && !manifest.delete()) Log.w(TAG, "Cannot delete " + manifest);
+                for (File part : parts) publishNow(part, RecordingOutput.titleOf(part));
+                return;
+            }
+            for (File part : parts) {
+                if (!part.delete()) Log.w(TAG, "Cannot delete " + part);
+            }
+            if (!manifest.delete()) Log.w(TAG, "Cannot delete " + manifest);
+            publishNow(joined, title);
+        });
+    }
+
+    public void recover() {
+        executor.execute(() -> {
+            deletePendingRows();
+            // While recording, staged files are still being written or wait to be joined
+            if (RecordingService.isRecording) return;
+            File dir = RecordingOutput.stagingDir(context);
+            File[] manifests = dir.listFiles((parent, name) -> name.endsWith(MANIFEST_SUFFIX));
+            if (manifests == null) return;
+            for (File manifest : manifests) {
+                // Publishing now could put out a joined recording and its parts side by side
+                if (!settleJoin(manifest)) return;
+            }
+            File[] files = dir.listFiles();
+            if (files == null) return;
+            for (File file : files) {
+                if (file.getName().endsWith(MANIFEST_SUFFIX)) continue;
+                if (file.getName().endsWith(RecordingOutput.PART_SUFFIX)) {
+                    if (!file.delete()) Log.w(TAG, "Cannot delete " + file);
+                } else {
+                    publishNow(file, RecordingOutput.titleOf(file));
+                }
+            }
+        });
+    }
+
+    // Executor thread
+    private static void writeManifest(File manifest, List<File> parts) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(manifest);
+             Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            for (File part : parts) writer.write(part.getName() + "\n");
+            writer.flush();
+            out.getFD().sync();
+        }
+    }
+
+    // Executor thread. Once the joined file exists its parts are deleted; without it the join never
+    // finished, so the parts stay and are published on their own. False if the manifest is unreadable.
+    private static boolean settleJoin(File manifest) {
+        String path = manifest.getPath();
+        File joined = new File(path.substring(0, path.length() - MANIFEST_SUFFIX.length()));
+        if (joined.isFile()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+                String name;
+                while ((name = reader.readLine()) != null) {
+                    File part = new File(manifest.getParentFile(), name);
+                    if (!name.isEmpty() && part.exists() && !part.delete()) Log.w(TAG, "Cannot delete " + part);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot read " + manifest, e);
+                return false;
+            }
+        }
+        if (!manifest.delete()) Log.w(TAG, "Cannot delete " + manifest);
+        return true;
+    }
+
+    // Executor thread
+    private void publishNow(File staged, @Nullable String title) {
+        if (!staged.isFile()) return;
+        if (title == null) {
+            Log.w(TAG, "Dropping unrecognised staging file " + staged.getName());
+            if (!staged.delete()) Log.w(TAG, "Cannot delete " + staged);
+            return;
+        }
+
+        ContentResolver resolver = context.getContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.Video.Media.RELATIVE_PATH, RELATIVE_PATH);
+        values.put(MediaStore.Video.Media.TITLE, title);
+        values.put(MediaStore.Video.Media.DISPLAY_NAME, title + ".mp4");
+        values.put(MediaStore.Video.Media.MIME_TYPE, "video/mp4");
+        values.put(MediaStore.Video.Media.IS_PENDING, 1);
+        Uri uri = resolver.insert(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, values);
+        if (uri == null) {
+            Log.e(TAG, "Failed to create new MediaStore record for " + staged.getName());
+            return;
+        }
+
+        try {
+            ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, "w");
+            if (pfd == null) throw new IOException("Unable to open " + uri);
+            try (FileChannel in = new FileInputStream(staged).getChannel();
+                 FileOutputStream fos = new ParcelFileDescriptor.AutoCloseOutputStream(pfd);
+                 FileChannel out = fos.getChannel()) {
+                if (Mp4FastStart.needsRelocation(in)) {
+                    Mp4FastStart.relocate(in, out, Mp4FastStart.DIRECT);
+                } else {
+                    Mp4FastStart.DIRECT.copy(in, 0, in.size(), out);
+                }
+                fos.getFD().sync();
+            }
+            values.clear();
+            values.put(MediaStore.Video.Media.IS_PENDING, 0);
+            resolver.update(uri, values, null, null);
+        } catch (IOException | RuntimeException e) {
+            // The staged file stays, so the next recover() tries again
+            Log.e(TAG, "Failed to publish " + staged.getName(), e);
+            resolver.delete(uri, null, null);
+            return;
+        }
+
+        if (!staged.delete()) Log.w(TAG, "Cannot delete " + staged);
+        Log.d(TAG, "Published " + title + " as " + uri);
+        if (settings.isTranscodeEnabled()) {
+            TranscodeQueue.get(context).enqueue(uri);
+        } else {
+            PostProcessor.get(context).enqueue(uri);
+        }
+    }
+
+    // Only rows this app owns are visible, so these are all half-published recordings of ours
+    private void deletePendingRows() {
+        ContentResolver resolver = context.getContentResolver();
+        Uri collection = MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
+        String[] projection = {MediaStore.Video.Media._ID};
+        String selection = MediaStore.Video.Media.IS_PENDING + "=1 AND " + MediaStore.Video.Media.RELATIVE_PATH + "=?";
+        String[] args = {RELATIVE_PATH};
+        Cursor cursor;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            Bundle query = new Bundle();
+            query.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, selection);
+            query.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, args);
+            query.putInt(MediaStore.QUERY_ARG_MATCH_PENDING, MediaStore.MATCH_INCLUDE);
+            cursor = resolver.query(collection, projection, query, null);
+        } else {
+            cursor = resolver.query(MediaStore.setIncludePending(collection), projection, selection, args, null);
+        }
+        if (cursor == null) return;
+        try (Cursor rows = cursor) {
+            while (rows.moveToNext()) {
+                Uri uri = Uri.withAppendedPath(collection, String.valueOf(rows.getLong(0)));
+                Log.i(TAG, "Deleting abandoned pending recording " + uri);
+                resolver.delete(uri, null, null);
+            }
+        }
+    }
+}
@@ -4,54 +4,147 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
-import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ServiceInfo;
 import android.hardware.display.DisplayManager;
 import android.hardware.display.VirtualDisplay;
-import android.media.MediaRecorder;
+import android.media.MediaFormat;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
-import android.net.Uri;
-import android.os.Environment;
+import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
-import android.provider.MediaStore;
+import android.os.Looper;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.Surface;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class RecordingService extends Service {
 
     private static final String TAG = "RecordingService";
     public static final String ACTION_RECORDING_STOPPED = "com.jdpublication.webrecorder.RECORDING_STOPPED";
+    public static final String ACTION_SEGMENT_FAILED = "com.jdpublication.webrecorder.SEGMENT_FAILED";
     public static final String ACTION_PAUSE = "com.jdpublication.webrecorder.PAUSE";
     public static final String ACTION_RESUME = "com.jdpublication.webrecorder.RESUME";
+    public static final String ACTION_START_SEGMENT = "com.jdpublication.webrecorder.START_SEGMENT";
+    public static final String ACTION_STOP_SEGMENT = "com.jdpublication.webrecorder.STOP_SEGMENT";
+    public static final String EXTRA_BATCH = "batch";
+    public static final String EXTRA_QUALITY = "quality";
+    // Record the WebView itself instead of mirroring the screen; needs no projection token
+    public static final String EXTRA_DIRECT = "direct";
+    // On ACTION_RECORDING_STOPPED: whether a manual recording was saved whole
+    public static final String EXTRA_SUCCESS = "success";
 
     private static final String CHANNEL_ID = "RecordingServiceChannel";
+    private static final long STATS_INTERVAL_MS = 1000;
+
+    public interface StatsListener {
+        // Main thread, about once a second while something is being recorded
+        void onStats(RecordingStats stats);
+    }
+
+    public interface DirectCaptureListener {
+        // Main thread; null right before the surface goes away
+        void onCaptureSurface(@Nullable Surface surface, int width, int height, int frameRate);
+    }
+
+    public class LocalBinder extends Binder {
+        public RecordingService getService() {
+            return RecordingService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final RecordingMetrics metrics = new RecordingMetrics();
+    private final List<StatsListener> statsListeners = new ArrayList<>();
+    private final Handler statsHandler = new Handler(Looper.getMainLooper());
+    // Draining an encoder blocks for up to a few seconds, so engines are stopped here, in order
+    private final ExecutorService stopper = Executors.newSingleThreadExecutor();
 
     private MediaProjectionManager mediaProjectionManager;
     private MediaProjection mediaProjection;
-    private MediaRecorder mediaRecorder;
+    private RecordingEngine engine;
+    private boolean segmentActive = false;
+    private RecorderSettings settings;
+    private EncoderConfig encoderConfig = EncoderConfig.defaults();
     private VirtualDisplay virtualDisplay;
-    private int screenWidth;
-    private int screenHeight;
+    // Direct mode: the surface the activity draws the WebView into, instead of a VirtualDisplay
+    private boolean direct = false;
+    private Surface directSurface;
+    private DirectCaptureListener directListener;
+    // Optional stage between the display and the encoder that drops repeated frames
+    private FrameGate frameGate;
     private MediaProjection.Callback mediaProjectionCallback;
+    // The entry being recorded, and which entry each unfinished file belongs to
+    private volatile SegmentSet segmentSet;
+    private final Map<RecordingOutput, SegmentSet> segmentOwners = new ConcurrentHashMap<>();
+    // A manual recording is only reported stopped once its file is settled, which can be after onDestroy
+    private boolean manualSettled = true;
+    private boolean manualComplete = false;
+    private boolean projectionLost = false;
+    private boolean destroyed = false;
 
     public static boolean isRecording = false;
     public static boolean isPaused = false;
 
 
+    private final Runnable statsTick = new Runnable() {
+        @Override
+        public void run() {
+            RecordingStats stats = metrics.sample();
+            for (StatsListener listener : new ArrayList<>(statsListeners)) listener.onStats(stats);
+            statsHandler.postDelayed(this, STATS_INTERVAL_MS);
+        }
+    };
+
+    public void addStatsListener(StatsListener listener) {
+        statsListeners.add(listener);
+        if (statsListeners.size() == 1) {
+            statsHandler.removeCallbacks(statsTick);
+            statsHandler.post(statsTick);
+        }
+    }
+
+    public void removeStatsListener(StatsListener listener) {
+        statsListeners.remove(listener);
+        if (statsListeners.isEmpty()) statsHandler.removeCallbacks(statsTick);
+    }
+
+    // Hands over the current surface right away if recording already started
+    public void setDirectCaptureListener(@Nullable DirectCaptureListener listener) {
+        directListener = listener;
+        if (listener != null && directSurface != null) {
+            listener.onCaptureSurface(directSurface, encoderConfig.width, encoderConfig.height, encoderConfig.frameRate);
+        }
+    }
+
+    private void setDirectSurface(@Nullable Surface surface) {
+        if (directSurface == surface) return;
+        directSurface = surface;
+        if (directListener != null) {
+            directListener.onCaptureSurface(surface, encoderConfig.width, encoderConfig.height, encoderConfig.frameRate);
+        }
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
         mediaProjectionManager = (MediaProjectionManager) getSystemService(Context.MEDIA_PROJECTION_SERVICE);
+        settings = new RecorderSettings(this);
         createNotificationChannel();
     }
 
@@ -68,135 +161,284 @@ public class RecordingService extends Service {
                 case ACTION_RESUME:
                     resumeRecording();
                     return START_STICKY;
+                case ACTION_START_SEGMENT:
+                    String segmentName = intent.getStringExtra("filename");
+                    if ((mediaProjection != null || direct) && segmentName != null && !startSegment(segmentName, null)) {
+                        Log.e(TAG, "Skipping batch entry " + segmentName);
+                        LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent(ACTION_SEGMENT_FAILED));
+                    }
+                    return START_STICKY;
+                case ACTION_STOP_SEGMENT:
+                    stopSegment();
+                    return START_STICKY;
             }
         }
 
         Log.d(TAG, "onStartCommand received for starting");
         // Start Foreground Service
         Notification notification = new NotificationCompat.Builder(this, CHANNEL_ID).setContentTitle("Screen Recording").setContentText("Recording in progress...").setSmallIcon(R.drawable.ic_record).build();
-        startForeground(1, notification);
+        direct = intent.getBooleanExtra(EXTRA_DIRECT, false);
+        if (direct) {
+            // Without a projection token the mediaProjection type would be refused
+            startForeground(1, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_MICROPHONE);
+        } else {
+            startForeground(1, notification);
+        }
 
         // Extract data from intent
         int resultCode = intent.getIntExtra("resultCode", -1);
         Intent data = intent.getParcelableExtra("data");
         String filename = intent.getStringExtra("filename");
+        // A batch keeps one projection alive and gets its files through START_SEGMENT
+        boolean batch = intent.getBooleanExtra(EXTRA_BATCH, false);
 
-        if (resultCode == 0 || data == null || filename == null) {
+        if ((!direct && (resultCode == 0 || data == null)) || (filename == null && !batch)) {
             Log.e(TAG, "Invalid data received, stopping service.");
             stopSelf();
             return START_NOT_STICKY;
         }
 
-        mediaProjection = mediaProjectionManager.getMediaProjection(resultCode, data);
-        if (mediaProjection == null) {
-            Log.e(TAG, "MediaProjection is null, stopping service.");
-            stopSelf();
-            return START_NOT_STICKY;
+        if (!direct) {
+            mediaProjection = mediaProjectionManager.getMediaProjection(resultCode, data);
+            if (mediaProjection == null) {
+                Log.e(TAG, "MediaProjection is null, stopping service.");
+                stopSelf();
+                return START_NOT_STICKY;
+            }
+
+            mediaProjectionCallback = new MediaProjection.Callback() {
+                @Override
+                public void onStop() {
+                    // Revoked from outside the app, so whatever was being recorded is cut short
+                    projectionLost = true;
+                    if (isRecording) stopSelf();
+                }
+            };
+            mediaProjection.registerCallback(mediaProjectionCallback, null);
         }
+        encoderConfig = EncoderProfiles.select(this, qualityFrom(intent), MediaFormat.MIMETYPE_VIDEO_AVC,
+                settings.getBitrateMode(), settings.getKeyframeIntervalSec(), settings.isHardwareEncoderPreferred());
+        isRecording = true;
+        isPaused = false;
 
-        mediaProjectionCallback = new MediaProjection.Callback() {
-            @Override
-            public void onStop() {
-                if (isRecording) stopSelf();
-            }
-        };
-        mediaProjection.registerCallback(mediaProjectionCallback, null);
+        if (!batch) {
+            manualSettled = false;
+            if (!startSegment(filename, complete -> statsHandler.post(() -> onManualSettled(complete)))) stopSelf();
+        }
+
+        return START_STICKY;
+    }
 
-        if (initRecorder(filename)) {
-            createVirtualDisplay();
+    private EncoderProfiles.Quality qualityFrom(Intent intent) {
+        String name = intent.getStringExtra(EXTRA_QUALITY);
+        if (name != null) {
             try {
-                mediaRecorder.start();
-                isRecording = true;
-                isPaused = false;
-                Log.d(TAG, "MediaRecorder started successfully.");
-            } catch (IllegalStateException e) {
-                Log.e(TAG, "Failed to start MediaRecorder", e);
-                stopSelf();
+                return EncoderProfiles.Quality.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown quality " + name);
             }
+        }
+        return settings.getDefaultQuality();
+    }
+
+    // Puts a fresh output file on the existing projection and display. Engines that can roll over
+    // keep encoding into the same surface; otherwise a new engine is swapped in.
+    private boolean startSegment(String filename, @Nullable SegmentSet.Listener listener) {
+        closeSegmentSet();
+        SegmentSet set = new SegmentSet(filename, settings.isJoinSegmentsEnabled(), RecordingPublisher.get(this), listener);
+        RecordingOutput output;
+        try {
+            output = set.newOutput(this);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to create output for " + filename, e);
+            set.close();
+            return false;
+        }
+        segmentOwners.put(output, set);
+        segmentSet = set;
+
+        if (engine instanceof RolloverEngine) {
+            ((RolloverEngine) engine).rollover(output);
+            engine.resume();
+            segmentActive = true;
+            isPaused = false;
+            metrics.startClock();
+            return true;
+        }
+
+        stopEngine();
+        engine = prepareEngine(output);
+        if (engine == null) {
+            onOutputFinished(output, false);
+            closeSegmentSet();
+            return false;
+        }
+        if (frameGate != null) {
+            frameGate.setOutputSurface(engine.getInputSurface());
+        } else if (virtualDisplay != null) {
+            virtualDisplay.setSurface(engine.getInputSurface());
         } else {
-            Log.e(TAG, "Recorder initialization failed.");
-            stopSelf();
+            createCaptureTarget();
+        }
+        try {
+            engine.start();
+            segmentActive = true;
+            isPaused = false;
+            metrics.startClock();
+            Log.d(TAG, "Recording engine started successfully.");
+            return true;
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to start recording engine", e);
+            closeSegmentSet();
+            stopEngine();
+            return false;
         }
+    }
 
-        return START_STICKY;
+    // Between batch entries: a rollover-capable engine just drops frames until the next segment
+    private void stopSegment() {
+        closeSegmentSet();
+        if (engine == null) return;
+        segmentActive = false;
+        metrics.stopClock();
+        if (engine instanceof RolloverEngine) {
+            engine.pause();
+        } else {
+            stopEngine();
+        }
     }
 
-    private void pauseRecording() {
-        if (mediaRecorder != null && isRecording && !isPaused) {
+    private void stopEngine() {
+        segmentActive = false;
+        metrics.stopClock();
+        if (engine == null) return;
+        if (frameGate != null) {
+            frameGate.setOutputSurface(null);
+        } else if (virtualDisplay != null) {
+            virtualDisplay.setSurface(null);
+        } else {
+            setDirectSurface(null);
+        }
+        RecordingEngine stopped = engine;
+        engine = null;
+        stopper.execute(stopped::stop);
+    }
+
+    private RecordingEngine prepareEngine(RecordingOutput output) {
+        long maxBytes = settings.getSegmentMaxBytes();
+        long maxDurationMs = settings.getSegmentMaxDurationMs();
+        if (RecorderSettings.ENGINE_CODEC.equals(settings.getEngine())) {
+            CodecEngine codecEngine = new CodecEngine(encoderConfig, engineListener, metrics);
+            codecEngine.setRolloverLimits(maxBytes, maxDurationMs);
+            // Direct capture has no projection and falls back to the microphone
+            codecEngine.enableAudio(this, mediaProjection, settings.isPageAudioEnabled());
             try {
-                mediaRecorder.pause();
-                isPaused = true;
-            } catch (IllegalStateException e) {
-                Log.e(TAG, "Failed to pause MediaRecorder", e);
+                codecEngine.prepare(output);
+                return codecEngine;
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "MediaCodec engine unavailable, falling back to MediaRecorder", e);
             }
         }
+        RecordingEngine recorderEngine = new MediaRecorderEngine(encoderConfig, engineListener, metrics);
+        recorderEngine.setRolloverLimits(maxBytes, maxDurationMs);
+        try {
+            recorderEngine.prepare(output);
+            return recorderEngine;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "MediaRecorder initialization failed", e);
+            return null;
+        }
     }
 
-    private void resumeRecording() {
-        if (mediaRecorder != null && isRecording && isPaused) {
+    private final RecordingEngine.Listener engineListener = new RecordingEngine.Listener() {
+        @Override
+        public void onOutputFinished(RecordingOutput output, boolean success) {
+            RecordingService.this.onOutputFinished(output, success);
+        }
+
+        @Override
+        public RecordingOutput onRolloverNeeded() {
+            SegmentSet set = segmentSet;
+            if (set == null) return null;
             try {
-                mediaRecorder.resume();
-                isPaused = false;
-            } catch (IllegalStateException e) {
-                Log.e(TAG, "Failed to resume MediaRecorder", e);
+                RecordingOutput next = set.newOutput(RecordingService.this);
+                if (next != null) segmentOwners.put(next, set);
+                return next;
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Failed to create the next part, continuing in the current file", e);
+                return null;
             }
         }
+    };
+
+    // Any thread
+    private void onOutputFinished(RecordingOutput output, boolean success) {
+        File finished = null;
+        if (success) {
+            finished = output.finish();
+        } else {
+            Log.e(TAG, "Discarding unplayable recording " + output.getName());
+            output.discard();
+        }
+        SegmentSet set = segmentOwners.remove(output);
+        if (set != null) set.onPartFinished(output, finished);
     }
 
-    private boolean initRecorder(String filename) {
-        mediaRecorder = new MediaRecorder();
-        Uri videoUri = null;
-        ContentResolver resolver = getContentResolver();
+    private void onManualSettled(boolean complete) {
+        manualSettled = true;
+        manualComplete = complete;
+        if (destroyed) sendStopped();
+    }
 
-        try {
-            String resolution = "480x854";
-            int frameRate = 15;
-            int bitRate = 1000000;
-            int audioSource = MediaRecorder.AudioSource.MIC;
-            int videoEncoder = MediaRecorder.VideoEncoder.H264;
-
-            String[] dimensions = resolution.split("x");
-            screenWidth = Integer.parseInt(dimensions[0]);
-            screenHeight = Integer.parseInt(dimensions[1]);
-
-            mediaRecorder.setAudioSource(audioSource);
-            mediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
-            mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-            mediaRecorder.setVideoEncoder(videoEncoder);
-            mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
-            mediaRecorder.setAudioEncodingBitRate(128000);
-            mediaRecorder.setAudioSamplingRate(44100);
-            mediaRecorder.setVideoSize(screenWidth, screenHeight);
-            mediaRecorder.setVideoEncodingBitRate(bitRate);
-            mediaRecorder.setVideoFrameRate(frameRate);
-
-            ContentValues values = new ContentValues();
-            values.put(MediaStore.Video.Media.RELATIVE_PATH, Environment.DIRECTORY_MOVIES + "/WebRecordings");
-            values.put(MediaStore.Video.Media.TITLE, filename);
-            values.put(MediaStore.Video.Media.DISPLAY_NAME, filename + ".mp4");
-            values.put(MediaStore.Video.Media.MIME_TYPE, "video/mp4");
-            videoUri = resolver.insert(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, values);
-
-            if (videoUri == null) {
-                Log.e(TAG, "Failed to create new MediaStore record.");
-                return false;
-            }
+    private void sendStopped() {
+        Intent intent = new Intent(ACTION_RECORDING_STOPPED);
+        intent.putExtra(EXTRA_SUCCESS, manualComplete && !projectionLost);
+        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+    }
 
-            mediaRecorder.setOutputFile(Objects.requireNonNull(resolver.openFileDescriptor(videoUri, "w")).getFileDescriptor());
-            mediaRecorder.prepare();
-            return true;
-        } catch (IOException | IllegalArgumentException | NullPointerException e) {
-            Log.e(TAG, "MediaRecorder initialization failed", e);
-            if (videoUri != null) resolver.delete(videoUri, null, null);
-            if (mediaRecorder != null) mediaRecorder.release();
-            mediaRecorder = null;
-            return false;
+    private void closeSegmentSet() {
+        SegmentSet set = segmentSet;
+        segmentSet = null;
+        if (set != null) set.close();
+    }
+
+    private void pauseRecording() {
+        if (engine != null && segmentActive && !isPaused) {
+            engine.pause();
+            isPaused = true;
+            metrics.stopClock();
         }
     }
 
-    private void createVirtualDisplay() {
-        DisplayMetrics metrics = getResources().getDisplayMetrics();
-        virtualDisplay = mediaProjection.createVirtualDisplay(TAG, screenWidth, screenHeight, metrics.densityDpi, DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR, mediaRecorder.getSurface(), null, null);
+    private void resumeRecording() {
+        if (engine != null && segmentActive && isPaused) {
+            engine.resume();
+            isPaused = false;
+            metrics.startClock();
+        }
+    }
+
+    // Whatever feeds the encoder: the frame gate when enabled, then either the mirrored screen or,
+    // in direct mode, the activity drawing the WebView
+    private void createCaptureTarget() {
+        Surface target = engine.getInputSurface();
+        if (settings.isFrameGateEnabled()) {
+            try {
+                frameGate = new FrameGate(encoderConfig.width, encoderConfig.height, encoderConfig.frameRate, settings.getStaticFrameIntervalMs(), metrics);
+                frameGate.setOutputSurface(target);
+                target = frameGate.getInputSurface();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Frame gate unavailable, display feeds the encoder directly", e);
+                if (frameGate != null) frameGate.release();
+                frameGate = null;
+            }
+        }
+        if (direct) {
+            setDirectSurface(target);
+            return;
+        }
+        DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
+        virtualDisplay = mediaProjection.createVirtualDisplay(TAG, encoderConfig.width, encoderConfig.height, displayMetrics.densityDpi, DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR, target, null, null);
     }
 
     @Override
@@ -205,25 +447,24 @@ public class RecordingService extends Service {
         isRecording = false;
         isPaused = false;
 
-        if (mediaRecorder != null) {
-            try {
-                mediaRecorder.stop();
-            } catch (RuntimeException e) {
-                Log.e(TAG, "Error stopping MediaRecorder", e);
-            }
-            mediaRecorder.reset();
-            mediaRecorder.release();
-            mediaRecorder = null;
-        }
+        closeSegmentSet();
+        stopEngine();
+        // Stops already queued still run
+        stopper.shutdown();
+        setDirectSurface(null);
+        statsHandler.removeCallbacks(statsTick);
         if (virtualDisplay != null) virtualDisplay.release();
+        if (frameGate != null) {
+            Log.d(TAG, "Frame gate passed " + frameGate.getFramesOut() + " of " + frameGate.getFramesIn() + " frames");
+            frameGate.release();
+        }
         if (mediaProjection != null) {
             if (mediaProjectionCallback != null)
                 mediaProjection.unregisterCallback(mediaProjectionCallback);
             mediaProjection.stop();
         }
-
-        Intent intent = new Intent(ACTION_RECORDING_STOPPED);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+        destroyed = true;
+        if (manualSettled) sendStopped();
     }
 
     private void createNotificationChannel() {
@@ -234,6 +475,6 @@ public class RecordingService extends Service {
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return binder;
     }
 }
\ No newline at end of file
@@ -0,0 +1,38 @@
+package com.jdpublication.webrecorder;
+
+import java.util.Locale;
+
+// Snapshot of the recording pipeline, published by RecordingService about once a second
+public final class RecordingStats {
+
+    public final long elapsedMs;
+    public final float encodedFps;
+    public final long framesEncoded;
+    public final long framesDropped;
+    public final long bytesWritten;
+    public final long bytesPerSecond;
+    // Frames handed to the encoder but not yet out of it; -1 when the engine cannot tell
+    public final int queueDepth;
+
+    public RecordingStats(long elapsedMs, float encodedFps, long framesEncoded, long framesDropped,
+                          long bytesWritten, long bytesPerSecond, int queueDepth) {
+        this.elapsedMs = elapsedMs;
+        this.encodedFps = encodedFps;
+        this.framesEncoded = framesEncoded;
+        this.framesDropped = framesDropped;
+        this.bytesWritten = bytesWritten;
+        this.bytesPerSecond = bytesPerSecond;
+        this.queueDepth = queueDepth;
+    }
+
+    public String formatElapsed() {
+        long seconds = elapsedMs / 1000;
+        return String.format(Locale.US, "%02d:%02d", seconds / 60, seconds % 60);
+    }
+
+    public String formatDetails() {
+        return String.format(Locale.US, "%.1f fps  %d dropped\n%.1f MB  %d KB/s  queue %s",
+                encodedFps, framesDropped, bytesWritten / (1024f * 1024f), bytesPerSecond / 1024,
+                queueDepth < 0 ? "n/a" : String.valueOf(queueDepth));
+    }
+}
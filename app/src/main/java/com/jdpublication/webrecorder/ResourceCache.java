@@ -0,0 +1,569 @@
+package com.jdpublication.webrecorder;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import android.webkit.CookieManager;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// App-managed cache for the static assets (scripts, styles, fonts, images) that playlist pages share.
+// Bodies are stored once per content hash, the URL index lives in memory in LRU order and is saved
+// in the background, and the least recently used URLs are evicted once the bodies exceed the byte
+// budget. Entries are served for as long as the server's Cache-Control or Expires allows, then
+// revalidated; no-cache and max-age=0 revalidate on every use and no-store is never cached.
+// Misses are fetched on a small pool, with concurrent requests for one URL sharing a single fetch.
+// Anything that cannot be cached is left to the WebView's own network stack.
+public class ResourceCache {
+
+    private static final String TAG = "ResourceCache";
+    private static final int INDEX_VERSION = 1;
+    private static final int FETCH_THREADS = 6;
+    private static final int TIMEOUT_MS = 15_000;
+    private static final long WAIT_MS = 30_000;
+    private static final long SAVE_DELAY_MS = 5_000;
+    // Cap on the freshness guessed from Last-Modified when the server gives no lifetime
+    private static final long MAX_HEURISTIC_MS = 24 * 60 * 60 * 1000;
+    private static final int MAX_UNCACHEABLE = 4096;
+    // Keeps index records well inside writeUTF's limit
+    private static final int MAX_URL_LENGTH = 2048;
+    // The only request headers passed on; encoding, ranges, conditionals and hop-by-hop headers
+    // are ours to set, since the body is stored whole and decoded
+    private static final String[] FORWARDED_HEADERS = {"User-Agent", "Accept", "Accept-Language", "Referer"};
+    private static final String[] STATIC_EXTENSIONS = {".js", ".mjs", ".css", ".woff", ".woff2", ".ttf", ".otf", ".eot",
+            ".png", ".jpg", ".jpeg", ".gif", ".webp", ".avif", ".svg", ".ico"};
+
+    // Cookies for a URL, or null; the WebView's CookieManager outside of tests
+    interface CookieSource {
+        @Nullable
+        String get(String url);
+    }
+
+    static final class Entry {
+        final String blob;
+        final String mimeType;
+        final String encoding;
+        final long size;
+        final String etag;
+        final String lastModified;
+        final String allowOrigin;
+        volatile long freshUntil;
+
+        Entry(String blob, String mimeType, String encoding, long size, String etag, String lastModified, String allowOrigin, long freshUntil) {
+            this.blob = blob;
+            this.mimeType = mimeType;
+            this.encoding = encoding;
+            this.size = size;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.allowOrigin = allowOrigin;
+            this.freshUntil = freshUntil;
+        }
+    }
+
+    private static ResourceCache instance;
+
+    private final File dir;
+    private final File indexFile;
+    private volatile long maxBytes;
+    private final CookieSource cookies;
+    private final ExecutorService fetchers;
+    private final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private final AtomicBoolean saveScheduled = new AtomicBoolean(false);
+    private final Map<String, FutureTask<Entry>> inFlight = new ConcurrentHashMap<>();
+    // URLs that looked static but came back uncacheable; passed through from then on
+    private final Set<String> uncacheable = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // Guarded by this; access-ordered, so iteration starts at the least recently used URL
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<String, Integer> blobRefs = new HashMap<>();
+    private long totalBytes = 0;
+
+    // Shared by every activity instance, so fetches and index writes never race a second copy
+    public static synchronized ResourceCache get(Context context) {
+        if (instance == null) {
+            Context app = context.getApplicationContext();
+            instance = new ResourceCache(new File(app.getCacheDir(), "resources"), new RecorderSettings(app).getResourceCacheBytes(),
+                    url -> CookieManager.getInstance().getCookie(url));
+        }
+        return instance;
+    }
+
+    // maxBytes of 0 disables the cache
+    ResourceCache(File dir, long maxBytes, CookieSource cookies) {
+        this.maxBytes = maxBytes;
+        this.cookies = cookies;
+        this.dir = dir;
+        indexFile = new File(dir, "index");
+        fetchers = Executors.newFixedThreadPool(FETCH_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+        });
+        saver.execute(this::load);
+    }
+
+    // Binder thread of the WebView; null lets the WebView load the resource itself
+    @Nullable
+    public WebResourceResponse intercept(WebResourceRequest request) {
+        if (maxBytes <= 0 || request.isForMainFrame() || !"GET".equals(request.getMethod())) return null;
+        Uri uri = request.getUrl();
+        if (!"http".equals(uri.getScheme()) && !"https".equals(uri.getScheme())) return null;
+        if (!isStatic(uri) || header(request.getRequestHeaders(), "Range") != null) return null;
+        String url = uri.toString();
+        if (url.length() > MAX_URL_LENGTH) return null;
+        Entry entry = lookup(url, request.getRequestHeaders());
+        return entry != null ? respond(entry) : null;
+    }
+
+    // Takes effect right away; anything over the new budget is evicted, everything when it is 0
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        List<String> orphaned = new ArrayList<>();
+        synchronized (this) {
+            evict(null, orphaned);
+        }
+        deleteBlobs(orphaned);
+        scheduleSave();
+    }
+
+    // Null when the URL is not cached and could not be; waits for a fetch on a miss
+    @Nullable
+    Entry lookup(String url, Map<String, String> requestHeaders) {
+        if (uncacheable.contains(url)) return null;
+        try {
+            loaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(url);
+        }
+        if (entry != null && entry.freshUntil > System.currentTimeMillis() && blobFile(entry.blob).isFile()) {
+            hits.incrementAndGet();
+            return entry;
+        }
+
+        Entry stale = entry;
+        FutureTask<Entry> task = new FutureTask<>(() -> {
+            try {
+                return fetch(url, requestHeaders, stale);
+            } finally {
+                inFlight.remove(url);
+            }
+        });
+        FutureTask<Entry> running = inFlight.putIfAbsent(url, task);
+        if (running == null) {
+            running = task;
+            fetchers.execute(task);
+        }
+        try {
+            Entry fetched = running.get(WAIT_MS, TimeUnit.MILLISECONDS);
+            if (fetched == null) return null;
+            misses.incrementAndGet();
+            return fetched;
+        } catch (ExecutionException | TimeoutException e) {
+            Log.w(TAG, "Fetch failed for " + url + ": " + e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // Writes the index now instead of after the usual delay
+    public void flush() {
+        Log.d(TAG, "Served " + hits.get() + " hits, fetched " + misses.get() + " misses, " + totalBytes() + " bytes on disk");
+        saver.execute(this::save);
+    }
+
+    private static boolean isStatic(Uri uri) {
+        String path = uri.getPath();
+        if (path == null) return false;
+        path = path.toLowerCase(Locale.ROOT);
+        for (String extension : STATIC_EXTENSIONS) {
+            if (path.endsWith(extension)) return true;
+        }
+        return false;
+    }
+
+    // The WebView does not promise any particular capitalisation
+    @Nullable
+    private static String header(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) return header.getValue();
+        }
+        return null;
+    }
+
+    @Nullable
+    private WebResourceResponse respond(Entry entry) {
+        InputStream body;
+        try {
+            body = new FileInputStream(blobFile(entry.blob));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        Map<String, String> headers = new HashMap<>();
+        if (entry.allowOrigin != null) headers.put("Access-Control-Allow-Origin", entry.allowOrigin);
+        headers.put("Content-Length", String.valueOf(entry.size));
+        return new WebResourceResponse(entry.mimeType, entry.encoding, 200, "OK", headers, body);
+    }
+
+    // Fetch thread; null when the response must not be cached
+    @Nullable
+    private Entry fetch(String url, Map<String, String> requestHeaders, @Nullable Entry stale) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            for (String name : FORWARDED_HEADERS) {
+                String value = header(requestHeaders, name);
+                if (value != null) connection.setRequestProperty(name, value);
+            }
+            String cookie = cookies.get(url);
+            if (cookie != null) connection.setRequestProperty("Cookie", cookie);
+            if (stale != null && stale.etag != null) connection.setRequestProperty("If-None-Match", stale.etag);
+            if (stale != null && stale.lastModified != null) connection.setRequestProperty("If-Modified-Since", stale.lastModified);
+
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && stale != null) {
+                stale.freshUntil = freshUntil(connection);
+                scheduleSave();
+                return stale;
+            }
+            if (code != HttpURLConnection.HTTP_OK || !isCacheable(connection)) {
+                if (uncacheable.size() < MAX_UNCACHEABLE) uncacheable.add(url);
+                return null;
+            }
+
+            File tmp = File.createTempFile("fetch", ".tmp", dir);
+            String blob;
+            long size = 0;
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                try (InputStream in = connection.getInputStream();
+                     OutputStream out = new FileOutputStream(tmp)) {
+                    byte[] buffer = new byte[64 * 1024];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        digest.update(buffer, 0, read);
+                        out.write(buffer, 0, read);
+                        size += read;
+                    }
+                }
+                blob = toHex(digest.digest());
+                File target = blobFile(blob);
+                if (target.exists()) {
+                    //noinspection ResultOfMethodCallIgnored
+                    tmp.delete();
+                } else if (!tmp.renameTo(target)) {
+                    throw new IOException("Cannot rename " + tmp);
+                }
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                if (tmp.exists()) {
+                    //noinspection ResultOfMethodCallIgnored
+                    tmp.delete();
+                }
+            }
+
+            String[] type = parseContentType(connection.getContentType());
+            Entry entry = new Entry(blob, type[0], type[1], size, connection.getHeaderField("ETag"),
+                    connection.getHeaderField("Last-Modified"), connection.getHeaderField("Access-Control-Allow-Origin"),
+                    freshUntil(connection));
+            put(url, entry);
+            return entry;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    // Cookies and per-user variants are left to the WebView
+    private static boolean isCacheable(HttpURLConnection connection) {
+        if (connection.getHeaderField("Set-Cookie") != null) return false;
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null && cacheControl.toLowerCase(Locale.ROOT).contains("no-store")) return false;
+        String vary = connection.getHeaderField("Vary");
+        if (vary != null) {
+            for (String field : vary.split(",")) {
+                String name = field.trim().toLowerCase(Locale.ROOT);
+                // Origin is not forwarded, so a response varying on it cannot be keyed correctly
+                if (!name.isEmpty() && !name.equals("accept-encoding")) return false;
+            }
+        }
+        // Something that must be revalidated every time but offers nothing to revalidate with
+        if (connection.getHeaderField("ETag") == null && connection.getHeaderField("Last-Modified") == null
+                && freshUntil(connection) <= System.currentTimeMillis()) {
+            return false;
+        }
+        return connection.getContentType() != null;
+    }
+
+    // No lifetime from the server means a tenth of the time since Last-Modified, as browsers do
+    private static long freshUntil(HttpURLConnection connection) {
+        long now = System.currentTimeMillis();
+        long lifetimeMs = -1;
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                String value = directive.trim().toLowerCase(Locale.ROOT);
+                if (value.equals("no-cache") || value.startsWith("no-cache=")) {
+                    return now;
+                } else if (value.startsWith("max-age=")) {
+                    lifetimeMs = seconds(value.substring(8)) * 1000;
+                }
+            }
+        } else {
+            String pragma = connection.getHeaderField("Pragma");
+            if (pragma != null && pragma.toLowerCase(Locale.ROOT).contains("no-cache")) return now;
+        }
+        if (lifetimeMs < 0) {
+            long expires = connection.getExpiration();
+            if (expires > 0) {
+                lifetimeMs = Math.max(0, expires - now);
+            } else if (connection.getHeaderField("Expires") != null) {
+                // Unparseable or "0" means already expired
+                lifetimeMs = 0;
+            } else {
+                long lastModified = connection.getLastModified();
+                lifetimeMs = lastModified > 0 && lastModified < now ? Math.min(MAX_HEURISTIC_MS, (now - lastModified) / 10) : 0;
+            }
+        }
+        // Time the response already spent in shared caches on the way here
+        String age = connection.getHeaderField("Age");
+        if (age != null) lifetimeMs -= seconds(age.trim()) * 1000;
+        return now + Math.max(0, lifetimeMs);
+    }
+
+    private static long seconds(String value) {
+        try {
+            return Math.max(0, Long.parseLong(value.replace("\"", "")));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // {mime type, charset or null}
+    private static String[] parseContentType(String contentType) {
+        String[] parts = contentType.split(";");
+        String charset = null;
+        for (int i = 1; i < parts.length; i++) {
+            String part = parts[i].trim();
+            if (part.toLowerCase(Locale.ROOT).startsWith("charset=")) charset = part.substring(8).replace("\"", "");
+        }
+        return new String[]{parts[0].trim(), charset};
+    }
+
+    private void put(String url, Entry entry) {
+        List<String> orphaned = new ArrayList<>();
+        synchronized (this) {
+            Entry replaced = entries.put(url, entry);
+            if (replaced != null) release(replaced, orphaned);
+            retain(entry);
+            evict(entry, orphaned);
+        }
+        deleteBlobs(orphaned);
+        scheduleSave();
+    }
+
+    // Guarded by this; drops least recently used URLs other than keep until the bodies fit
+    private void evict(@Nullable Entry keep, List<String> orphaned) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            if (eldest.getValue() == keep) continue;
+            it.remove();
+            release(eldest.getValue(), orphaned);
+        }
+    }
+
+    private void deleteBlobs(List<String> orphaned) {
+        for (String blob : orphaned) {
+            //noinspection ResultOfMethodCallIgnored
+            blobFile(blob).delete();
+        }
+    }
+
+    private void retain(Entry entry) {
+        Integer refs = blobRefs.get(entry.blob);
+        if (refs == null) totalBytes += entry.size;
+        blobRefs.put(entry.blob, refs == null ? 1 : refs + 1);
+    }
+
+    private void release(Entry entry, List<String> orphaned) {
+        Integer refs = blobRefs.get(entry.blob);
+        if (refs == null) return;
+        if (refs > 1) {
+            blobRefs.put(entry.blob, refs - 1);
+            return;
+        }
+        blobRefs.remove(entry.blob);
+        totalBytes -= entry.size;
+        orphaned.add(entry.blob);
+    }
+
+    synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    synchronized boolean contains(String url) {
+        return entries.containsKey(url);
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    File blobFile(String blob) {
+        return new File(dir, blob);
+    }
+
+    private void scheduleSave() {
+        if (saveScheduled.compareAndSet(false, true)) {
+            saver.schedule(this::save, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Saver thread
+    private void load() {
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                Log.e(TAG, "Cannot create " + dir);
+                return;
+            }
+            if (!indexFile.isFile()) return;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                if (in.readInt() != INDEX_VERSION) return;
+                int count = in.readInt();
+                synchronized (this) {
+                    for (int i = 0; i < count; i++) {
+                        String url = in.readUTF();
+                        Entry entry = new Entry(in.readUTF(), in.readUTF(), nullable(in.readUTF()), in.readLong(),
+                                nullable(in.readUTF()), nullable(in.readUTF()), nullable(in.readUTF()), in.readLong());
+                        if (!blobFile(entry.blob).isFile()) continue;
+                        entries.put(url, entry);
+                        retain(entry);
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable index", e);
+                synchronized (this) {
+                    entries.clear();
+                    blobRefs.clear();
+                    totalBytes = 0;
+                }
+            }
+            deleteOrphans();
+            Log.d(TAG, "Loaded " + entries.size() + " entries, " + totalBytes() + " bytes");
+        } finally {
+            loaded.countDown();
+        }
+    }
+
+    private void deleteOrphans() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        synchronized (this) {
+            for (File file : files) {
+                if (file.equals(indexFile) || blobRefs.containsKey(file.getName())) continue;
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private void save() {
+        saveScheduled.set(false);
+        File tmp = new File(dir, "index.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            synchronized (this) {
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(entries.size());
+                // Iterating an access-ordered map does not reorder it, so LRU order is kept on reload
+                for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                    Entry entry = item.getValue();
+                    out.writeUTF(item.getKey());
+                    out.writeUTF(entry.blob);
+                    out.writeUTF(entry.mimeType);
+                    out.writeUTF(orEmpty(entry.encoding));
+                    out.writeLong(entry.size);
+                    out.writeUTF(orEmpty(entry.etag));
+                    out.writeUTF(orEmpty(entry.lastModified));
+                    out.writeUTF(orEmpty(entry.allowOrigin));
+                    out.writeLong(entry.freshUntil);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save index", e);
+            return;
+        }
+        if (!tmp.renameTo(indexFile)) Log.w(TAG, "Cannot replace " + indexFile);
+    }
+
+    private static String orEmpty(@Nullable String value) {
+        return value != null ? value : "";
+    }
+
+    @Nullable
+    private static String nullable(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
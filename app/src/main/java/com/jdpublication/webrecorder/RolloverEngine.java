@@ -0,0 +1,9 @@
+package com.jdpublication.webrecorder;
+
+// An engine that can switch to a new file without tearing down its input surface. Engines that
+// cannot are stopped and replaced between segments instead.
+public interface RolloverEngine extends RecordingEngine {
+
+    // Later frames go to next; the current file is finished and reported to the listener
+    void rollover(RecordingOutput next);
+}
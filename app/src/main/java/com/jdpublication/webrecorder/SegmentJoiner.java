@@ -0,0 +1,111 @@
+package com.jdpublication.webrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+// Joins the parts of a split recording into one MP4 without re-encoding. Each part starts at time
+// zero, so its samples are shifted to continue where the previous part ended. All parts come from
+// one encoder session and share their track formats; the first part's formats are used throughout.
+final class SegmentJoiner {
+
+    private static final String TAG = "SegmentJoiner";
+    private static final int MAX_SAMPLE_BYTES = 4 * 1024 * 1024;
+
+    private SegmentJoiner() {
+    }
+
+    static void join(List<File> parts, File output) throws IOException {
+        if (parts.isEmpty()) throw new IOException("Nothing to join");
+        MediaMuxer muxer = null;
+        try {
+            muxer = new MediaMuxer(output.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            String[] mimes;
+            MediaExtractor first = new MediaExtractor();
+            try {
+                first.setDataSource(parts.get(0).getPath());
+                mimes = new String[first.getTrackCount()];
+                for (int i = 0; i < mimes.length; i++) {
+                    MediaFormat format = first.getTrackFormat(i);
+                    mimes[i] = format.getString(MediaFormat.KEY_MIME);
+                    if (muxer.addTrack(format) != i) throw new IOException("Unexpected track order");
+                }
+            } finally {
+                first.release();
+            }
+            muxer.start();
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_SAMPLE_BYTES);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            long offsetUs = 0;
+            for (File part : parts) {
+                offsetUs = appendPart(part, mimes, muxer, buffer, info, offsetUs);
+            }
+            muxer.stop();
+        } catch (RuntimeException e) {
+            throw new IOException("Join failed", e);
+        } finally {
+            if (muxer != null) {
+                try {
+                    muxer.release();
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "muxer.release", e);
+                }
+            }
+        }
+    }
+
+    // Returns where the next part starts: one frame past the last sample written
+    private static long appendPart(File part, String[] mimes, MediaMuxer muxer, ByteBuffer buffer,
+                                   MediaCodec.BufferInfo info, long offsetUs) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(part.getPath());
+            // Part track index -> muxer track, matched by mime type
+            int[] tracks = new int[extractor.getTrackCount()];
+            for (int i = 0; i < tracks.length; i++) {
+                tracks[i] = indexOf(mimes, extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME));
+                if (tracks[i] >= 0) extractor.selectTrack(i);
+            }
+
+            // Per muxer track: last sample time and the gap before it
+            long[] lastUs = new long[mimes.length];
+            long[] stepUs = new long[mimes.length];
+            Arrays.fill(lastUs, -1);
+            while (true) {
+                int size = extractor.readSampleData(buffer, 0);
+                if (size < 0) break;
+                int track = tracks[extractor.getSampleTrackIndex()];
+                long timeUs = extractor.getSampleTime();
+                if (lastUs[track] >= 0 && timeUs > lastUs[track]) stepUs[track] = timeUs - lastUs[track];
+                lastUs[track] = Math.max(lastUs[track], timeUs);
+                int flags = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+                info.set(0, size, offsetUs + timeUs, flags);
+                muxer.writeSampleData(track, buffer, info);
+                extractor.advance();
+            }
+            long endUs = offsetUs;
+            for (int i = 0; i < mimes.length; i++) {
+                if (lastUs[i] >= 0) endUs = Math.max(endUs, offsetUs + lastUs[i] + stepUs[i]);
+            }
+            return endUs;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private static int indexOf(String[] mimes, String mime) {
+        for (int i = 0; i < mimes.length; i++) {
+            if (mimes[i] != null && mimes[i].equals(mime)) return i;
+        }
+        return -1;
+    }
+}
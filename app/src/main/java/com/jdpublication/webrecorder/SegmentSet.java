@@ -0,0 +1,105 @@
+package com.jdpublication.webrecorder;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+// The files one recorded entry is split into when a long recording rolls over. Parts are staged as
+// <name>_part001, _part002, ...; an entry that never rolled over is published under its plain name.
+// With joining enabled nothing is published until the entry has ended and every part is finished,
+// then the parts go out as one file. Parts finish on the engine's thread, hence the locking.
+final class SegmentSet {
+
+    interface Listener {
+        // Once the entry has ended and every part is finished or discarded, on whichever thread did
+        // that last. complete is false when nothing was saved or a part before the last saved one was lost.
+        void onSettled(boolean complete);
+    }
+
+    private final String name;
+    private final boolean join;
+    private final RecordingPublisher publisher;
+    @Nullable
+    private final Listener listener;
+    private final Map<RecordingOutput, Integer> open = new HashMap<>();
+    private final TreeMap<Integer, File> finished = new TreeMap<>();
+    private int created = 0;
+    private boolean closed = false;
+    private boolean settled = false;
+    // Discarded parts past the last saved one are outputs the engine had lined up but never wrote to
+    private int lastSaved = 0;
+    private int firstLost = 0;
+
+    SegmentSet(String name, boolean join, RecordingPublisher publisher, @Nullable Listener listener) {
+        this.name = name;
+        this.join = join;
+        this.publisher = publisher;
+        this.listener = listener;
+    }
+
+    // Null once the entry has ended
+    @Nullable
+    synchronized RecordingOutput newOutput(Context context) throws IOException {
+        if (closed) return null;
+        RecordingOutput output = RecordingOutput.create(context, partName(created + 1));
+        open.put(output, ++created);
+        return output;
+    }
+
+    // file is null when the part was discarded
+    synchronized void onPartFinished(RecordingOutput output, @Nullable File file) {
+        Integer part = open.remove(output);
+        if (part == null) return;
+        if (file != null) {
+            finished.put(part, file);
+            lastSaved = Math.max(lastSaved, part);
+        } else if (firstLost == 0 || part < firstLost) {
+            firstLost = part;
+        }
+        flush();
+        settle();
+    }
+
+    synchronized void close() {
+        closed = true;
+        flush();
+        settle();
+    }
+
+    private void settle() {
+        if (!closed || !open.isEmpty() || settled) return;
+        settled = true;
+        if (listener != null) listener.onSettled(lastSaved > 0 && (firstLost == 0 || firstLost > lastSaved));
+    }
+
+    private void flush() {
+        if (join) {
+            if (!closed || !open.isEmpty() || finished.isEmpty()) return;
+            if (created == 1) {
+                publisher.publish(finished.remove(1), name);
+            } else {
+                publisher.publishJoined(new ArrayList<>(finished.values()), name);
+                finished.clear();
+            }
+            return;
+        }
+        while (!finished.isEmpty()) {
+            int part = finished.firstKey();
+            // Until a second part exists the first one may still turn out to be the whole entry
+            if (part == 1 && created == 1 && !closed) return;
+            publisher.publish(finished.remove(part), created == 1 ? name : partName(part));
+        }
+    }
+
+    private String partName(int part) {
+        return String.format(Locale.US, "%s_part%03d", name, part);
+    }
+}
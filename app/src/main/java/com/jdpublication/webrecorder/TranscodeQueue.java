@@ -0,0 +1,343 @@
+package com.jdpublication.webrecorder;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Shrinks finished recordings by re-encoding them (see Transcoder), then hands them on to the
+// PostProcessor. Jobs only start while nothing is being recorded, the battery is charging or above
+// the configured level, and the device is not thermally throttled; otherwise the scheduler checks
+// again later. The original stays untouched until the new file has been verified, and the queue
+// survives process death like the post-processing one.
+public class TranscodeQueue {
+
+    private static final String TAG = "TranscodeQueue";
+    public static final String ACTION_TRANSCODE_FINISHED = "com.jdpublication.webrecorder.TRANSCODE_FINISHED";
+    public static final String EXTRA_RATIO = "ratio";
+    public static final String EXTRA_ELAPSED_MS = "elapsed_ms";
+
+    private static final long RECHECK_DELAY_MS = 60_000;
+    // A transcode that drifts further than this from the source duration is treated as broken
+    private static final long MAX_DURATION_DRIFT_MS = 500;
+    // Retries within one process; a job holding a .verified copy stays queued for the next start anyway
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 30_000;
+
+    private static TranscodeQueue instance;
+
+    private final Context context;
+    private final RecorderSettings settings;
+    private final File workDir;
+    private final File queueFile;
+    private final File reportFile;
+    private final Handler scheduler;
+    private final ExecutorService workers;
+    // Scheduler thread only
+    private final ArrayDeque<String> waiting = new ArrayDeque<>();
+    private final ArrayList<String> running = new ArrayList<>();
+    // Failed while a .verified copy exists; persisted, and retried after a delay
+    private final ArrayList<String> held = new ArrayList<>();
+    private final Map<String, Integer> attempts = new HashMap<>();
+    private boolean loaded = false;
+
+    private final Runnable dispatch = this::dispatch;
+
+    public static synchronized TranscodeQueue get(Context context) {
+        if (instance == null) instance = new TranscodeQueue(context.getApplicationContext());
+        return instance;
+    }
+
+    private TranscodeQueue(Context context) {
+        this.context = context;
+        settings = new RecorderSettings(context);
+        workDir = new File(context.getFilesDir(), "transcode");
+        queueFile = new File(workDir, "queue");
+        reportFile = new File(workDir, "report.csv");
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        scheduler = new Handler(thread.getLooper());
+        workers = Executors.newCachedThreadPool(runnable -> {
+            Thread worker = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, TAG + "-worker");
+            worker.setDaemon(true);
+            return worker;
+        });
+    }
+
+    public void enqueue(Uri uri) {
+        scheduler.post(() -> {
+            loadQueue();
+            String key = uri.toString();
+            if (waiting.contains(key) || running.contains(key) || held.contains(key)) return;
+            waiting.add(key);
+            persistQueue();
+            dispatch();
+        });
+    }
+
+    public void resume() {
+        scheduler.post(() -> {
+            loadQueue();
+            dispatch();
+        });
+    }
+
+    private void loadQueue() {
+        if (loaded) return;
+        loaded = true;
+        if (!workDir.isDirectory() && !workDir.mkdirs()) {
+            Log.e(TAG, "Cannot create " + workDir);
+            return;
+        }
+        if (!queueFile.isFile()) return;
+        try {
+            for (String line : Files.readAllLines(queueFile.toPath(), StandardCharsets.UTF_8)) {
+                if (!line.isEmpty() && !waiting.contains(line)) waiting.add(line);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read queue", e);
+        }
+    }
+
+    private void dispatch() {
+        scheduler.removeCallbacks(dispatch);
+        while (!waiting.isEmpty() && running.size() < settings.getTranscodeConcurrency()) {
+            String reason = deferReason();
+            if (reason != null) {
+                Log.d(TAG, "Deferring " + waiting.size() + " transcodes: " + reason);
+                scheduler.postDelayed(dispatch, RECHECK_DELAY_MS);
+                return;
+            }
+            String uri = waiting.poll();
+            running.add(uri);
+            workers.execute(() -> {
+                boolean done = run(Uri.parse(uri));
+                scheduler.post(() -> {
+                    running.remove(uri);
+                    if (done) {
+                        attempts.remove(uri);
+                    } else {
+                        hold(uri);
+                    }
+                    persistQueue();
+                    dispatch();
+                });
+            });
+        }
+    }
+
+    private void hold(String uri) {
+        held.add(uri);
+        int attempt = attempts.merge(uri, 1, Integer::sum);
+        if (attempt >= MAX_ATTEMPTS) {
+            Log.e(TAG, "Giving up on " + uri + " until the next start");
+            return;
+        }
+        scheduler.postDelayed(() -> {
+            if (!held.remove(uri)) return;
+            waiting.add(uri);
+            dispatch();
+        }, RETRY_DELAY_MS * attempt);
+    }
+
+    private String deferReason() {
+        if (RecordingService.isRecording) return "recording";
+
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+            boolean charging = status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL;
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+            if (!charging && level >= 0 && level * 100 / scale < settings.getTranscodeMinBatteryPercent()) {
+                return "battery low";
+            }
+        }
+
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (pm.isPowerSaveMode()) return "power save";
+        if (pm.getCurrentThermalStatus() >= PowerManager.THERMAL_STATUS_MODERATE) {
+            return "thermal";
+        }
+        return null;
+    }
+
+    private void persistQueue() {
+        ArrayList<String> pending = new ArrayList<>(running);
+        pending.addAll(held);
+        pending.addAll(waiting);
+        File tmp = new File(workDir, "queue.tmp");
+        try {
+            Files.write(tmp.toPath(), pending, StandardCharsets.UTF_8);
+            if (!tmp.renameTo(queueFile)) throw new IOException("rename failed");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to persist queue", e);
+        }
+    }
+
+    // Worker thread; false when the job has to stay queued
+    private boolean run(Uri uri) {
+        String name = PostProcessor.jobName(uri);
+        File work = new File(workDir, name + ".mp4");
+        File verified = new File(workDir, name + ".verified");
+        try {
+            long started = SystemClock.elapsedRealtime();
+            if (!verified.exists() && !transcodeAndVerify(uri, work, verified)) {
+                Log.i(TAG, "Keeping original " + uri);
+            } else {
+                long originalSize = sizeOf(uri);
+                replace(uri, verified);
+                long elapsed = SystemClock.elapsedRealtime() - started;
+                report(uri, originalSize, sizeOf(uri), elapsed);
+            }
+            PostProcessor.get(context).enqueue(uri);
+            return true;
+        } catch (FileNotFoundException e) {
+            if (verified.exists() && recordingExists(uri)) {
+                Log.e(TAG, "Recording unavailable, keeping " + uri, e);
+                return false;
+            }
+            Log.w(TAG, "Recording is gone, dropping " + uri);
+            if (verified.exists() && !verified.delete()) Log.w(TAG, "Cannot delete " + verified);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Transcode failed for " + uri, e);
+            // replace() truncates the original first, so once .verified exists it may be the only
+            // intact version and the job must be retried rather than dropped
+            if (verified.exists()) return false;
+            PostProcessor.get(context).enqueue(uri);
+            return true;
+        } finally {
+            if (work.exists() && !work.delete()) Log.w(TAG, "Cannot delete " + work);
+        }
+    }
+
+    private boolean recordingExists(Uri uri) {
+        try (Cursor cursor = context.getContentResolver().query(uri, new String[]{MediaStore.Video.Media._ID}, null, null, null)) {
+            return cursor != null && cursor.moveToFirst();
+        } catch (RuntimeException e) {
+            // Cannot tell, so the copy is kept
+            return true;
+        }
+    }
+
+    // False when the result is unusable or not smaller than the original
+    private boolean transcodeAndVerify(Uri uri, File work, File verified) throws IOException {
+        long originalSize;
+        long originalDuration;
+        try (ParcelFileDescriptor pfd = open(uri, "r")) {
+            originalSize = pfd.getStatSize();
+            originalDuration = durationOf(pfd);
+            String mime = EncoderProfiles.probe(settings.getTranscodeMimeType()) != null
+                    ? settings.getTranscodeMimeType() : EncoderConfig.defaults().mimeType;
+            Transcoder.transcode(pfd.getFileDescriptor(), work, mime, settings.getTranscodeBitRate());
+        }
+
+        long newDuration;
+        try (ParcelFileDescriptor pfd = ParcelFileDescriptor.open(work, ParcelFileDescriptor.MODE_READ_ONLY)) {
+            newDuration = durationOf(pfd);
+        }
+        if (newDuration <= 0 || Math.abs(newDuration - originalDuration) > MAX_DURATION_DRIFT_MS) {
+            Log.w(TAG, "Duration mismatch " + newDuration + " vs " + originalDuration + " for " + uri);
+            return false;
+        }
+        if (work.length() >= originalSize) return false;
+        if (!work.renameTo(verified)) throw new IOException("Cannot rename " + work);
+        return true;
+    }
+
+    // Writes the verified file over the original with moov in front; repeated after a crash
+    private void replace(Uri uri, File verified) throws IOException {
+        try (FileChannel in = new FileInputStream(verified).getChannel();
+             FileOutputStream fos = new ParcelFileDescriptor.AutoCloseOutputStream(open(uri, "rwt"));
+             FileChannel out = fos.getChannel()) {
+            if (Mp4FastStart.needsRelocation(in)) {
+                Mp4FastStart.relocate(in, out, Mp4FastStart.DIRECT);
+            } else {
+                Mp4FastStart.DIRECT.copy(in, 0, in.size(), out);
+            }
+            fos.getFD().sync();
+        }
+        if (!verified.delete()) Log.w(TAG, "Cannot delete " + verified);
+    }
+
+    private void report(Uri uri, long originalSize, long newSize, long elapsedMs) {
+        float ratio = originalSize > 0 ? (float) newSize / originalSize : 1f;
+        String line = String.format(Locale.US, "%d,%s,%d,%d,%.3f,%d%n",
+                System.currentTimeMillis(), uri, originalSize, newSize, ratio, elapsedMs);
+        Log.i(TAG, "Transcoded " + uri + " to " + Math.round(ratio * 100) + "% in " + elapsedMs + " ms");
+        try {
+            if (!reportFile.exists()) {
+                Files.write(reportFile.toPath(), Collections.singletonList("time,uri,original_bytes,new_bytes,ratio,elapsed_ms"),
+                        StandardCharsets.UTF_8);
+            }
+            Files.write(reportFile.toPath(), line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to append report", e);
+        }
+
+        Intent intent = new Intent(ACTION_TRANSCODE_FINISHED);
+        intent.putExtra(EXTRA_RATIO, ratio);
+        intent.putExtra(EXTRA_ELAPSED_MS, elapsedMs);
+        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+    }
+
+    private long sizeOf(Uri uri) throws IOException {
+        try (ParcelFileDescriptor pfd = open(uri, "r")) {
+            return pfd.getStatSize();
+        }
+    }
+
+    private ParcelFileDescriptor open(Uri uri, String mode) throws FileNotFoundException {
+        ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, mode);
+        if (pfd == null) throw new FileNotFoundException(uri.toString());
+        return pfd;
+    }
+
+    private static long durationOf(ParcelFileDescriptor pfd) throws IOException {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(pfd.getFileDescriptor());
+            String value = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            return value != null ? Long.parseLong(value) : 0;
+        } catch (RuntimeException e) {
+            throw new IOException("Unreadable video", e);
+        } finally {
+            retriever.release();
+        }
+    }
+}
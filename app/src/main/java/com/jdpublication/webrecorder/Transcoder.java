@@ -0,0 +1,177 @@
+package com.jdpublication.webrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Re-encodes the video track of an MP4: extractor -> decoder -> the encoder's input surface ->
+// encoder -> muxer. The decoder renders straight into the encoder surface, so frames never leave
+// the GPU. Audio is copied unchanged. Runs synchronously on the calling thread.
+final class Transcoder {
+
+    private static final String TAG = "Transcoder";
+    private static final long TIMEOUT_US = 10_000;
+    private static final int DEFAULT_FRAME_RATE = 30;
+    private static final int KEYFRAME_INTERVAL_SEC = 2;
+
+    private Transcoder() {
+    }
+
+    static void transcode(FileDescriptor input, File output, String mimeType, int bitRate) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec decoder = null;
+        MediaCodec encoder = null;
+        Surface surface = null;
+        MediaMuxer muxer = null;
+        boolean muxerStarted = false;
+        try {
+            extractor.setDataSource(input);
+            int videoTrack = -1;
+            int audioTrack = -1;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+                if (mime == null) continue;
+                if (videoTrack < 0 && mime.startsWith("video/")) videoTrack = i;
+                if (audioTrack < 0 && mime.startsWith("audio/")) audioTrack = i;
+            }
+            if (videoTrack < 0) throw new IOException("No video track");
+
+            MediaFormat inputFormat = extractor.getTrackFormat(videoTrack);
+            int width = inputFormat.getInteger(MediaFormat.KEY_WIDTH);
+            int height = inputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+            int frameRate = inputFormat.containsKey(MediaFormat.KEY_FRAME_RATE)
+                    ? inputFormat.getInteger(MediaFormat.KEY_FRAME_RATE) : DEFAULT_FRAME_RATE;
+
+            MediaFormat outputFormat = MediaFormat.createVideoFormat(mimeType, width, height);
+            outputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+            outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+            outputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, KEYFRAME_INTERVAL_SEC);
+            outputFormat.setInteger(MediaFormat.KEY_BITRATE_MODE, EncoderConfig.BITRATE_MODE_VBR);
+
+            EncoderProfiles.Probe probe = EncoderProfiles.probe(mimeType);
+            encoder = probe != null ? MediaCodec.createByCodecName(probe.encoderName) : MediaCodec.createEncoderByType(mimeType);
+            encoder.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            surface = encoder.createInputSurface();
+            encoder.start();
+
+            decoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+            decoder.configure(inputFormat, surface, null, 0);
+            decoder.start();
+
+            muxer = new MediaMuxer(output.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            int muxerAudioTrack = audioTrack >= 0 ? muxer.addTrack(extractor.getTrackFormat(audioTrack)) : -1;
+
+            extractor.selectTrack(videoTrack);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            boolean inputDone = false;
+            boolean decoderDone = false;
+            boolean encoderDone = false;
+            int muxerVideoTrack = -1;
+            while (!encoderDone) {
+                if (!inputDone) {
+                    int index = decoder.dequeueInputBuffer(TIMEOUT_US);
+                    if (index >= 0) {
+                        ByteBuffer buffer = decoder.getInputBuffer(index);
+                        int size = buffer != null ? extractor.readSampleData(buffer, 0) : -1;
+                        if (size < 0) {
+                            decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            decoder.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                if (!decoderDone) {
+                    int index = decoder.dequeueOutputBuffer(info, TIMEOUT_US);
+                    if (index >= 0) {
+                        if (info.size > 0) {
+                            // Carries the source timestamp through the surface to the encoder
+                            decoder.releaseOutputBuffer(index, info.presentationTimeUs * 1000);
+                        } else {
+                            decoder.releaseOutputBuffer(index, false);
+                        }
+                        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                            encoder.signalEndOfInputStream();
+                            decoderDone = true;
+                        }
+                    }
+                }
+
+                int index = encoder.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    muxerVideoTrack = muxer.addTrack(encoder.getOutputFormat());
+                    muxer.start();
+                    muxerStarted = true;
+                } else if (index >= 0) {
+                    ByteBuffer buffer = encoder.getOutputBuffer(index);
+                    boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                    if (buffer != null && !config && info.size > 0 && muxerStarted) {
+                        buffer.position(info.offset);
+                        buffer.limit(info.offset + info.size);
+                        muxer.writeSampleData(muxerVideoTrack, buffer, info);
+                    }
+                    encoder.releaseOutputBuffer(index, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) encoderDone = true;
+                }
+            }
+            if (!muxerStarted) throw new IOException("Encoder produced no output");
+
+            if (muxerAudioTrack >= 0) {
+                extractor.unselectTrack(videoTrack);
+                extractor.selectTrack(audioTrack);
+                extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                copySamples(extractor, muxer, muxerAudioTrack, extractor.getTrackFormat(audioTrack));
+            }
+            muxer.stop();
+        } catch (RuntimeException e) {
+            throw new IOException("Transcode failed", e);
+        } finally {
+            if (decoder != null) release(decoder);
+            if (encoder != null) release(encoder);
+            if (surface != null) surface.release();
+            if (muxer != null) {
+                try {
+                    muxer.release();
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "muxer.release", e);
+                }
+            }
+            extractor.release();
+        }
+    }
+
+    private static void copySamples(MediaExtractor extractor, MediaMuxer muxer, int track, MediaFormat format) {
+        int capacity = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE) ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : 256 * 1024;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        while (true) {
+            int size = extractor.readSampleData(buffer, 0);
+            if (size < 0) break;
+            int flags = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+            info.set(0, size, extractor.getSampleTime(), flags);
+            muxer.writeSampleData(track, buffer, info);
+            extractor.advance();
+        }
+    }
+
+    private static void release(MediaCodec codec) {
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "codec.stop", e);
+        }
+        codec.release();
+    }
+}
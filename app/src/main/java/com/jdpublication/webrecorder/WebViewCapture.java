@@ -0,0 +1,101 @@
+package com.jdpublication.webrecorder;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.Surface;
+import android.view.View;
+
+import androidx.annotation.Nullable;
+
+// Draws the active WebView straight into the recording surface, without MediaProjection or a
+// VirtualDisplay. Choreographer runs the loop on the main thread, where the view lives; each due
+// vsync locks a hardware canvas at the encoder's size, scales the page to fit and posts the frame.
+// Frames are due on a fixed grid at the encoder frame rate, so every run has the same cadence, and
+// only the page is drawn: no system bars, dialogs or the app's own controls.
+public class WebViewCapture implements Choreographer.FrameCallback, RecordingService.DirectCaptureListener {
+
+    private static final String TAG = "WebViewCapture";
+
+    private final Choreographer choreographer = Choreographer.getInstance();
+    private View view;
+    private Surface surface;
+    private int width;
+    private int height;
+    private long frameIntervalNanos;
+    private long nextFrameNanos;
+    private boolean running = false;
+    private long framesDrawn = 0;
+    @Nullable
+    private RecordingMetrics metrics;
+
+    // Main thread; follows the WebView swaps done by the prefetcher
+    public void setView(@Nullable View view) {
+        this.view = view;
+    }
+
+    // Counts drawn frames as submitted, so the stats can tell how far the encoder lags
+    public void setMetrics(@Nullable RecordingMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void onCaptureSurface(@Nullable Surface surface, int width, int height, int frameRate) {
+        if (this.surface == surface) return;
+        stop();
+        this.surface = surface;
+        this.width = width;
+        this.height = height;
+        if (surface == null) return;
+        frameIntervalNanos = 1_000_000_000L / Math.max(1, frameRate);
+        nextFrameNanos = 0;
+        framesDrawn = 0;
+        running = true;
+        choreographer.postFrameCallback(this);
+    }
+
+    public void stop() {
+        if (!running) return;
+        running = false;
+        choreographer.removeFrameCallback(this);
+        Log.d(TAG, "Drew " + framesDrawn + " frames");
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!running) return;
+        choreographer.postFrameCallback(this);
+        if (frameTimeNanos < nextFrameNanos) return;
+        // A stall skips the missed slots instead of bursting to catch up
+        nextFrameNanos = nextFrameNanos == 0 ? frameTimeNanos + frameIntervalNanos
+                : frameTimeNanos + frameIntervalNanos - (frameTimeNanos - nextFrameNanos) % frameIntervalNanos;
+        draw();
+    }
+
+    private void draw() {
+        if (view == null || view.getWidth() == 0 || view.getHeight() == 0) return;
+        Canvas canvas;
+        try {
+            canvas = surface.lockHardwareCanvas();
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            // The encoder released its surface before we heard about it
+            Log.w(TAG, "Recording surface is gone", e);
+            stop();
+            return;
+        }
+        try {
+            canvas.drawColor(Color.WHITE);
+            float scale = Math.min(width / (float) view.getWidth(), height / (float) view.getHeight());
+            canvas.translate((width - view.getWidth() * scale) / 2f, (height - view.getHeight() * scale) / 2f);
+            canvas.scale(scale, scale);
+            // The parent normally applies the scroll offset when it draws the view
+            canvas.translate(-view.getScrollX(), -view.getScrollY());
+            view.draw(canvas);
+            framesDrawn++;
+            if (metrics != null) metrics.onFrameSubmitted();
+        } finally {
+            surface.unlockCanvasAndPost(canvas);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.jdpublication.webrecorder;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+// Runs the cache against a local HttpServer standing in for the sites a playlist visits
+public class ResourceCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+    private final Map<String, Headers> lastHeaders = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private ResourceCache cache(long maxBytes) throws IOException {
+        return new ResourceCache(folder.newFolder(), maxBytes, url -> "session=1");
+    }
+
+    // Serves body with the given response headers, answering a matching If-None-Match with 304
+    private String serve(String path, byte[] body, String... headers) {
+        return serve(path, exchange -> {
+            for (int i = 0; i < headers.length; i += 2) exchange.getResponseHeaders().add(headers[i], headers[i + 1]);
+            String etag = exchange.getResponseHeaders().getFirst("ETag");
+            if (etag != null && etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        });
+    }
+
+    private String serve(String path, HttpHandler handler) {
+        requests.put(path, new AtomicInteger());
+        server.createContext(path, exchange -> {
+            requests.get(path).incrementAndGet();
+            lastHeaders.put(path, exchange.getRequestHeaders());
+            handler.handle(exchange);
+        });
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + path;
+    }
+
+    private static byte[] body(int size, char fill) {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) fill);
+        return bytes;
+    }
+
+    private static Map<String, String> noHeaders() {
+        return Collections.emptyMap();
+    }
+
+    private byte[] read(ResourceCache cache, ResourceCache.Entry entry) throws IOException {
+        return Files.readAllBytes(cache.blobFile(entry.blob).toPath());
+    }
+
+    @Test
+    public void freshEntryIsServedWithoutTheNetwork() throws IOException {
+        ResourceCache cache = cache(1 << 20);
+        byte[] body = "console.log(1)".getBytes(StandardCharsets.UTF_8);
+        String url = serve("/app.js", body, "Content-Type", "text/javascript", "Cache-Control", "max-age=600");
+
+        ResourceCache.Entry first = cache.lookup(url, noHeaders());
+        ResourceCache.Entry second = cache.lookup(url, noHeaders());
+
+        assertNotNull(first);
+        assertSame(first, second);
+        assertArrayEquals(body, read(cache, second));
+        assertEquals("text/javascript", second.mimeType);
+        assertEquals(1, requests.get("/app.js").get());
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.hits());
+        assertEquals(body.length, cache.totalBytes());
+    }
+
+    @Test
+    public void noCacheRevalidatesWithTheEtag() throws IOException {
+        ResourceCache cache = cache(1 << 20);
+        byte[] body = body(64, 'a');
+        String url = serve("/style.css", body, "Content-Type", "text/css", "Cache-Control", "no-cache", "ETag", "\"v1\"");
+
+        ResourceCache.Entry first = cache.lookup(url, noHeaders());
+        assertNull(lastHeaders.get("/style.css").getFirst("If-None-Match"));
+        ResourceCache.Entry second = cache.lookup(url, noHeaders());
+
+        assertNotNull(first);
+        assertSame(first, second);
+        assertEquals("\"v1\"", lastHeaders.get("/style.css").getFirst("If-None-Match"));
+        assertEquals(2, requests.get("/style.css").get());
+        assertEquals(0, cache.hits());
+        assertArrayEquals(body, read(cache, second));
+    }
+
+    @Test
+    public void maxAgeZeroRevalidatesEveryUse() throws IOException {
+        ResourceCache cache = cache(1 << 20);
+        String url = serve("/logo.png", body(32, 'p'), "Content-Type", "image/png", "Cache-Control", "max-age=0", "ETag", "\"p\"");
+
+        for (int i = 0; i < 3; i++) assertNotNull(cache.lookup(url, noHeaders()));
+
+        assertEquals(3, requests.get("/logo.png").get());
+        assertEquals(0, cache.hits());
+        assertEquals(32, cache.totalBytes());
+    }
+
+    @Test
+    public void noStoreIsPassedThrough() throws IOException {
+        ResourceCache cache = cache(1 << 20);
+        String url = serve("/private.js", body(16, 'x'), "Content-Type", "text/javascript", "Cache-Control", "no-store, max-age=600");
+
+        assertNull(cache.lookup(url, noHeaders()));
+        // Remembered as uncacheable, so the WebView loads it from then on
+        assertNull(cache.lookup(url, noHeaders()));
+
+        assertFalse(cache.contains(url));
+        assertEquals(1, requests.get("/private.js").get());
+        assertEquals(0, cache.totalBytes());
+    }
+
+    @Test
+    public void varyOnOriginIsPassedThrough() throws IOException {
+        ResourceCache cache = cache(1 << 20);
+        String url = serve("/cors.js", body(16, 'o'), "Content-Type", "text/javascript", "Cache-Control", "max-age=600",
+                "Vary", "Accept-Encoding, Origin");
+
+        assertNull(cache.lookup(url, noHeaders()));
+
+        assertFalse(cache.contains(url));
+        assertEquals(0, cache.totalBytes());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOverTheByteBudget() throws IOException {
+        ResourceCache cache = cache(250);
+        String a = serve("/a.js", body(100, 'a'), "Content-Type", "text/javascript", "Cache-Control", "max-age=600");
+        String b = serve("/b.js", body(100, 'b'), "Content-Type", "text/javascript", "Cache-Control", "max-age=600");
+        String c = serve("/c.js", body(100, 'c'), "Content-Type", "text/javascript", "Cache-Control", "max-age=600");
+
+        assertNotNull(cache.lookup(a, noHeaders()));
+        ResourceCache.Entry evicted = cache.lookup(b, noHeaders());
+        assertNotNull(evicted);
+        // Touching a leaves b as the least recently used
+        assertNotNull(cache.lookup(a, noHeaders()));
+        assertNotNull(cache.lookup(c, noHeaders()));
+
+        assertTrue(cache.contains(a));
+        assertFalse(cache.contains(b));
+        assertTrue(cache.contains(c));
+        assertEquals(200, cache.totalBytes());
+        assertFalse(cache.blobFile(evicted.blob).exists());
+    }
+
+    @Test
+    public void loweringTheBudgetEvictsRightAway() throws IOException {
+        ResourceCache cache = cache(1 << 20);
+        String a = serve("/a.css", body(100, 'a'), "Content-Type", "text/css", "Cache-Control", "max-age=600");
+        String b = serve("/b.css", body(100, 'b'), "Content-Type", "text/css", "Cache-Control", "max-age=600");
+        assertNotNull(cache.lookup(a, noHeaders()));
+        assertNotNull(cache.lookup(b, noHeaders()));
+
+        cache.setMaxBytes(150);
+        assertFalse(cache.contains(a));
+        assertTrue(cache.contains(b));
+        assertEquals(100, cache.totalBytes());
+
+        cache.setMaxBytes(0);
+        assertFalse(cache.contains(b));
+        assertEquals(0, cache.totalBytes());
+    }
+
+    @Test
+    public void identicalBodiesAreStoredOnce() throws IOException {
+        ResourceCache cache = cache(1 << 20);
+        String first = serve("/v1/lib.js", body(100, 'l'), "Content-Type", "text/javascript", "Cache-Control", "max-age=600");
+        String second = serve("/v2/lib.js", body(100, 'l'), "Content-Type", "text/javascript", "Cache-Control", "max-age=600");
+
+        ResourceCache.Entry one = cache.lookup(first, noHeaders());
+        ResourceCache.Entry two = cache.lookup(second, noHeaders());
+
+        assertNotNull(one);
+        assertNotNull(two);
+        assertEquals(one.blob, two.blob);
+        assertEquals(100, cache.totalBytes());
+    }
+
+    @Test
+    public void concurrentMissesShareOneFetch() throws Exception {
+        ResourceCache cache = cache(1 << 20);
+        CountDownLatch release = new CountDownLatch(1);
+        byte[] body = body(1000, 'f');
+        String url = serve("/font.woff2", exchange -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.getResponseHeaders().add("Content-Type", "font/woff2");
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=600");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+            exchange.close();
+        });
+
+        int callers = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(callers);
+        CountDownLatch started = new CountDownLatch(callers);
+        List<Future<ResourceCache.Entry>> results = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            results.add(pool.submit(() -> {
+                started.countDown();
+                return cache.lookup(url, noHeaders());
+            }));
+        }
+        started.await();
+        // Gives every caller time to join the fetch before the server answers
+        Thread.sleep(200);
+        release.countDown();
+
+        ResourceCache.Entry first = results.get(0).get(10, TimeUnit.SECONDS);
+        assertNotNull(first);
+        for (Future<ResourceCache.Entry> result : results) assertSame(first, result.get(10, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        assertEquals(1, requests.get("/font.woff2").get());
+        assertEquals(callers, cache.hits() + cache.misses());
+        assertEquals(body.length, cache.totalBytes());
+    }
+
+    @Test
+    public void forwardsOnlyWhitelistedHeaders() throws IOException {
+        ResourceCache cache = cache(1 << 20);
+        String url = serve("/page.js", body(8, 'h'), "Content-Type", "text/javascript", "Cache-Control", "max-age=600");
+        Map<String, String> headers = new HashMap<>();
+        headers.put("user-agent", "RecorderTest");
+        headers.put("Referer", "http://example.com/");
+        headers.put("Accept-Encoding", "gzip, br");
+        headers.put("Range", "bytes=0-3");
+        headers.put("X-Requested-With", "com.jdpublication.webrecorder");
+
+        assertNotNull(cache.lookup(url, headers));
+
+        Headers received = lastHeaders.get("/page.js");
+        assertEquals("RecorderTest", received.getFirst("User-Agent"));
+        assertEquals("http://example.com/", received.getFirst("Referer"));
+        assertEquals("session=1", received.getFirst("Cookie"));
+        assertNull(received.getFirst("Accept-Encoding"));
+        assertNull(received.getFirst("Range"));
+        assertNull(received.getFirst("X-Requested-With"));
+    }
+}
@@ -1,3 +1,4 @@
 plugins {
     alias(libs.plugins.android.application) apply false
+    alias(libs.plugins.jmh) apply false
 }
\ No newline at end of file
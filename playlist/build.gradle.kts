@@ -0,0 +1,102 @@
+import groovy.json.JsonSlurper
+
+plugins {
+    `java-library`
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+dependencies {
+    implementation(libs.poi)
+    implementation(libs.poi.ooxml)
+    testImplementation(libs.junit)
+    jmh(libs.jol.core)
+}
+
+// ./gradlew :playlist:jmh runs the suite and :playlist:playlistFootprint measures retained heap;
+// jmhCompare checks both against the saved baselines and fails on a regression, jmhSaveBaseline
+// makes the last results the new baselines. Baselines are only comparable on the machine that
+// recorded them, so none are checked in: each machine records its own into benchmarks/, which is
+// gitignored, and jmhCompare skips until one exists.
+jmh {
+    jmhVersion = libs.versions.jmh
+    resultFormat = "JSON"
+    // Allocation per op is compared alongside time; iteration counts live on each benchmark class
+    profilers.add("gc")
+    includes.addAll(providers.gradleProperty("jmh.includes").map { listOf(it) }.orElse(emptyList()))
+}
+
+val jmhResults = layout.buildDirectory.dir("results/jmh")
+val jmhBaselines = layout.projectDirectory.dir("benchmarks")
+// Result file -> baseline file
+val baselineNames = mapOf("results.json" to "baseline.json", "footprint.json" to "footprint-baseline.json")
+
+tasks.register<JavaExec>("playlistFootprint") {
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass = "com.jdpublication.webrecorder.PlaylistFootprint"
+    jvmArgs("-Xmx2g", "-Djdk.attach.allowAttachSelf=true")
+    args(jmhResults.get().file("footprint.json").asFile.path)
+}
+
+tasks.register<Copy>("jmhSaveBaseline") {
+    from(jmhResults) {
+        include(baselineNames.keys)
+    }
+    into(jmhBaselines)
+    rename { baselineNames.getValue(it) }
+}
+
+tasks.register("jmhCompare") {
+    // Allowed slowdown (and allocation or footprint growth) before a benchmark counts as regressed
+    val tolerance = providers.gradleProperty("jmh.tolerance").map { it.toDouble() }.orElse(0.10)
+    val results = jmhResults
+    val baselines = jmhBaselines
+    doLast {
+        val limit = tolerance.get()
+        val regressions = mutableListOf<String>()
+        var compared = 0
+        for ((resultName, baselineName) in baselineNames) {
+            val baselineFile = baselines.file(baselineName).asFile
+            val resultFile = results.get().file(resultName).asFile
+            if (!baselineFile.exists() || !resultFile.exists()) continue
+            compared++
+            val before = scores(baselineFile)
+            for ((key, score) in scores(resultFile)) {
+                val old = before[key] ?: continue
+                // Zero baselines only come from allocation-free benchmarks; any allocation there is a regression
+                val change = if (old > 0) (score - old) / old else if (score >= 1.0) Double.POSITIVE_INFINITY else 0.0
+                logger.lifecycle(String.format("%-90s %14.3f %14.3f %+7.1f%%", key, old, score, change * 100))
+                if (change > limit) regressions.add(key)
+            }
+        }
+        if (compared == 0) {
+            logger.lifecycle("jmhCompare skipped: no baseline with matching results in ${baselines.asFile}; " +
+                    "run jmh or playlistFootprint, then jmhSaveBaseline")
+            return@doLast
+        }
+        if (regressions.isNotEmpty()) {
+            throw GradleException("Regressed beyond ${limit * 100}%:\n" + regressions.joinToString("\n"))
+        }
+    }
+}
+
+// Benchmark and params -> time per op and bytes allocated per op; higher is worse for both
+fun scores(file: File): Map<String, Double> {
+    val scores = linkedMapOf<String, Double>()
+    @Suppress("UNCHECKED_CAST")
+    val runs = JsonSlurper().parse(file) as List<Map<String, Any?>>
+    for (run in runs) {
+        val params = (run["params"] as Map<*, *>?)?.entries?.joinToString(",", "(", ")") { "${it.key}=${it.value}" } ?: ""
+        val key = "${run["benchmark"]}$params"
+        scores[key] = ((run["primaryMetric"] as Map<*, *>)["score"] as Number).toDouble()
+        // Older JMH releases prefix profiler metrics with a middle dot
+        val secondary = run["secondaryMetrics"] as Map<*, *>?
+        val alloc = (secondary?.get("gc.alloc.rate.norm") ?: secondary?.get("\u00b7gc.alloc.rate.norm")) as Map<*, *>?
+        if (alloc != null) scores["$key alloc"] = (alloc["score"] as Number).toDouble()
+    }
+    return scores
+}
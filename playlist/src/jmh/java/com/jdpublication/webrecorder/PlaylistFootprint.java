@@ -0,0 +1,51 @@
+package com.jdpublication.webrecorder;
+
+import org.openjdk.jol.info.GraphLayout;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+// Retained heap of a loaded playlist, as a plain UrlData list and as a heap PlaylistStore, walked
+// with JOL. A mapped store keeps its entries off the heap, so it is not listed. Writes the sizes in
+// JMH's JSON result shape so jmhCompare can hold them against a baseline like any benchmark.
+public final class PlaylistFootprint {
+
+    private static final int[] ROWS = {1000, 10000, 100000, 1000000};
+
+    private PlaylistFootprint() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        File out = new File(args.length > 0 ? args[0] : "footprint.json");
+        StringBuilder json = new StringBuilder("[\n");
+        for (int rows : ROWS) {
+            List<UrlData> list = SheetGenerator.entries(rows);
+            long listBytes = GraphLayout.parseInstance(list).totalSize();
+            PlaylistStore store = new PlaylistStore();
+            store.addAll(list);
+            long storeBytes = GraphLayout.parseInstance(store).totalSize();
+
+            System.out.printf(Locale.US, "%8d rows: list %,14d bytes (%5.1f/entry), store %,14d bytes (%5.1f/entry)%n",
+                    rows, listBytes, listBytes / (double) rows, storeBytes, storeBytes / (double) rows);
+            append(json, "list", rows, listBytes);
+            append(json, "store", rows, storeBytes);
+        }
+        json.setLength(json.length() - 2);
+        json.append("\n]\n");
+        File dir = out.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create " + dir);
+        try (PrintWriter writer = new PrintWriter(out, StandardCharsets.UTF_8.name())) {
+            writer.print(json);
+        }
+    }
+
+    private static void append(StringBuilder json, String name, int rows, long bytes) {
+        json.append(String.format(Locale.US,
+                "  {\"benchmark\": \"%s.%s\", \"params\": {\"rows\": \"%d\"}, \"primaryMetric\": {\"score\": %d, \"scoreUnit\": \"bytes\"}},\n",
+                PlaylistFootprint.class.getName(), name, rows, bytes));
+    }
+}
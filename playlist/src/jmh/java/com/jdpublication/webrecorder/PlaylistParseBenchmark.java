@@ -0,0 +1,83 @@
+package com.jdpublication.webrecorder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Whole-sheet parse time per playlist size; rows per second is rows / score. The gc profiler's
+// alloc.rate.norm is the allocation per parse, which should grow with the rows and nothing else.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class PlaylistParseBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int rows;
+
+    private File xlsx;
+    private ByteBuffer csv;
+
+    // Counts entries so the parse cannot be optimised away
+    private static final class Sink implements PlaylistReader.Listener {
+        private final Blackhole blackhole;
+        long entries = 0;
+
+        Sink(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onEntry(UrlData data) {
+            entries++;
+            blackhole.consume(data);
+        }
+
+        @Override
+        public void onProgress(long processed, long total) {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        xlsx = SheetGenerator.xlsx(rows);
+        csv = SheetGenerator.csv(rows);
+    }
+
+    @Benchmark
+    public long xlsx(Blackhole blackhole) throws IOException {
+        Sink sink = new Sink(blackhole);
+        new ExcelPlaylistReader(xlsx).read(sink);
+        return check(sink.entries);
+    }
+
+    @Benchmark
+    public long csv(Blackhole blackhole) throws IOException {
+        Sink sink = new Sink(blackhole);
+        new CsvPlaylistReader(csv.duplicate(), CsvPlaylistReader.DETECT_DELIMITER).read(sink);
+        return check(sink.entries);
+    }
+
+    // A reader that silently skips rows would look like a speedup
+    private long check(long entries) {
+        if (entries != rows) throw new IllegalStateException("Parsed " + entries + " of " + rows + " rows");
+        return entries;
+    }
+}
@@ -0,0 +1,106 @@
+package com.jdpublication.webrecorder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Lookup costs behind the playlist UI and the batch recorder: a plain UrlData list against the
+// packed store, on the heap and memory-mapped back from disk. Random reads stand in for jumping to
+// an entry, sequential ones for stepping through the playlist with next/previous.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PlaylistStoreBenchmark {
+
+    private static final int PICKS = 4096;
+
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    private List<UrlData> list;
+    private PlaylistStore store;
+    private PlaylistStore mapped;
+    private File mappedFile;
+    private final int[] picks = new int[PICKS];
+    private int pick = 0;
+    private int cursor = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        list = SheetGenerator.entries(rows);
+        store = new PlaylistStore();
+        store.addAll(list);
+        mappedFile = File.createTempFile("playlist", ".idx");
+        store.save(mappedFile);
+        mapped = PlaylistStore.open(mappedFile);
+        // Fixed seed, so every run reads the same entries
+        Random random = new Random(42);
+        for (int i = 0; i < PICKS; i++) picks[i] = random.nextInt(rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mappedFile.delete();
+    }
+
+    private int nextPick() {
+        pick = (pick + 1) & (PICKS - 1);
+        return picks[pick];
+    }
+
+    // Wraps at the end like the playlist does
+    private int nextCursor() {
+        cursor = cursor + 1 < rows ? cursor + 1 : 0;
+        return cursor;
+    }
+
+    @Benchmark
+    public String listRandom() {
+        return list.get(nextPick()).getWebUrl();
+    }
+
+    @Benchmark
+    public String storeRandom() {
+        return store.getWebUrl(nextPick());
+    }
+
+    @Benchmark
+    public String mappedRandom() {
+        return mapped.getWebUrl(nextPick());
+    }
+
+    @Benchmark
+    public UrlData listNext() {
+        return list.get(nextCursor());
+    }
+
+    @Benchmark
+    public UrlData storeNext() {
+        return store.get(nextCursor());
+    }
+
+    @Benchmark
+    public UrlData mappedNext() {
+        return mapped.get(nextCursor());
+    }
+}
@@ -0,0 +1,78 @@
+package com.jdpublication.webrecorder;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Synthetic playlists shaped like real ones: a header row, then filename and URL columns, with the
+// URLs spread over a handful of hosts so prefix sharing in PlaylistStore behaves as it does in use.
+// Generated sheets are kept in the temp directory, since the large ones take a while to write.
+final class SheetGenerator {
+
+    private static final String[] HOSTS = {
+            "https://www.example.com/", "https://news.example.org/", "https://docs.example.net/",
+            "http://blog.example.io/", "https://shop.example.co.uk/", "https://m.example.in/"
+    };
+
+    private SheetGenerator() {
+    }
+
+    static String filename(int row) {
+        return "recording_" + row;
+    }
+
+    static String url(int row) {
+        return HOSTS[row % HOSTS.length] + "articles/" + (row * 7919L % 1_000_003) + "/page-" + row + "?ref=playlist";
+    }
+
+    static File xlsx(int rows) throws IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "webrecorder-jmh");
+        File file = new File(dir, "playlist-" + rows + ".xlsx");
+        if (file.exists()) return file;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create " + dir);
+
+        File tmp = new File(dir, file.getName() + ".tmp");
+        // Streams rows to disk, so even a million rows fit in a small heap
+        try (SXSSFWorkbook workbook = new SXSSFWorkbook(1000); OutputStream out = new FileOutputStream(tmp)) {
+            Sheet sheet = workbook.createSheet("Playlist");
+            Row header = sheet.createRow(0);
+            header.createCell(0).setCellValue("Filename");
+            header.createCell(1).setCellValue("URL");
+            for (int i = 0; i < rows; i++) {
+                Row row = sheet.createRow(i + 1);
+                row.createCell(0).setCellValue(filename(i));
+                row.createCell(1).setCellValue(url(i));
+            }
+            workbook.write(out);
+        }
+        if (!tmp.renameTo(file)) throw new IOException("Unable to replace " + file);
+        return file;
+    }
+
+    static ByteBuffer csv(int rows) {
+        StringBuilder sb = new StringBuilder(rows * 80);
+        sb.append("Filename,URL\n");
+        for (int i = 0; i < rows; i++) {
+            sb.append(filename(i)).append(',').append(url(i)).append('\n');
+        }
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+
+    static List<UrlData> entries(int rows) {
+        List<UrlData> entries = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) entries.add(new UrlData(filename(i), url(i)));
+        return entries;
+    }
+}
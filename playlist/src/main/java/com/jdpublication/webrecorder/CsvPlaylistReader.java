@@ -0,0 +1,149 @@
+package com.jdpublication.webrecorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+// Parses CSV/TSV straight out of a (usually memory-mapped) buffer. Only the filename and URL
+// columns are ever decoded into Strings; every other byte is scanned in place.
+public class CsvPlaylistReader implements PlaylistReader {
+
+    public static final char DETECT_DELIMITER = 0;
+
+    private static final int PROGRESS_INTERVAL = 10000;
+
+    private final ByteBuffer buffer;
+    private final char delimiter;
+    private byte[] scratch = new byte[256];
+
+    public CsvPlaylistReader(ByteBuffer buffer, char delimiter) {
+        this.buffer = buffer;
+        this.delimiter = delimiter;
+    }
+
+    public static MappedByteBuffer map(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) throw new IOException("Playlist too large to map: " + size + " bytes");
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    @Override
+    public void read(Listener listener) throws IOException {
+        ByteBuffer buf = buffer;
+        int limit = buf.limit();
+        int pos = skipBom(buf, buf.position(), limit);
+        byte delim = (byte) (delimiter != DETECT_DELIMITER ? delimiter : detectDelimiter(buf, pos, limit));
+
+        String filename;
+        String webUrl;
+        boolean header = true;
+        long rows = 0;
+
+        while (pos < limit) {
+            filename = null;
+            webUrl = null;
+            int column = 0;
+
+            while (true) {
+                String value = null;
+                boolean wanted = column < 2 && !header;
+
+                if (buf.get(pos) == '"') {
+                    int len = 0;
+                    pos++;
+                    while (pos < limit) {
+                        byte b = buf.get(pos++);
+                        if (b == '"') {
+                            if (pos < limit && buf.get(pos) == '"') {
+                                pos++;
+                            } else {
+                                break;
+                            }
+                        }
+                        if (wanted) {
+                            if (len == scratch.length) grow();
+                            scratch[len++] = b;
+                        }
+                    }
+                    // Anything between the closing quote and the next delimiter is ignored
+                    while (pos < limit && !isFieldEnd(buf.get(pos), delim)) pos++;
+                    if (wanted) value = new String(scratch, 0, len, StandardCharsets.UTF_8);
+                } else {
+                    int start = pos;
+                    while (pos < limit && !isFieldEnd(buf.get(pos), delim)) pos++;
+                    if (wanted) value = decode(buf, start, pos);
+                }
+
+                if (column == 0) filename = value;
+                else if (column == 1) webUrl = value;
+                column++;
+
+                if (pos < limit && buf.get(pos) == delim) {
+                    pos++;
+                    if (pos < limit) continue;
+                }
+                if (pos < limit && buf.get(pos) == '\r') pos++;
+                if (pos < limit && buf.get(pos) == '\n') pos++;
+                break;
+            }
+
+            if (header) {
+                header = false;
+                continue;
+            }
+
+            rows++;
+            if (filename != null && !filename.isEmpty() && webUrl != null && !webUrl.isEmpty()) {
+                listener.onEntry(new UrlData(filename, webUrl));
+            }
+            if (rows % PROGRESS_INTERVAL == 0) listener.onProgress(rows, -1);
+        }
+        listener.onProgress(rows, rows);
+    }
+
+    private static boolean isFieldEnd(byte b, byte delim) {
+        return b == delim || b == '\n' || b == '\r';
+    }
+
+    private String decode(ByteBuffer buf, int start, int end) {
+        int len = end - start;
+        while (scratch.length < len) grow();
+        for (int i = 0; i < len; i++) {
+            scratch[i] = buf.get(start + i);
+        }
+        return new String(scratch, 0, len, StandardCharsets.UTF_8);
+    }
+
+    private void grow() {
+        byte[] bigger = new byte[scratch.length * 2];
+        System.arraycopy(scratch, 0, bigger, 0, scratch.length);
+        scratch = bigger;
+    }
+
+    private static int skipBom(ByteBuffer buf, int pos, int limit) {
+        if (limit - pos >= 3 && buf.get(pos) == (byte) 0xEF && buf.get(pos + 1) == (byte) 0xBB && buf.get(pos + 2) == (byte) 0xBF) {
+            return pos + 3;
+        }
+        return pos;
+    }
+
+    // Picks whichever of tab, semicolon or comma occurs most on the header line, outside quotes
+    static char detectDelimiter(ByteBuffer buf, int pos, int limit) {
+        int tabs = 0, semicolons = 0, commas = 0;
+        boolean quoted = false;
+        for (int i = pos; i < limit; i++) {
+            byte b = buf.get(i);
+            if (b == '"') quoted = !quoted;
+            else if (quoted) continue;
+            else if (b == '\n' || b == '\r') break;
+            else if (b == '\t') tabs++;
+            else if (b == ';') semicolons++;
+            else if (b == ',') commas++;
+        }
+        if (tabs > 0 && tabs >= commas && tabs >= semicolons) return '\t';
+        if (semicolons > commas) return ';';
+        return ',';
+    }
+}
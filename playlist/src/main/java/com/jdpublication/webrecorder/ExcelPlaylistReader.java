@@ -0,0 +1,126 @@
+package com.jdpublication.webrecorder;
+
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+// Streams the first sheet through POI's SAX event model so only the current row is in memory
+public class ExcelPlaylistReader implements PlaylistReader {
+
+    private static final int PROGRESS_INTERVAL = 500;
+
+    private final File file;
+
+    public ExcelPlaylistReader(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public void read(Listener listener) throws IOException {
+        try (OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ)) {
+            XSSFReader reader = new XSSFReader(pkg);
+            ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg, false);
+            StylesTable styles = reader.getStylesTable();
+
+            Iterator<InputStream> sheets = reader.getSheetsData();
+            if (!sheets.hasNext()) return;
+
+            try (InputStream sheet = sheets.next()) {
+                XMLReader parser = XMLHelper.newXMLReader();
+                RowHandler rowHandler = new RowHandler(listener);
+                parser.setContentHandler(new XSSFSheetXMLHandler(styles, strings, rowHandler, new DataFormatter(), false));
+                parser.parse(new InputSource(sheet));
+                listener.onProgress(rowHandler.rows, rowHandler.rows);
+            }
+        } catch (OpenXML4JException | SAXException | ParserConfigurationException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // XLSX is a zip, and every zip starts with a local file header; providers' MIME types for
+    // playlists are too unreliable to go by
+    public static boolean isXlsx(InputStream in) throws IOException {
+        byte[] magic = new byte[4];
+        int read = 0;
+        while (read < magic.length) {
+            int n = in.read(magic, read, magic.length - read);
+            if (n < 0) return false;
+            read += n;
+        }
+        return magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4;
+    }
+
+    // "AB12" -> 27, without allocating a CellReference per cell
+    static int columnOf(String cellReference) {
+        int col = 0;
+        for (int i = 0; i < cellReference.length(); i++) {
+            char c = cellReference.charAt(i);
+            if (c < 'A' || c > 'Z') break;
+            col = col * 26 + (c - 'A' + 1);
+        }
+        return col - 1;
+    }
+
+    private static class RowHandler implements XSSFSheetXMLHandler.SheetContentsHandler {
+        private final Listener listener;
+        private boolean headerSkipped = false;
+        private boolean inHeader = false;
+        private int nextColumn;
+        private String filename;
+        private String webUrl;
+        long rows = 0;
+
+        RowHandler(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            inHeader = !headerSkipped;
+            headerSkipped = true;
+            nextColumn = 0;
+            filename = null;
+            webUrl = null;
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            if (inHeader) return;
+            rows++;
+            if (filename != null && webUrl != null) {
+                listener.onEntry(new UrlData(filename, webUrl));
+            }
+            if (rows % PROGRESS_INTERVAL == 0) listener.onProgress(rows, -1);
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            int column = cellReference != null ? columnOf(cellReference) : nextColumn;
+            nextColumn = column + 1;
+            if (inHeader) return;
+            if (column == 0) filename = formattedValue;
+            else if (column == 1) webUrl = formattedValue;
+        }
+
+        @Override
+        public void headerFooter(String text, boolean isHeader, String tagName) {
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.jdpublication.webrecorder;
+
+import java.io.IOException;
+
+public interface PlaylistReader {
+
+    interface Listener {
+        void onEntry(UrlData data);
+
+        // Both in data rows, header excluded; total is -1 until the reader knows it
+        void onProgress(long processed, long total);
+    }
+
+    void read(Listener listener) throws IOException;
+}
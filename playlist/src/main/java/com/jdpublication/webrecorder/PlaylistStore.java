@@ -0,0 +1,270 @@
+package com.jdpublication.webrecorder;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Packed playlist: all names and URL suffixes live as UTF-8 in one byte buffer, addressed through
+// an int index of (start, urlStart, prefixId) per entry. "scheme://host/" prefixes are stored once.
+// A saved store is memory-mapped back in on open, so nothing is parsed per entry.
+public class PlaylistStore {
+
+    private static final int MAGIC = 0x57524C31; // "WRL1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 5 * 4;
+    private static final int STRIDE = 3;
+
+    private ByteBuffer data;
+    private IntBuffer index;
+    private int dataLength;
+    private int count;
+    private final List<String> prefixes = new ArrayList<>();
+    private final Map<String, Integer> prefixIds = new HashMap<>();
+    private boolean mapped;
+    private byte[] scratch = new byte[256];
+
+    public PlaylistStore() {
+        data = ByteBuffer.allocate(16 * 1024);
+        index = IntBuffer.allocate(256 * STRIDE);
+        addPrefix("");
+    }
+
+    private PlaylistStore(ByteBuffer data, IntBuffer index, int dataLength, int count, String[] prefixes) {
+        this.data = data;
+        this.index = index;
+        this.dataLength = dataLength;
+        this.count = count;
+        // Ids are positions in the file, even if a damaged file repeats a prefix
+        for (String prefix : prefixes) {
+            prefixIds.putIfAbsent(prefix, this.prefixes.size());
+            this.prefixes.add(prefix);
+        }
+        this.mapped = true;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    public synchronized UrlData get(int position) {
+        return new UrlData(getFilename(position), getWebUrl(position));
+    }
+
+    public synchronized String getFilename(int position) {
+        checkPosition(position);
+        int base = position * STRIDE;
+        return decode(index.get(base), index.get(base + 1));
+    }
+
+    public synchronized String getWebUrl(int position) {
+        checkPosition(position);
+        int base = position * STRIDE;
+        String suffix = decode(index.get(base + 1), endOf(position));
+        String prefix = prefixes.get(index.get(base + 2));
+        return prefix.isEmpty() ? suffix : prefix.concat(suffix);
+    }
+
+    public synchronized void add(UrlData entry) {
+        ensureWritable();
+        String url = entry.getWebUrl();
+        int split = prefixLength(url);
+        int prefixId = addPrefix(url.substring(0, split));
+
+        byte[] name = entry.getFilename().getBytes(StandardCharsets.UTF_8);
+        byte[] suffix = url.substring(split).getBytes(StandardCharsets.UTF_8);
+
+        ensureCapacity(name.length + suffix.length);
+        int start = dataLength;
+        data.position(start);
+        data.put(name);
+        data.put(suffix);
+        dataLength = data.position();
+
+        int base = count * STRIDE;
+        index.put(base, start);
+        index.put(base + 1, start + name.length);
+        index.put(base + 2, prefixId);
+        count++;
+    }
+
+    public synchronized void addAll(List<UrlData> entries) {
+        for (UrlData entry : entries) add(entry);
+    }
+
+    public synchronized void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.writeInt(prefixes.size());
+            out.writeInt(dataLength);
+
+            int written = HEADER_SIZE;
+            for (String prefix : prefixes) {
+                byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                written += 4 + bytes.length;
+            }
+            // Keep the index int-aligned inside the mapping
+            while (written % 4 != 0) {
+                out.write(0);
+                written++;
+            }
+
+            for (int i = 0; i < count * STRIDE; i++) {
+                out.writeInt(index.get(i));
+            }
+            if (data.hasArray()) {
+                out.write(data.array(), data.arrayOffset(), dataLength);
+            } else {
+                for (int i = 0; i < dataLength; i++) out.write(data.get(i));
+            }
+            // The rename must not become durable before the contents do
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    public static PlaylistStore open(File file) throws IOException {
+        ByteBuffer map;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() > Integer.MAX_VALUE) throw new IOException("Playlist index too large: " + file);
+            map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        if (map.remaining() < HEADER_SIZE || map.getInt() != MAGIC || map.getInt() != VERSION) {
+            throw new IOException("Not a playlist index: " + file);
+        }
+        // Every size comes from the file, so each is checked against what is left of it before use
+        int count = map.getInt();
+        int prefixCount = map.getInt();
+        int dataLength = map.getInt();
+        if (count < 0 || prefixCount < 1 || dataLength < 0 || prefixCount > map.remaining() / 4) {
+            throw new IOException("Corrupt playlist index header: " + file);
+        }
+
+        String[] prefixes = new String[prefixCount];
+        for (int i = 0; i < prefixCount; i++) {
+            int length = map.remaining() >= 4 ? map.getInt() : -1;
+            if (length < 0 || length > map.remaining()) throw new IOException("Corrupt playlist index prefix: " + file);
+            byte[] bytes = new byte[length];
+            map.get(bytes);
+            prefixes[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        map.position(Math.min((map.position() + 3) & ~3, map.limit()));
+
+        long indexBytes = (long) count * STRIDE * 4;
+        if (map.remaining() < indexBytes + dataLength) {
+            throw new IOException("Truncated playlist index: " + file);
+        }
+        ByteBuffer indexRegion = map.slice();
+        indexRegion.limit((int) indexBytes);
+        map.position(map.position() + (int) indexBytes);
+        ByteBuffer dataRegion = map.slice();
+        dataRegion.limit(dataLength);
+
+        IntBuffer index = indexRegion.asIntBuffer();
+        checkIndex(index, count, prefixCount, dataLength, file);
+        return new PlaylistStore(dataRegion, index, dataLength, count, prefixes);
+    }
+
+    // One pass over the index, so a bad entry fails here rather than in a later get()
+    private static void checkIndex(IntBuffer index, int count, int prefixCount, int dataLength, File file) throws IOException {
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            int base = i * STRIDE;
+            int start = index.get(base);
+            int urlStart = index.get(base + 1);
+            int prefixId = index.get(base + 2);
+            if (start < previous || urlStart < start || urlStart > dataLength || prefixId < 0 || prefixId >= prefixCount) {
+                throw new IOException("Corrupt playlist index entry " + i + ": " + file);
+            }
+            previous = urlStart;
+        }
+    }
+
+    // Length of "scheme://host/" or 0 when the URL has no authority
+    static int prefixLength(String url) {
+        int scheme = url.indexOf("://");
+        if (scheme < 0) return 0;
+        int slash = url.indexOf('/', scheme + 3);
+        return slash < 0 ? url.length() : slash + 1;
+    }
+
+    private int addPrefix(String prefix) {
+        Integer id = prefixIds.get(prefix);
+        if (id != null) return id;
+        prefixes.add(prefix);
+        prefixIds.put(prefix, prefixes.size() - 1);
+        return prefixes.size() - 1;
+    }
+
+    private int endOf(int position) {
+        return position + 1 < count ? index.get((position + 1) * STRIDE) : dataLength;
+    }
+
+    private String decode(int start, int end) {
+        int len = end - start;
+        if (data.hasArray()) {
+            return new String(data.array(), data.arrayOffset() + start, len, StandardCharsets.UTF_8);
+        }
+        if (scratch.length < len) scratch = new byte[Math.max(len, scratch.length * 2)];
+        for (int i = 0; i < len; i++) {
+            scratch[i] = data.get(start + i);
+        }
+        return new String(scratch, 0, len, StandardCharsets.UTF_8);
+    }
+
+    private void checkPosition(int position) {
+        if (position < 0 || position >= count) {
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + count);
+        }
+    }
+
+    // A mapped store is read-only; the first append copies it onto the heap
+    private void ensureWritable() {
+        if (!mapped) return;
+        ByteBuffer heapData = ByteBuffer.allocate(Math.max(dataLength * 2, 16 * 1024));
+        for (int i = 0; i < dataLength; i++) heapData.put(i, data.get(i));
+        IntBuffer heapIndex = IntBuffer.allocate(Math.max(count * 2, 256) * STRIDE);
+        for (int i = 0; i < count * STRIDE; i++) heapIndex.put(i, index.get(i));
+        data = heapData;
+        index = heapIndex;
+        mapped = false;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (dataLength + bytes > data.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(data.capacity() * 2, dataLength + bytes));
+            bigger.put(data.array(), 0, dataLength);
+            data = bigger;
+        }
+        if ((count + 1) * STRIDE > index.capacity()) {
+            IntBuffer bigger = IntBuffer.allocate(index.capacity() * 2);
+            bigger.put(index.array(), 0, count * STRIDE);
+            index = bigger;
+        }
+    }
+}
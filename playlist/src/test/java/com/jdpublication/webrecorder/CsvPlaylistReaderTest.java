@@ -0,0 +1,155 @@
+package com.jdpublication.webrecorder;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CsvPlaylistReaderTest {
+
+    private static final class Collector implements PlaylistReader.Listener {
+        final List<UrlData> entries = new ArrayList<>();
+        long processed = -1;
+        long total = -1;
+
+        @Override
+        public void onEntry(UrlData data) {
+            entries.add(data);
+        }
+
+        @Override
+        public void onProgress(long processed, long total) {
+            this.processed = processed;
+            this.total = total;
+        }
+    }
+
+    private static Collector read(byte[] bytes, char delimiter) throws IOException {
+        Collector collector = new Collector();
+        new CsvPlaylistReader(ByteBuffer.wrap(bytes), delimiter).read(collector);
+        return collector;
+    }
+
+    private static Collector read(String text, char delimiter) throws IOException {
+        return read(text.getBytes(StandardCharsets.UTF_8), delimiter);
+    }
+
+    private static void assertEntry(UrlData data, String filename, String webUrl) {
+        assertEquals(filename, data.getFilename());
+        assertEquals(webUrl, data.getWebUrl());
+    }
+
+    @Test
+    public void plainRowsSkipTheHeader() throws IOException {
+        Collector result = read("name,url\na,http://a/\nb,http://b/\n", ',');
+        assertEquals(2, result.entries.size());
+        assertEntry(result.entries.get(0), "a", "http://a/");
+        assertEntry(result.entries.get(1), "b", "http://b/");
+    }
+
+    @Test
+    public void quotedFieldsKeepDelimitersAndDoubledQuotes() throws IOException {
+        Collector result = read("name,url\n\"a,b\",\"http://a/?q=\"\"x\"\"\"\n", ',');
+        assertEquals(1, result.entries.size());
+        assertEntry(result.entries.get(0), "a,b", "http://a/?q=\"x\"");
+    }
+
+    @Test
+    public void newlinesInsideQuotesStayInTheField() throws IOException {
+        Collector result = read("name,url\n\"first\nsecond\",http://a/\nc,http://c/\n", ',');
+        assertEquals(2, result.entries.size());
+        assertEntry(result.entries.get(0), "first\nsecond", "http://a/");
+        assertEntry(result.entries.get(1), "c", "http://c/");
+    }
+
+    @Test
+    public void bomAndCrlfAreStripped() throws IOException {
+        byte[] text = "name,url\r\na,http://a/\r\nb,http://b/\r\n".getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[text.length + 3];
+        bytes[0] = (byte) 0xEF;
+        bytes[1] = (byte) 0xBB;
+        bytes[2] = (byte) 0xBF;
+        System.arraycopy(text, 0, bytes, 3, text.length);
+        Collector result = read(bytes, CsvPlaylistReader.DETECT_DELIMITER);
+        assertEquals(2, result.entries.size());
+        assertEntry(result.entries.get(0), "a", "http://a/");
+        assertEntry(result.entries.get(1), "b", "http://b/");
+    }
+
+    @Test
+    public void rowsWithEmptyFieldsAreSkippedButCounted() throws IOException {
+        Collector result = read("name,url,note\n,http://a/,x\nb,,\nc,http://c/,\n\n", ',');
+        assertEquals(1, result.entries.size());
+        assertEntry(result.entries.get(0), "c", "http://c/");
+        assertEquals(4, result.processed);
+        assertEquals(4, result.total);
+    }
+
+    @Test
+    public void detectsTabsOverCommas() throws IOException {
+        Collector result = read("name\turl\na,b\thttp://a/?x=1,2\n", CsvPlaylistReader.DETECT_DELIMITER);
+        assertEquals(1, result.entries.size());
+        assertEntry(result.entries.get(0), "a,b", "http://a/?x=1,2");
+    }
+
+    @Test
+    public void detectsCommasAndIgnoresQuotedTabs() throws IOException {
+        Collector result = read("\"name\tfile\",url\na\tb,http://a/\n", CsvPlaylistReader.DETECT_DELIMITER);
+        assertEquals(1, result.entries.size());
+        assertEntry(result.entries.get(0), "a\tb", "http://a/");
+    }
+
+    @Test
+    public void detectsSemicolons() throws IOException {
+        Collector result = read("name;url\na;http://a/?x=1,2\n", CsvPlaylistReader.DETECT_DELIMITER);
+        assertEquals(1, result.entries.size());
+        assertEntry(result.entries.get(0), "a", "http://a/?x=1,2");
+    }
+
+    @Test
+    public void finalRowWithoutTrailingNewline() throws IOException {
+        Collector result = read("name,url\na,http://a/\nb,http://b/", ',');
+        assertEquals(2, result.entries.size());
+        assertEntry(result.entries.get(1), "b", "http://b/");
+    }
+
+    @Test
+    public void quotedFinalRowWithoutTrailingNewline() throws IOException {
+        Collector result = read("name,url\na,\"http://a/\"", ',');
+        assertEquals(1, result.entries.size());
+        assertEntry(result.entries.get(0), "a", "http://a/");
+    }
+
+    @Test
+    public void longFieldsGrowTheScratchBuffer() throws IOException {
+        StringBuilder url = new StringBuilder("http://a/?");
+        while (url.length() < 1000) url.append("x");
+        Collector result = read("name,url\na," + url + "\n\"b\",\"" + url + "\"\n", ',');
+        assertEquals(2, result.entries.size());
+        assertEquals(url.toString(), result.entries.get(0).getWebUrl());
+        assertEquals(url.toString(), result.entries.get(1).getWebUrl());
+    }
+
+    @Test
+    public void progressIsReportedInRows() throws IOException {
+        StringBuilder text = new StringBuilder("name,url\n");
+        for (int i = 0; i < 25000; i++) text.append("f").append(i).append(",http://a/").append(i).append('\n');
+        Collector result = read(text.toString(), ',');
+        assertEquals(25000, result.entries.size());
+        assertEquals(25000, result.processed);
+        assertEquals(25000, result.total);
+    }
+
+    @Test
+    public void headerOnlyFileHasNoRows() throws IOException {
+        Collector result = read("name,url\n", ',');
+        assertTrue(result.entries.isEmpty());
+        assertEquals(0, result.total);
+    }
+}
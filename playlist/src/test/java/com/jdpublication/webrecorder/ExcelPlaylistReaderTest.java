@@ -0,0 +1,20 @@
+package com.jdpublication.webrecorder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExcelPlaylistReaderTest {
+
+    @Test
+    public void zipMagicMeansXlsx() throws IOException {
+        assertTrue(ExcelPlaylistReader.isXlsx(new ByteArrayInputStream(new byte[]{'P', 'K', 3, 4, 0})));
+        assertFalse(ExcelPlaylistReader.isXlsx(new ByteArrayInputStream("name,url\n".getBytes(StandardCharsets.UTF_8))));
+        assertFalse(ExcelPlaylistReader.isXlsx(new ByteArrayInputStream(new byte[]{'P', 'K'})));
+    }
+}
@@ -19,4 +19,5 @@ dependencyResolutionManagement {
     }
 }
 rootProject.name = "Web Recorder"
-include(":app")
\ No newline at end of file
+include(":app")
+include(":playlist")
\ No newline at end of file